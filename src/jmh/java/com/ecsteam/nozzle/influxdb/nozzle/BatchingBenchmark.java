@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producers handing envelopes to one batcher, the way the Firehose connections do, with a sender that accepts
+ * every batch immediately. With the <tt>block</tt> overload policy the producers are throttled to what the
+ * batching thread can encode, so this measures the batcher's throughput and the cost of contending for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchingBenchmark {
+	private static final int ENVELOPES = 4096;
+
+	private InfluxDBBatcher batcher;
+
+	@State(Scope.Thread)
+	public static class Producer {
+		private Envelope[] envelopes;
+		private int next;
+
+		@Setup
+		public void setUp() {
+			envelopes = Envelopes.create(ENVELOPES, false);
+		}
+
+		Envelope next() {
+			return envelopes[next++ & (ENVELOPES - 1)];
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		NozzleProperties properties = new NozzleProperties();
+		InfluxDBSender sender = batch -> CompletableFuture.completedFuture(true);
+
+		batcher = new InfluxDBBatcher(properties, sender, new BatchSpool(properties, sender),
+				new TagCardinalityGuard(properties), new SeriesKeyCacheMetrics(), new PipelineMetrics(),
+				new FlowController(properties), null, null, null, properties.getSeriesCacheSize());
+		batcher.start("benchmark-batcher");
+	}
+
+	@TearDown
+	public void tearDown() {
+		batcher.stop();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean oneProducer(Producer producer) {
+		return batcher.add(producer.next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean fourProducers(Producer producer) {
+		return batcher.add(producer.next());
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean sixteenProducers(Producer producer) {
+		return batcher.add(producer.next());
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a single envelope into line protocol. With fewer series than the series key cache holds, this is
+ * the steady state of a nozzle; with more, every envelope pays for building its series prefix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+	private static final int ENVELOPES = 4096;
+
+	@Param({ "1024", "65536" })
+	public int seriesCacheSize;
+
+	private LineProtocolEncoder encoder;
+	private LineProtocolBuffer buffer;
+	private Envelope[] valueMetrics;
+	private Envelope[] counterEvents;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		encoder = new LineProtocolEncoder("benchmark", new SeriesKeyCache(seriesCacheSize,
+				new SeriesKeyCacheMetrics()));
+		buffer = new LineProtocolBuffer(4096);
+		valueMetrics = Envelopes.create(ENVELOPES, false);
+		counterEvents = Envelopes.create(ENVELOPES, true);
+	}
+
+	@Benchmark
+	public int valueMetric() {
+		buffer.reset();
+		encoder.encode(valueMetrics[next++ & (ENVELOPES - 1)], buffer);
+		return buffer.length();
+	}
+
+	@Benchmark
+	public int counterEvent() {
+		buffer.reset();
+		encoder.encode(counterEvents[next++ & (ENVELOPES - 1)], buffer);
+		return buffer.length();
+	}
+}
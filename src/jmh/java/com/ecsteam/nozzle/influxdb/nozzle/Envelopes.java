@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.cloudfoundry.doppler.Method;
+import org.cloudfoundry.doppler.PeerType;
+import org.cloudfoundry.doppler.ValueMetric;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Envelopes shaped like the ones a Firehose of a mid-sized foundation delivers: a handful of origins, many VMs,
+ * and the tags the loggregator agents attach to every metric.
+ */
+final class Envelopes {
+	private static final String[] ORIGINS = { "rep", "gorouter", "bbs", "cc", "uaa", "garden-linux" };
+	private static final String[] JOBS = { "diego_cell", "router", "diego_database", "cloud_controller", "uaa" };
+	private static final String[] NAMES = { "CapacityRemainingMemory", "ContainerCount", "latency", "numCPUS",
+			"memoryStats.numBytesAllocated", "requests.completed", "logSenderTotalMessagesRead" };
+
+	private Envelopes() {
+	}
+
+	/**
+	 * @param count how many envelopes to build, each from a different series until the combinations run out
+	 * @param counters true for CounterEvents, false for ValueMetrics
+	 */
+	static Envelope[] create(int count, boolean counters) {
+		Envelope[] envelopes = new Envelope[count];
+		for (int i = 0; i < count; ++i) {
+			int vm = i / NAMES.length;
+
+			Map<String, String> tags = new HashMap<>();
+			tags.put("source_id", ORIGINS[vm % ORIGINS.length]);
+			tags.put("product", "Pivotal Application Service");
+			tags.put("system_domain", "sys.example.com");
+
+			Envelope.Builder builder = Envelope.builder()
+					.origin(ORIGINS[vm % ORIGINS.length])
+					.deployment("cf-3d2c1b0a9f8e7d6c5b4a")
+					.job(JOBS[vm % JOBS.length])
+					.index(new UUID(vm, 0L).toString())
+					.ip("10.0." + (vm / 256) % 256 + "." + vm % 256)
+					.timestamp(1490000000000000000L + i)
+					.tags(tags);
+
+			if (counters) {
+				envelopes[i] = builder.eventType(EventType.COUNTER_EVENT)
+						.counterEvent(CounterEvent.builder()
+								.name(NAMES[i % NAMES.length])
+								.delta(7L)
+								.total(1000L + i)
+								.build())
+						.build();
+			} else {
+				envelopes[i] = builder.eventType(EventType.VALUE_METRIC)
+						.valueMetric(ValueMetric.builder()
+								.name(NAMES[i % NAMES.length])
+								.unit("ms")
+								.value(12.5 + i % 100)
+								.build())
+						.build();
+			}
+		}
+
+		return envelopes;
+	}
+
+	/**
+	 * @param count how many envelopes to build, in the mix of a busy Firehose: per 20 envelopes, 12 LogMessages, 5
+	 * HttpStartStops, 2 ValueMetrics and a CounterEvent
+	 * @return the envelopes as dropsonde protobuf frames
+	 */
+	static byte[][] frames(int count) {
+		Envelope[] metrics = create(count, false);
+		Envelope[] counters = create(count, true);
+
+		byte[][] frames = new byte[count][];
+		for (int i = 0; i < count; ++i) {
+			Envelope envelope;
+			int slot = i % 20;
+			if (slot < 12) {
+				envelope = Envelope.builder().from(metrics[i])
+						.eventType(EventType.LOG_MESSAGE)
+						.logMessage(LogMessage.builder()
+								.message("2017-03-20T10:15:30.123Z INFO 7 --- [nio-8080-exec-" + i % 10
+										+ "] c.e.demo.OrderController : order " + i + " accepted")
+								.messageType(MessageType.OUT)
+								.timestamp(1490000000000000000L + i)
+								.applicationId(new UUID(0L, i % 50).toString())
+								.sourceType("APP/PROC/WEB")
+								.sourceInstance(String.valueOf(i % 4))
+								.build())
+						.build();
+			} else if (slot < 17) {
+				envelope = Envelope.builder().from(metrics[i])
+						.eventType(EventType.HTTP_START_STOP)
+						.httpStartStop(HttpStartStop.builder()
+								.startTimestamp(1490000000000000000L + i)
+								.stopTimestamp(1490000000012000000L + i)
+								.requestId(new UUID(i, i))
+								.peerType(PeerType.CLIENT)
+								.method(Method.GET)
+								.uri("https://orders.apps.example.com/orders/" + i)
+								.remoteAddress("10.1.2.3:54321")
+								.userAgent("Mozilla/5.0")
+								.statusCode(200)
+								.contentLength(512L)
+								.applicationId(new UUID(0L, i % 50))
+								.instanceIndex(i % 4)
+								.build())
+						.build();
+			} else if (slot < 19) {
+				envelope = metrics[i];
+			} else {
+				envelope = counters[i];
+			}
+
+			frames[i] = DropsondeCodec.encode(envelope);
+		}
+
+		return frames;
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting from a websocket frame to the envelopes {@link FirehoseReader} writes: decoding every frame and
+ * switching on its event type, as the Doppler client does, against peeking at the frame with an
+ * {@link EnvelopeFrameFilter} and only decoding what it keeps. The frames are a LogMessage heavy mix, with and
+ * without HttpStartStops being written, and with an origin filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameFilterBenchmark {
+	private static final int FRAMES = 4096;
+
+	@Param({ "false", "true" })
+	public boolean httpLatency;
+
+	@Param({ "", "rep,gorouter" })
+	public String origins;
+
+	private Set<String> originSet;
+	private byte[][] frames;
+	private EnvelopeFrameFilter filter;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setHttpLatency(httpLatency);
+		originSet = origins.isEmpty() ? Collections.emptySet() : new HashSet<>(Arrays.asList(origins.split(",")));
+		properties.setOrigins(new ArrayList<>(originSet));
+
+		frames = Envelopes.frames(FRAMES);
+		filter = new EnvelopeFrameFilter(properties, new PipelineMetrics());
+	}
+
+	@Benchmark
+	public void decodeThenSwitch(Blackhole blackhole) throws IOException {
+		Envelope envelope = DropsondeCodec.decode(frames[next++ & (FRAMES - 1)]);
+
+		switch (envelope.getEventType()) {
+			case COUNTER_EVENT:
+			case VALUE_METRIC:
+				if (originSet.isEmpty() || originSet.contains(envelope.getOrigin())) {
+					blackhole.consume(envelope);
+				}
+				break;
+			case HTTP_START_STOP:
+				if (httpLatency && (originSet.isEmpty() || originSet.contains(envelope.getOrigin()))) {
+					blackhole.consume(envelope);
+				}
+				break;
+		}
+	}
+
+	@Benchmark
+	public void peekThenDecode(Blackhole blackhole) throws IOException {
+		byte[] frame = frames[next++ & (FRAMES - 1)];
+
+		if (filter.accept(frame)) {
+			blackhole.consume(DropsondeCodec.decode(frame));
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.destination.StandaloneInfluxDbDestination;
+import com.sun.net.httpserver.HttpServer;
+import org.cloudfoundry.doppler.Envelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.StreamUtils;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a full batch and writing it to a stub InfluxDB running in-process, which reads the body and answers
+ * 204. Each operation is one batch, so divide by the batch size for the cost per point. The stub shares the
+ * JVM, so its own allocations are included in the GC profiler's figures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+
+	@Param({ "rest", "reactor" })
+	public SenderType sender;
+
+	@Param({ "false", "true" })
+	public boolean gzip;
+
+	@Param({ "5000" })
+	public int batchSize;
+
+	private HttpServer influxDb;
+	private ExecutorService influxDbThreads;
+	private GzipCompressor compressor;
+	private InfluxDBSender influxDbSender;
+	private LineProtocolEncoder encoder;
+	private BufferPool pool;
+	private Envelope[] envelopes;
+
+	@Setup
+	public void setUp() throws Exception {
+		influxDbThreads = Executors.newFixedThreadPool(4);
+		influxDb = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		influxDb.createContext("/write", exchange -> {
+			try (InputStream body = exchange.getRequestBody()) {
+				StreamUtils.drain(body);
+			}
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		influxDb.setExecutor(influxDbThreads);
+		influxDb.start();
+
+		NozzleProperties properties = new NozzleProperties();
+		properties.setDbHost("http://127.0.0.1:" + influxDb.getAddress().getPort());
+		properties.setGzip(gzip);
+
+		StandaloneInfluxDbDestination destination = new StandaloneInfluxDbDestination(properties);
+		compressor = new GzipCompressor(properties, new CompressionMetrics());
+		FlowController flow = new FlowController(properties);
+		influxDbSender = sender == SenderType.reactor
+				? new ReactorInfluxDBSender(properties, destination, compressor, flow)
+				: new RestTemplateInfluxDBSender(properties, destination, compressor, flow);
+
+		encoder = new LineProtocolEncoder("benchmark", new SeriesKeyCache(65536, new SeriesKeyCacheMetrics()));
+		pool = new BufferPool(4, 64 * 1024, 4 * 1024 * 1024);
+		envelopes = Envelopes.create(batchSize, false);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (influxDbSender instanceof ReactorInfluxDBSender) {
+			((ReactorInfluxDBSender) influxDbSender).destroy();
+		}
+		compressor.close();
+		influxDb.stop(0);
+		influxDbThreads.shutdown();
+	}
+
+	@Benchmark
+	public boolean encodeAndSend() throws Exception {
+		Batch batch = new Batch(pool);
+		try {
+			for (Envelope envelope : envelopes) {
+				if (encoder.encode(envelope, batch.getBuffer())) {
+					batch.pointAdded();
+				}
+			}
+
+			return influxDbSender.sendBatch(batch).get();
+		} finally {
+			batch.release();
+		}
+	}
+}
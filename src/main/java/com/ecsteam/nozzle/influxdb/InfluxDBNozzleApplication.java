@@ -18,11 +18,12 @@ package com.ecsteam.nozzle.influxdb;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.retry.annotation.EnableRetry;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 @SpringBootApplication
 @EnableAsync
 @EnableRetry
@@ -32,11 +33,16 @@ public class InfluxDBNozzleApplication {
 	}
 
 	@Bean
-	public TaskExecutor taskExecutor() {
+	public ThreadPoolTaskExecutor taskExecutor() {
 		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
 		executor.setMaxPoolSize(50);
 		executor.setCorePoolSize(30);
 
+		// bound the queue of pending sends; once it is full the batcher sends the batch itself, which holds
+		// back the pipeline instead of queueing without limit
+		executor.setQueueCapacity(100);
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+
 		return executor;
 	}
 }
@@ -41,8 +41,8 @@ public class DestinationConfig {
 	@Bean
 	@Profile("tile")
 	@Autowired
-	MetricsDestination tileDestination(@Value("${cc.host}") String apiEndpoint) {
-		return new TileDeployedInfluxDbDestination(apiEndpoint);
+	MetricsDestination tileDestination(@Value("${cc.host}") String apiEndpoint, NozzleProperties properties) {
+		return new TileDeployedInfluxDbDestination(apiEndpoint, properties.getDbHosts());
 	}
 
 	@Bean
@@ -15,8 +15,12 @@
 
 package com.ecsteam.nozzle.influxdb.config;
 
+import com.ecsteam.nozzle.influxdb.nozzle.DopplerEnvelopeSource;
+import com.ecsteam.nozzle.influxdb.nozzle.EnvelopeSource;
 import com.ecsteam.nozzle.influxdb.nozzle.FirehoseReader;
 import com.ecsteam.nozzle.influxdb.nozzle.InfluxDBWriter;
+import com.ecsteam.nozzle.influxdb.nozzle.PipelineMetrics;
+import com.ecsteam.nozzle.influxdb.nozzle.ReplayEnvelopeSource;
 import org.cloudfoundry.reactor.DefaultConnectionContext;
 import org.cloudfoundry.reactor.TokenProvider;
 import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
@@ -26,6 +30,7 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.util.StringUtils;
 
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -54,11 +59,23 @@ public class FirehoseConfig {
 			.build();
 	}
 
+	/**
+	 * Read a capture if one is to be replayed, otherwise the live Firehose
+	 */
+	private EnvelopeSource envelopeSource(NozzleProperties properties, PipelineMetrics pipelineMetrics) {
+		if (StringUtils.hasText(properties.getReplayDirectory())) {
+			return new ReplayEnvelopeSource(properties, pipelineMetrics);
+		}
+
+		return new DopplerEnvelopeSource(dopplerClient(properties), properties, pipelineMetrics);
+	}
+
 	@Bean
 	@Profile("!test")
 	@Autowired
-	FirehoseReader firehoseReader(NozzleProperties properties, InfluxDBWriter writer) {
-		return new FirehoseReader(dopplerClient(properties), properties, writer);
+	FirehoseReader firehoseReader(NozzleProperties properties, InfluxDBWriter writer,
+			PipelineMetrics pipelineMetrics) {
+		return new FirehoseReader(envelopeSource(properties, pipelineMetrics), properties, writer, pipelineMetrics);
 	}
 
 	private String getApiHost(NozzleProperties properties) {
@@ -16,10 +16,18 @@
 package com.ecsteam.nozzle.influxdb.config;
 
 import com.ecsteam.nozzle.influxdb.nozzle.BackoffPolicy;
+import com.ecsteam.nozzle.influxdb.nozzle.OverloadPolicy;
+import com.ecsteam.nozzle.influxdb.nozzle.Precision;
+import com.ecsteam.nozzle.influxdb.nozzle.ReplayTimestamps;
+import com.ecsteam.nozzle.influxdb.nozzle.SenderType;
+import com.ecsteam.nozzle.influxdb.nozzle.TagCardinalityAction;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.retry.annotation.Backoff;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 @ConfigurationProperties(prefix = "influxdb.nozzle")
 public class NozzleProperties {
@@ -54,16 +62,274 @@ public class NozzleProperties {
 	 */
 	private String dbHost = "http://localhost:8086";
 
+	/**
+	 * The URLs of several InfluxDB nodes to partition series across, instead of the single db host. In a tile,
+	 * the hostnames of the nodes under the system domain
+	 */
+	private List<String> dbHosts = new ArrayList<>();
+
 	/**
 	 * The DB name (which must exist)
 	 */
 	private String dbName = "metrics";
 
+	/**
+	 * Rules for writing some envelopes to other databases, as
+	 * <tt>database[/retentionPolicy]:field=pattern[&amp;field=pattern]*</tt>. The first matching rule decides, and
+	 * the rest go to the db name. Every database gets batchers and an in-flight budget of its own
+	 */
+	private List<String> routes = new ArrayList<>();
+
+	/**
+	 * Priority lanes, highest first, as
+	 * <tt>name[/share[/lingerMillis[/bufferSize]]]:field=pattern[&amp;field=pattern]*</tt> matching on name or
+	 * origin. Each lane batches on its own, and lower lanes are shed while a higher one is backed up
+	 */
+	private List<String> lanes = new ArrayList<>();
+
 	/**
 	 * The Batch size to be sent to influxdb. Should be < 5000 per Influx documentation
 	 */
 	private int batchSize = 100;
 
+	/**
+	 * The max size of a batch in bytes. A batch is sent as soon as it reaches either limit
+	 */
+	private int batchBytes = 1024 * 1024;
+
+	/**
+	 * The max time in ms a partially filled batch waits for more messages before it is sent anyway
+	 */
+	private long maxLinger = 1000L;
+
+	/**
+	 * Rules for which metrics to write, as <tt>include|exclude:field=pattern[&amp;field=pattern]*</tt>. The first
+	 * matching rule decides
+	 */
+	private List<String> filters = new ArrayList<>();
+
+	/**
+	 * Whether to write metrics no filter rule matches
+	 */
+	private boolean filterIncludeUnmatched = true;
+
+	/**
+	 * The max number of distinct values a tag from the envelope may have per measurement. 0 disables the limit
+	 */
+	private int tagCardinalityLimit = 10000;
+
+	/**
+	 * What to do with a tag over the cardinality limit (strip, bucket)
+	 */
+	private TagCardinalityAction tagCardinalityAction = TagCardinalityAction.strip;
+
+	/**
+	 * The number of buckets values of a tag over the cardinality limit are hashed into
+	 */
+	private int tagCardinalityBuckets = 100;
+
+	/**
+	 * Rules for pre-aggregating ValueMetrics into windows, as <tt>[origin/]name=windowMillis</tt>, where origin and
+	 * name may contain <tt>*</tt>. Metrics matching no rule are written as they are
+	 */
+	private List<String> aggregations = new ArrayList<>();
+
+	/**
+	 * Write ValueMetrics that share a tag set and time bucket as one point with a field per metric
+	 */
+	private boolean coalesce = false;
+
+	/**
+	 * The size in ms of the time buckets metrics are coalesced in
+	 */
+	private long coalesceWindow = 1000L;
+
+	/**
+	 * The measurement coalesced points are written to. {origin}, {job} and {deployment} are replaced by the
+	 * envelope's values
+	 */
+	private String coalesceMeasurement = "{origin}";
+
+	/**
+	 * Write HttpStartStop events as latency percentiles per application or route, method and status class
+	 */
+	private boolean httpLatency = false;
+
+	/**
+	 * The window in ms HttpStartStop latencies are collected over before their percentiles are written
+	 */
+	private long httpLatencyWindow = 10000L;
+
+	/**
+	 * Skip CounterEvents whose total has not changed since the series was last written
+	 */
+	private boolean suppressUnchangedCounters = false;
+
+	/**
+	 * When suppressing unchanged counters, still write each counter at least this often, in ms
+	 */
+	private long counterHeartbeat = 60000L;
+
+	/**
+	 * The number of batchers envelopes are partitioned over by series
+	 */
+	private int shards = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of messages that can be waiting to be batched per shard. Rounded up to a power of two
+	 */
+	private int bufferSize = 8192;
+
+	/**
+	 * What to do with envelopes when the buffer is full (block, drop_oldest, drop_newest, sample)
+	 */
+	private OverloadPolicy overloadPolicy = OverloadPolicy.block;
+
+	/**
+	 * With the block overload policy, how long in ms to wait for room before dropping the envelope after all;
+	 * 0 waits for as long as it takes
+	 */
+	private long overloadBlockTimeout = 30000L;
+
+	/**
+	 * With the sample overload policy, keep one in this many envelopes once the buffer is half full
+	 */
+	private int overloadSampleRate = 10;
+
+	/**
+	 * The number of parallel connections to the Firehose, all with the same subscription ID
+	 */
+	private int connections = 1;
+
+	/**
+	 * The max number of envelopes requested from each Firehose connection ahead of what has been handed to the batcher
+	 */
+	private int firehosePrefetch = 256;
+
+	/**
+	 * Look at the event type, and origin, of each envelope on the raw websocket frame and only decode the ones
+	 * that will be written
+	 */
+	private boolean preDecodeFilter = false;
+
+	/**
+	 * Patterns for the origins to read, as <tt>~regex</tt>, globs with <tt>*</tt> or literals. Only applied by the
+	 * pre-decode filter. All origins if empty.
+	 */
+	private List<String> origins = new ArrayList<>();
+
+	/**
+	 * Directory to record every envelope received from the Firehose to, for replaying later. Not recorded if not
+	 * set.
+	 */
+	private String captureDirectory;
+
+	/**
+	 * The max size of a capture. Capturing stops once it is reached.
+	 */
+	private long captureMaxBytes = 1024L * 1024 * 1024;
+
+	/**
+	 * The size at which a connection's capture moves on to a new segment file
+	 */
+	private long captureSegmentBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Directory of a capture to replay instead of connecting to the Firehose
+	 */
+	private String replayDirectory;
+
+	/**
+	 * How fast to replay: 1 for real time, N for N times faster, 0 for as fast as envelopes are accepted
+	 */
+	private double replaySpeed = 1.0;
+
+	/**
+	 * Whether replayed envelopes keep their original timestamps or are stamped with the time they are replayed
+	 */
+	private ReplayTimestamps replayTimestamps = ReplayTimestamps.original;
+
+	/**
+	 * Start the replay over once the capture has been played
+	 */
+	private boolean replayLoop = false;
+
+	/**
+	 * The max number of series whose encoded measurement and tags are cached, split evenly between the batchers
+	 * of every shard, node, database and lane. Should be larger than the number of distinct metrics times the
+	 * number of VMs in the foundation
+	 */
+	private int seriesCacheSize = 50000;
+
+	/**
+	 * The precision timestamps are written with (ns, us, ms, s). Spooled batches keep the precision they were
+	 * written with.
+	 */
+	private Precision precision = Precision.ns;
+
+	/**
+	 * Patterns for the names of ValueMetrics to write as integer fields rather than floats, as <tt>~regex</tt>,
+	 * globs with <tt>*</tt> or literals. A field keeps its type within a shard, so only list metrics that have
+	 * not been written as floats yet
+	 */
+	private List<String> integerMetrics = new ArrayList<>();
+
+	/**
+	 * The HTTP client used to write to InfluxDB (rest, reactor)
+	 */
+	private SenderType sender = SenderType.rest;
+
+	/**
+	 * The max number of batches being written at once to each InfluxDB node
+	 */
+	private int maxInFlight = 8;
+
+	/**
+	 * Adapt the batch size and the number of batches in flight to how fast InfluxDB responds: both grow while
+	 * writes are faster than the target latency, and are halved when they are slower or InfluxDB is overloaded
+	 */
+	private boolean adaptive = false;
+
+	/**
+	 * The write latency in ms the adaptive controller aims to stay under
+	 */
+	private long targetLatency = 500L;
+
+	/**
+	 * The smallest batch size the adaptive controller will shrink batches to. Also the step batches grow by.
+	 */
+	private int minBatchSize = 100;
+
+	/**
+	 * The largest batch size the adaptive controller will grow batches to
+	 */
+	private int maxBatchSize = 5000;
+
+	/**
+	 * The max number of points per second written to InfluxDB, over all nodes. Unlimited if 0
+	 */
+	private long maxPointsPerSecond = 0L;
+
+	/**
+	 * The max number of bytes per second written to InfluxDB, over all nodes. Unlimited if 0
+	 */
+	private long maxBytesPerSecond = 0L;
+
+	/**
+	 * The max number of pooled keep-alive connections to InfluxDB used by the reactor sender
+	 */
+	private int maxConnections = 8;
+
+	/**
+	 * Send batches to InfluxDB gzip compressed
+	 */
+	private boolean gzip = false;
+
+	/**
+	 * The gzip compression level, from 1 (fastest) to 9 (smallest)
+	 */
+	private int compressionLevel = 6;
+
 	/**
 	 * The policy to use when backing off retries (exponential, linear, random)
 	 */
@@ -84,6 +350,32 @@ public class NozzleProperties {
 	 */
 	private int maxRetries = 10;
 
+	/**
+	 * Directory to spool batches InfluxDB could not accept to. Spooling is disabled if not set.
+	 */
+	private String spoolDirectory;
+
+	/**
+	 * The max disk space in bytes the spool may use
+	 */
+	private long spoolMaxBytes = 1073741824L;
+
+	/**
+	 * The size in bytes of each memory-mapped spool segment
+	 */
+	private int spoolSegmentBytes = 67108864;
+
+	/**
+	 * The max number of spooled batches replayed per second once InfluxDB is accepting writes again
+	 */
+	private int spoolReplayRate = 10;
+
+	/**
+	 * How often, in ms, to write the nozzle's own metrics to InfluxDB as <tt>nozzle_*</tt> measurements. Disabled
+	 * if 0.
+	 */
+	private long selfMetricsInterval = 0L;
+
 	/**
 	 * Skip SSL validation when connecting to the firehose
 	 */
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.config;
+
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import com.ecsteam.nozzle.influxdb.nozzle.FlowController;
+import com.ecsteam.nozzle.influxdb.nozzle.GzipCompressor;
+import com.ecsteam.nozzle.influxdb.nozzle.InfluxDBSender;
+import com.ecsteam.nozzle.influxdb.nozzle.ReactorInfluxDBSender;
+import com.ecsteam.nozzle.influxdb.nozzle.RestTemplateInfluxDBSender;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Chooses the HTTP client used to write to InfluxDB with <tt>influxdb.nozzle.sender</tt>
+ */
+@Configuration
+@EnableConfigurationProperties(NozzleProperties.class)
+public class SenderConfig {
+
+	@Bean
+	@ConditionalOnProperty(prefix = "influxdb.nozzle", name = "sender", havingValue = "rest", matchIfMissing = true)
+	@Autowired
+	InfluxDBSender restTemplateSender(NozzleProperties properties, MetricsDestination destination,
+			GzipCompressor compressor, FlowController flow) {
+		return new RestTemplateInfluxDBSender(properties, destination, compressor, flow);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "influxdb.nozzle", name = "sender", havingValue = "reactor")
+	@Autowired
+	InfluxDBSender reactorSender(NozzleProperties properties, MetricsDestination destination,
+			GzipCompressor compressor, FlowController flow) {
+		return new ReactorInfluxDBSender(properties, destination, compressor, flow);
+	}
+}
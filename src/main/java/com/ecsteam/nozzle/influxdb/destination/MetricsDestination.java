@@ -15,9 +15,20 @@
 
 package com.ecsteam.nozzle.influxdb.destination;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Return the base URL of InfluxDB
  */
 public interface MetricsDestination {
 	String getInfluxDbHost();
+
+	/**
+	 * @return the base URLs of every InfluxDB node series are partitioned across, which is just
+	 * {@link #getInfluxDbHost()} unless several nodes are configured
+	 */
+	default List<String> getInfluxDbHosts() {
+		return Collections.singletonList(getInfluxDbHost());
+	}
 }
@@ -17,9 +17,12 @@ package com.ecsteam.nozzle.influxdb.destination;
 
 import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
 import lombok.RequiredArgsConstructor;
+import org.springframework.util.CollectionUtils;
+
+import java.util.List;
 
 /**
- * Returns the user-defined influx DB location
+ * Returns the user-defined influx DB location, or locations if <tt>influxdb.nozzle.db-hosts</tt> is set
  */
 @RequiredArgsConstructor
 public class StandaloneInfluxDbDestination implements MetricsDestination {
@@ -27,6 +30,12 @@ public class StandaloneInfluxDbDestination implements MetricsDestination {
 
 	@Override
 	public String getInfluxDbHost() {
-		return properties.getDbHost();
+		return CollectionUtils.isEmpty(properties.getDbHosts()) ? properties.getDbHost() : getInfluxDbHosts().get(0);
+	}
+
+	@Override
+	public List<String> getInfluxDbHosts() {
+		return CollectionUtils.isEmpty(properties.getDbHosts()) ? MetricsDestination.super.getInfluxDbHosts()
+				: properties.getDbHosts();
 	}
 }
@@ -15,24 +15,46 @@
 
 package com.ecsteam.nozzle.influxdb.destination;
 
+import org.springframework.util.CollectionUtils;
+
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * An instance of MetricsDestination that will send information to http://influxdb.{SYSTEM_DOMAIN}, as that
- * is how the influxdb system will be deployed as a tile
+ * is how the influxdb system will be deployed as a tile. If the tile runs several InfluxDB nodes, they are
+ * listed by their hostnames under the system domain, e.g. <tt>influxdb-0,influxdb-1</tt>.
  */
 public class TileDeployedInfluxDbDestination implements MetricsDestination {
 
 	private final String apiEndpoint;
+	private final List<String> nodes;
 
 	public TileDeployedInfluxDbDestination(String apiEndpoint) {
+		this(apiEndpoint, Collections.emptyList());
+	}
+
+	public TileDeployedInfluxDbDestination(String apiEndpoint, List<String> nodes) {
 		this.apiEndpoint = apiEndpoint;
+		this.nodes = nodes;
 	}
 
 	@Override
 	public String getInfluxDbHost() {
-		return String.format("http://influxdb.%s", getSystemDomain());
+		return CollectionUtils.isEmpty(nodes) ? nodeUrl("influxdb") : nodeUrl(nodes.get(0));
+	}
+
+	@Override
+	public List<String> getInfluxDbHosts() {
+		return CollectionUtils.isEmpty(nodes) ? MetricsDestination.super.getInfluxDbHosts()
+				: nodes.stream().map(this::nodeUrl).collect(Collectors.toList());
+	}
+
+	private String nodeUrl(String node) {
+		return node.contains("://") ? node : String.format("http://%s.%s", node, getSystemDomain());
 	}
 
 	private String getSystemDomain() {
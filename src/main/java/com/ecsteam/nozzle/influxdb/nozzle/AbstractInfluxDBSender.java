@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What every {@link InfluxDBSender} needs regardless of the HTTP client it uses: where to write, how to
+ * prepare a batch body, the {@link FlowController} that decides when it may be written, and what to do when
+ * InfluxDB rejects it.
+ *
+ * InfluxDB answers 400 when it cannot parse or store some of the points in a batch, whether or not it wrote
+ * the rest. Rather than lose the whole batch, it is split in half and each half is written on its own, and so
+ * on down to the single points InfluxDB keeps rejecting. Those are logged to
+ * <tt>com.ecsteam.nozzle.influxdb.quarantine</tt> and counted, and the batch counts as delivered. A few bad
+ * points in a batch of <i>n</i> cost a few times log2(<i>n</i>) extra requests. Points InfluxDB already wrote
+ * are written again, which overwrites them with the same values.
+ */
+@RequiredArgsConstructor
+public abstract class AbstractInfluxDBSender implements InfluxDBSender {
+	private static final Logger quarantine = LoggerFactory.getLogger("com.ecsteam.nozzle.influxdb.quarantine");
+
+	private static final int MAX_LOGGED_LINE = 1024;
+
+	/**
+	 * How a batch ended up after all its attempts
+	 */
+	protected enum Outcome {
+		/**
+		 * InfluxDB accepted the batch
+		 */
+		written,
+
+		/**
+		 * InfluxDB rejected (some of) the points in the batch, or the batch as too large
+		 */
+		rejected,
+
+		/**
+		 * InfluxDB could not be reached, kept failing, or refused the write for another reason
+		 */
+		failed
+	}
+
+	private URI uri;
+	private final Map<String, URI> nodeUris = new ConcurrentHashMap<>();
+
+	protected final NozzleProperties properties;
+	protected final MetricsDestination influxDbDestination;
+	protected final GzipCompressor compressor;
+	protected final FlowController flow;
+
+	/**
+	 * Write the batch as a whole, retrying according to the configured backoff policy
+	 */
+	protected abstract CompletableFuture<Outcome> write(Batch batch);
+
+	@Override
+	public CompletableFuture<Boolean> sendBatch(Batch batch) {
+		return write(batch).thenCompose(outcome -> outcome == Outcome.rejected
+				? bisect(batch) : CompletableFuture.completedFuture(outcome == Outcome.written));
+	}
+
+	/**
+	 * Write each half of a rejected batch on its own, or quarantine it if it is a single point
+	 */
+	private CompletableFuture<Boolean> bisect(Batch batch) {
+		Batch[] halves = batch.split();
+		if (halves == null) {
+			quarantine(batch);
+			return CompletableFuture.completedFuture(true);
+		}
+
+		CompletableFuture<Boolean> first = sendBatch(halves[0]);
+		CompletableFuture<Boolean> second = sendBatch(halves[1]);
+
+		// only release the halves once neither is being written any more
+		return CompletableFuture.allOf(first, second).handle((done, error) -> {
+			for (Batch half : halves) {
+				batch.merge(half);
+				half.release();
+			}
+
+			return error == null && first.join() && second.join();
+		});
+	}
+
+	private void quarantine(Batch batch) {
+		batch.quarantined(Math.max(1, batch.getPoints()));
+
+		int length = batch.getBytes();
+		while (length > 0 && batch.getBuffer().array()[length - 1] == '\n') {
+			--length;
+		}
+
+		quarantine.warn("InfluxDB rejected {}: {}", new String(batch.getBuffer().array(), 0,
+				Math.min(length, MAX_LOGGED_LINE), StandardCharsets.UTF_8), batch.getError());
+	}
+
+	/**
+	 * Compress the batch if configured to. This is done once per batch, never per attempt.
+	 */
+	protected void prepare(Batch batch) {
+		if (properties.isGzip()) {
+			batch.compress(compressor);
+		}
+	}
+
+	/**
+	 * @return true for the statuses InfluxDB answers with when it is overloaded
+	 */
+	protected static boolean isOverloaded(int status) {
+		return status == 429 || status == 503;
+	}
+
+	/**
+	 * @return true for overloaded and server errors, which are worth another attempt
+	 */
+	protected static boolean isRetryable(int status) {
+		return status == 429 || status >= 500;
+	}
+
+	/**
+	 * @return true for the statuses InfluxDB answers with when it cannot write some points, or the batch is
+	 * too large, which are worth splitting the batch for
+	 */
+	protected static boolean isRejected(int status) {
+		return status == 400 || status == 413;
+	}
+
+	protected URI getUri() {
+		if (uri == null) {
+			uri = URI.create(String.format("%s/write?db=%s%s", influxDbDestination.getInfluxDbHost(),
+					properties.getDbName(), properties.getPrecision().getQueryParameter()));
+		}
+
+		return uri;
+	}
+
+	/**
+	 * @return the write URL of the node and database the batch is destined for, or of the default destination, in
+	 * the precision the batch was encoded in
+	 */
+	protected URI getUri(Batch batch) {
+		String destination = batch.getDestination();
+		RouteTarget target = batch.getTarget();
+		Precision precision = batch.getPrecision() == null ? properties.getPrecision() : batch.getPrecision();
+		if (destination == null && target == null && precision == properties.getPrecision()) {
+			return getUri();
+		}
+
+		return nodeUris.computeIfAbsent(destination + " " + target + " " + precision, key -> {
+			String host = destination == null ? influxDbDestination.getInfluxDbHost() : destination;
+			if (target == null) {
+				return URI.create(String.format("%s/write?db=%s%s", host, properties.getDbName(),
+						precision.getQueryParameter()));
+			}
+
+			return URI.create(String.format("%s/write?db=%s%s%s", host, target.getDatabase(),
+					target.getRetentionPolicy() == null ? "" : "&rp=" + target.getRetentionPolicy(),
+					precision.getQueryParameter()));
+		});
+	}
+}
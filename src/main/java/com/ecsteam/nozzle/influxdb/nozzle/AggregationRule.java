@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import org.springframework.util.PatternMatchUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rule for pre-aggregating ValueMetrics, written as <tt>[origin/]name=window</tt>, where origin and name are
+ * simple patterns that may contain <tt>*</tt> and the window is in milliseconds. For example,
+ * <tt>gorouter/*=10000</tt> aggregates every gorouter metric over 10 second windows.
+ */
+public class AggregationRule {
+	private final String origin;
+	private final String name;
+
+	@Getter
+	private final long windowNanos;
+
+	AggregationRule(String origin, String name, long windowMillis) {
+		this.origin = origin;
+		this.name = name;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+
+	public boolean matches(String origin, String name) {
+		return (this.origin == null || (origin != null && PatternMatchUtils.simpleMatch(this.origin, origin)))
+				&& name != null && PatternMatchUtils.simpleMatch(this.name, name);
+	}
+
+	public static AggregationRule parse(String rule) {
+		int equals = rule.lastIndexOf('=');
+		if (equals <= 0) {
+			throw new IllegalArgumentException("Aggregation rules look like [origin/]name=windowMillis, not " + rule);
+		}
+
+		String pattern = rule.substring(0, equals).trim();
+		long window = Long.parseLong(rule.substring(equals + 1).trim());
+		if (window <= 0) {
+			throw new IllegalArgumentException("Aggregation window must be positive in " + rule);
+		}
+
+		int slash = pattern.indexOf('/');
+		return slash < 0 ? new AggregationRule(null, pattern, window)
+				: new AggregationRule(pattern.substring(0, slash), pattern.substring(slash + 1), window);
+	}
+
+	public static List<AggregationRule> parse(List<String> rules) {
+		List<AggregationRule> parsed = new ArrayList<>();
+		if (rules != null) {
+			rules.forEach(rule -> parsed.add(parse(rule)));
+		}
+
+		return parsed;
+	}
+}
@@ -15,9 +15,32 @@
 
 package com.ecsteam.nozzle.influxdb.nozzle;
 
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * Supported backoff policiesx
  */
 public enum BackoffPolicy {
 	exponential, linear, random;
+
+	/**
+	 * Compute the wait before a retry the same way the matching spring-retry policy does, for senders that
+	 * schedule their own retries
+	 *
+	 * @param attempt    the attempt that just failed, starting at 1
+	 * @param minBackoff the min backoff time in ms
+	 * @param maxBackoff the max backoff time in ms
+	 * @return the time to wait in ms
+	 */
+	public long delay(int attempt, long minBackoff, long maxBackoff) {
+		switch (this) {
+			case linear:
+				return minBackoff;
+			case random:
+				return minBackoff + ThreadLocalRandom.current().nextLong(Math.max(1L, maxBackoff - minBackoff));
+			case exponential:
+			default:
+				return Math.min(maxBackoff, minBackoff << Math.min(attempt - 1, 30));
+		}
+	}
 }
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A batch of newline-separated line protocol, encoded straight into a pooled buffer. The buffer is sent as the
+ * HTTP body as-is. Every flush of the batcher produces a new instance, so a batch is never modified once it has
+ * been handed to the sender, and the sender must {@link #release()} it when it is done.
+ */
+public class Batch {
+	private final BufferPool pool;
+
+	@Getter
+	private final LineProtocolBuffer buffer;
+
+	@Getter
+	private int points;
+
+	private LineProtocolBuffer compressed;
+
+	/**
+	 * The base URL of the InfluxDB node the batch is written to, or null for the default destination
+	 */
+	@Getter
+	@Setter
+	private String destination;
+
+	/**
+	 * The database the batch is written to, or null for <tt>influxdb.nozzle.db-name</tt>
+	 */
+	@Getter
+	@Setter
+	private RouteTarget target;
+
+	/**
+	 * The precision the batch's timestamps are encoded in, or null for <tt>influxdb.nozzle.precision</tt>. Only
+	 * set on batches replayed from the spool, which may have been written with another one.
+	 */
+	@Getter
+	@Setter
+	private Precision precision;
+
+	/**
+	 * The priority lane the batch was flushed from, or null. Not spooled; replayed batches have no lane.
+	 */
+	@Getter
+	@Setter
+	private PriorityLane lane;
+
+	/**
+	 * The timestamp, in nanoseconds, of the oldest envelope encoded into the batch
+	 */
+	@Getter
+	private long oldestTimestamp = Long.MAX_VALUE;
+
+	/**
+	 * How many times the sender has tried to write the batch
+	 */
+	@Getter
+	private int attempts;
+
+	/**
+	 * The error InfluxDB gave for the last attempt, if it gave one
+	 */
+	@Getter
+	@Setter
+	private String error;
+
+	/**
+	 * How many points InfluxDB rejected, and were left out of the batch
+	 */
+	@Getter
+	private int quarantined;
+
+	public Batch(BufferPool pool) {
+		this.pool = pool;
+		this.buffer = pool.acquire();
+	}
+
+	void pointAdded() {
+		++points;
+	}
+
+	void pointsAdded(int count) {
+		points += count;
+	}
+
+	void envelopeAdded(long timestamp) {
+		if (timestamp > 0 && timestamp < oldestTimestamp) {
+			oldestTimestamp = timestamp;
+		}
+	}
+
+	void attempted() {
+		++attempts;
+	}
+
+	void quarantined(int count) {
+		quarantined += count;
+	}
+
+	/**
+	 * Split the line protocol into two new batches for the same destination, with half the lines each
+	 *
+	 * @return the two halves, or null if there are fewer than two lines to split
+	 */
+	Batch[] split() {
+		byte[] lines = buffer.array();
+		int length = buffer.length();
+
+		int count = 0;
+		for (int i = 0; i < length; ++i) {
+			if (lines[i] == '\n' || i == length - 1) {
+				++count;
+			}
+		}
+
+		if (count < 2) {
+			return null;
+		}
+
+		int middle = 0;
+		for (int seen = 0; seen < count / 2; ++middle) {
+			if (lines[middle] == '\n') {
+				++seen;
+			}
+		}
+
+		return new Batch[] { slice(0, middle, count / 2), slice(middle, length, count - count / 2) };
+	}
+
+	private Batch slice(int from, int to, int lines) {
+		Batch half = new Batch(pool);
+		half.buffer.write(buffer.array(), from, to - from);
+		half.points = lines;
+		half.destination = destination;
+		half.target = target;
+		half.precision = precision;
+		half.lane = lane;
+		half.oldestTimestamp = oldestTimestamp;
+		return half;
+	}
+
+	/**
+	 * Count the attempts and quarantined points of a half the batch was split into towards the batch
+	 */
+	void merge(Batch half) {
+		attempts += half.attempts;
+		quarantined += half.quarantined;
+	}
+
+	public int getBytes() {
+		return buffer.length();
+	}
+
+	public boolean isEmpty() {
+		return points == 0;
+	}
+
+	/**
+	 * Gzip the batch, unless that has already been done. Retries send the same compressed body.
+	 */
+	public void compress(GzipCompressor compressor) {
+		if (compressed == null) {
+			compressed = pool.acquire();
+			compressor.compress(buffer, compressed);
+		}
+	}
+
+	public boolean isCompressed() {
+		return compressed != null;
+	}
+
+	/**
+	 * @return the compressed buffer if the batch has been compressed, otherwise the encoded line protocol
+	 */
+	public LineProtocolBuffer getBody() {
+		return compressed == null ? buffer : compressed;
+	}
+
+	/**
+	 * Return the buffers to the pool. The batch must not be used afterwards.
+	 */
+	public void release() {
+		pool.release(buffer);
+
+		if (compressed != null) {
+			pool.release(compressed);
+		}
+	}
+}
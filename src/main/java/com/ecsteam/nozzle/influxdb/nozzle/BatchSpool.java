@@ -0,0 +1,521 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead spool for batches InfluxDB could not accept. Batches the sender gave up on are appended to
+ * memory-mapped segment files on disk, up to a configured disk budget. Once InfluxDB accepts writes again, a
+ * background replayer drains the spool oldest first, one batch at a time and at a limited rate, so replaying
+ * never takes more than one of the sender's slots away from live traffic.
+ *
+ * Each segment starts with a header holding a magic number, the format version and the offset of the next record
+ * to replay, so a restarted nozzle picks up where it left off. Records are
+ * <tt>[length][points][crc32][precision][destination length][destination][target length][target][line
+ * protocol]</tt>. The precision is the one the timestamps were encoded in, so they mean the same after a restart
+ * with another <tt>influxdb.nozzle.precision</tt>; the destination is the InfluxDB node the batch was meant for and
+ * the target the database it was routed to, so a replayed batch goes back to where its series are stored. A zero
+ * length marks the end of the written part of a segment. Segments of another version, or that cannot be read at
+ * all, are renamed with a <tt>.rejected</tt> suffix and left for an operator to look at.
+ *
+ * The spool is disabled unless <tt>influxdb.nozzle.spool-directory</tt> is set.
+ */
+@Component
+@Slf4j
+public class BatchSpool implements PublicMetrics {
+	private static final int MAGIC = 0x53504f4c;
+	private static final int VERSION = 2;
+	private static final int SEGMENT_HEADER = 12;
+	private static final int RECORD_HEADER = 12;
+	private static final String SEGMENT_PREFIX = "spool-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String REJECTED_SUFFIX = ".rejected";
+	private static final Precision[] PRECISIONS = Precision.values();
+
+	private final NozzleProperties properties;
+	private final InfluxDBSender sender;
+	private final BufferPool pool = new BufferPool(2, 64 * 1024, 16 * 1024 * 1024);
+
+	private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+	private Path directory;
+	private long nextSequence;
+
+	private final LongAdder spooled = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	private volatile boolean running;
+	private Thread replayer;
+
+	@Autowired
+	public BatchSpool(NozzleProperties properties, InfluxDBSender sender) {
+		this.properties = properties;
+		this.sender = sender;
+	}
+
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	@PostConstruct
+	public void open() throws IOException {
+		if (!StringUtils.hasText(properties.getSpoolDirectory())) {
+			return;
+		}
+
+		directory = Paths.get(properties.getSpoolDirectory());
+		Files.createDirectories(directory);
+
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			stream.forEach(files::add);
+		}
+		Collections.sort(files);
+
+		for (Path file : files) {
+			long sequence;
+			try {
+				sequence = sequenceOf(file);
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring spool file {} with no sequence number", file);
+				continue;
+			}
+
+			// new segments must never reuse a name that is taken, whether or not the segment behind it is usable
+			nextSequence = Math.max(nextSequence, sequence + 1);
+
+			Segment segment = Segment.open(file, sequence);
+			if (segment == null) {
+				quarantine(file);
+				continue;
+			}
+
+			segments.add(segment);
+		}
+
+		log.info("Spooling undeliverable batches to {} ({} existing segments, budget {} bytes)", directory,
+				segments.size(), properties.getSpoolMaxBytes());
+
+		running = true;
+		replayer = new Thread(this::replay, "influxdb-spool-replayer");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	@PreDestroy
+	public void close() {
+		running = false;
+
+		if (replayer != null) {
+			replayer.interrupt();
+			try {
+				replayer.join(5000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (this) {
+			segments.forEach(Segment::force);
+		}
+	}
+
+	/**
+	 * Write a batch to the end of the spool. Called from whichever thread completes a failed send, so this
+	 * holds the spool's lock; it is only ever on the failure path.
+	 *
+	 * @return false if the batch did not fit into the disk budget and has been dropped
+	 */
+	public synchronized boolean append(Batch batch) {
+		LineProtocolBuffer body = batch.getBuffer();
+		byte[] destination = batch.getDestination() == null ? new byte[0]
+				: batch.getDestination().getBytes(StandardCharsets.UTF_8);
+		byte[] target = batch.getTarget() == null ? new byte[0]
+				: batch.getTarget().toString().getBytes(StandardCharsets.UTF_8);
+		Precision precision = batch.getPrecision() == null ? properties.getPrecision() : batch.getPrecision();
+		int recordSize = RECORD_HEADER + 5 + destination.length + target.length + body.length();
+
+		if (SEGMENT_HEADER + recordSize + 4 > properties.getSpoolSegmentBytes()) {
+			log.error("Dropping batch of {} bytes, which is larger than a spool segment", body.length());
+			dropped.increment();
+			return false;
+		}
+
+		Segment tail = segments.peekLast();
+		if (tail == null || tail.remaining() < recordSize + 4) {
+			if ((long) (segments.size() + 1) * properties.getSpoolSegmentBytes() > properties.getSpoolMaxBytes()) {
+				log.error("Spool is full, dropping batch of {} points", batch.getPoints());
+				dropped.increment();
+				return false;
+			}
+
+			try {
+				tail = Segment.create(directory.resolve(segmentName(nextSequence)), nextSequence,
+						properties.getSpoolSegmentBytes());
+				++nextSequence;
+				segments.add(tail);
+			} catch (IOException e) {
+				log.error("Could not create spool segment, dropping batch: {}", e.getMessage());
+				dropped.increment();
+				return false;
+			}
+		}
+
+		tail.append(precision, destination, target, body, batch.getPoints());
+		spooled.increment();
+
+		log.debug("Spooled batch of {} points", batch.getPoints());
+		return true;
+	}
+
+	/**
+	 * Replay spooled batches, oldest first, until the spool is closed
+	 */
+	private void replay() {
+		long pause = TimeUnit.SECONDS.toMillis(1) / Math.max(1, properties.getSpoolReplayRate());
+		int failures = 0;
+
+		while (running) {
+			try {
+				Batch batch = next();
+				if (batch == null) {
+					Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+					continue;
+				}
+
+				boolean delivered;
+				try {
+					delivered = sender.sendBatch(batch).get();
+				} catch (ExecutionException e) {
+					delivered = false;
+				} finally {
+					batch.release();
+				}
+
+				if (delivered) {
+					advance();
+					replayed.increment();
+					failures = 0;
+					Thread.sleep(pause);
+				} else {
+					// points InfluxDB rejects are quarantined by the sender, so false only ever means InfluxDB is
+					// unreachable or overloaded; leave the batch where it is, however long that takes
+					if (++failures % properties.getMaxRetries() == 0) {
+						log.warn("InfluxDB has not accepted a spooled batch in {} attempts, still waiting", failures);
+					}
+					Thread.sleep(properties.getMaxBackoff());
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (RuntimeException e) {
+				log.error("Error replaying spooled batch: {}", e.getMessage());
+				try {
+					Thread.sleep(properties.getMaxBackoff());
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the oldest record without consuming it
+	 */
+	private synchronized Batch next() {
+		while (!segments.isEmpty()) {
+			Segment head = segments.peekFirst();
+			Batch batch = head.peek(pool);
+
+			if (batch != null) {
+				return batch;
+			}
+
+			if (head == segments.peekLast()) {
+				// drained, but still being written to
+				return null;
+			}
+
+			segments.removeFirst();
+			head.delete();
+		}
+
+		return null;
+	}
+
+	private synchronized void advance() {
+		Segment head = segments.peekFirst();
+		if (head != null) {
+			head.advance();
+		}
+	}
+
+	public synchronized long getSpooledBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.pendingBytes();
+		}
+
+		return bytes;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.asList(
+				new Metric<>("nozzle.spool.spooled", spooled.sum()),
+				new Metric<>("nozzle.spool.replayed", replayed.sum()),
+				new Metric<>("nozzle.spool.dropped", dropped.sum()),
+				new Metric<>("nozzle.spool.pending-bytes", isEnabled() ? getSpooledBytes() : 0L));
+	}
+
+	/**
+	 * Move a segment that cannot be read out of the way, so it is neither replayed nor counted against the budget
+	 * but still there to look at
+	 */
+	private static void quarantine(Path file) {
+		Path rejected = file.resolveSibling(file.getFileName() + REJECTED_SUFFIX);
+		try {
+			Files.move(file, rejected, StandardCopyOption.REPLACE_EXISTING);
+			log.warn("Moved unreadable spool segment {} to {}", file, rejected);
+		} catch (IOException e) {
+			log.warn("Ignoring unreadable spool segment {}, which could not be moved: {}", file, e.getMessage());
+		}
+	}
+
+	private static String segmentName(long sequence) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+	}
+
+	private static long sequenceOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * One memory-mapped segment file. Not thread safe; guarded by the spool's lock.
+	 */
+	private static class Segment {
+		private final Path path;
+		private final long sequence;
+		private final MappedByteBuffer map;
+
+		private int readPosition;
+		private int writePosition;
+
+		private Segment(Path path, long sequence, MappedByteBuffer map) {
+			this.path = path;
+			this.sequence = sequence;
+			this.map = map;
+		}
+
+		static Segment create(Path path, long sequence, int size) throws IOException {
+			Segment segment = new Segment(path, sequence, map(path, size, StandardOpenOption.CREATE_NEW));
+			segment.map.putInt(0, MAGIC);
+			segment.map.putInt(4, VERSION);
+			segment.setReadPosition(SEGMENT_HEADER);
+			segment.writePosition = SEGMENT_HEADER;
+
+			return segment;
+		}
+
+		static Segment open(Path path, long sequence) {
+			try {
+				Segment segment = new Segment(path, sequence, map(path, Files.size(path)));
+				if (segment.map.getInt(0) != MAGIC || segment.map.getInt(4) != VERSION) {
+					return null;
+				}
+
+				segment.readPosition = segment.map.getInt(8);
+
+				// find the end of what has been written so far
+				int position = SEGMENT_HEADER;
+				while (position + RECORD_HEADER <= segment.map.capacity()) {
+					int length = segment.map.getInt(position);
+					if (length <= 0 || position + RECORD_HEADER + length > segment.map.capacity()) {
+						break;
+					}
+					position += RECORD_HEADER + length;
+				}
+				segment.writePosition = position;
+
+				return segment;
+			} catch (IOException | RuntimeException e) {
+				return null;
+			}
+		}
+
+		private static MappedByteBuffer map(Path path, long size, StandardOpenOption... extra) throws IOException {
+			List<StandardOpenOption> options = new ArrayList<>(Arrays.asList(extra));
+			options.add(StandardOpenOption.READ);
+			options.add(StandardOpenOption.WRITE);
+
+			try (FileChannel channel = FileChannel.open(path, options.toArray(new StandardOpenOption[0]))) {
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		int remaining() {
+			return map.capacity() - writePosition;
+		}
+
+		long pendingBytes() {
+			return writePosition - readPosition;
+		}
+
+		void append(Precision precision, byte[] destination, byte[] target, LineProtocolBuffer body, int points) {
+			CRC32 crc = new CRC32();
+			crc.update(precision.ordinal());
+			crc.update(destination);
+			crc.update(target);
+			crc.update(body.array(), 0, body.length());
+
+			// write the payload before the length, so a crash never leaves a length pointing at garbage
+			int length = 5 + destination.length + target.length + body.length();
+			map.position(writePosition + RECORD_HEADER);
+			map.put((byte) precision.ordinal());
+			map.putShort((short) destination.length);
+			map.put(destination);
+			map.putShort((short) target.length);
+			map.put(target);
+			map.put(body.array(), 0, body.length());
+			map.putInt(writePosition + 4, points);
+			map.putInt(writePosition + 8, (int) crc.getValue());
+			map.putInt(writePosition, length);
+
+			writePosition += RECORD_HEADER + length;
+		}
+
+		/**
+		 * @return the record at the read position as a batch, or null if there is none
+		 */
+		Batch peek(BufferPool pool) {
+			while (readPosition < writePosition) {
+				int length = map.getInt(readPosition);
+				int points = map.getInt(readPosition + 4);
+				int checksum = map.getInt(readPosition + 8);
+
+				CRC32 crc = new CRC32();
+				map.position(readPosition + RECORD_HEADER);
+
+				if (length <= 0 || readPosition + RECORD_HEADER + length > writePosition) {
+					// nothing after a broken length can be found again
+					log.warn("Skipping the rest of corrupt spool segment {}", path);
+					setReadPosition(writePosition);
+					return null;
+				}
+
+				int precision = map.get();
+				length -= 1;
+
+				byte[] destination = new byte[length >= 2 ? map.getShort() & 0xffff : 0];
+				length -= 2 + destination.length;
+				byte[] target = null;
+				if (length >= 2) {
+					map.get(destination);
+					target = new byte[map.getShort() & 0xffff];
+					length -= 2 + target.length;
+				}
+
+				if (target == null || length < 0 || precision < 0 || precision >= PRECISIONS.length) {
+					log.warn("Skipping corrupt record in spool segment {}", path);
+					advance();
+					continue;
+				}
+
+				map.get(target);
+				crc.update(precision);
+				crc.update(destination);
+				crc.update(target);
+
+				Batch batch = new Batch(pool);
+				LineProtocolBuffer buffer = batch.getBuffer();
+				buffer.ensureCapacity(length);
+
+				map.get(buffer.array(), 0, length);
+				buffer.advance(length);
+				crc.update(buffer.array(), 0, length);
+
+				if ((int) crc.getValue() == checksum) {
+					batch.pointsAdded(points);
+					batch.setPrecision(PRECISIONS[precision]);
+					if (destination.length > 0) {
+						batch.setDestination(new String(destination, StandardCharsets.UTF_8));
+					}
+					if (target.length > 0) {
+						batch.setTarget(RouteTarget.parse(new String(target, StandardCharsets.UTF_8)));
+					}
+					return batch;
+				}
+
+				log.warn("Skipping corrupt record in spool segment {}", path);
+				batch.release();
+				advance();
+			}
+
+			return null;
+		}
+
+		void advance() {
+			setReadPosition(readPosition + RECORD_HEADER + map.getInt(readPosition));
+		}
+
+		private void setReadPosition(int position) {
+			readPosition = position;
+			map.putInt(8, position);
+		}
+
+		void force() {
+			map.force();
+		}
+
+		void delete() {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				log.warn("Could not delete drained spool segment {}: {}", path, e.getMessage());
+			}
+		}
+	}
+}
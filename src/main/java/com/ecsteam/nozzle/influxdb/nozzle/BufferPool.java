@@ -0,0 +1,51 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * A bounded pool of {@link LineProtocolBuffer}s. Buffers are taken by the batcher when it opens a batch and
+ * given back by the sender once the batch has been delivered (or given up on).
+ */
+public class BufferPool {
+	private final RingBuffer<LineProtocolBuffer> buffers;
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+
+	/**
+	 * @param poolSize            how many idle buffers to keep around
+	 * @param initialCapacity     the size of a newly allocated buffer
+	 * @param maxRetainedCapacity buffers that have grown past this size are left to the garbage collector
+	 */
+	public BufferPool(int poolSize, int initialCapacity, int maxRetainedCapacity) {
+		this.buffers = new RingBuffer<>(poolSize);
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+	}
+
+	public LineProtocolBuffer acquire() {
+		LineProtocolBuffer buffer = buffers.poll();
+		return buffer == null ? new LineProtocolBuffer(initialCapacity) : buffer;
+	}
+
+	public void release(LineProtocolBuffer buffer) {
+		if (buffer.capacity() > maxRetainedCapacity) {
+			return;
+		}
+
+		buffer.reset();
+		buffers.offer(buffer);
+	}
+}
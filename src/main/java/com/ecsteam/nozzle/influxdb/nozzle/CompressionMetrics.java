@@ -0,0 +1,53 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes in and out of the {@link GzipCompressor}, published on the actuator <tt>/metrics</tt> endpoint as
+ * <tt>nozzle.gzip.*</tt>
+ */
+@Component
+public class CompressionMetrics implements PublicMetrics {
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+
+	void compressed(int uncompressed, int compressed) {
+		batches.increment();
+		uncompressedBytes.add(uncompressed);
+		compressedBytes.add(compressed);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		long uncompressed = uncompressedBytes.sum();
+		long compressed = compressedBytes.sum();
+
+		return Arrays.asList(
+				new Metric<>("nozzle.gzip.batches", batches.sum()),
+				new Metric<>("nozzle.gzip.uncompressed-bytes", uncompressed),
+				new Metric<>("nozzle.gzip.compressed-bytes", compressed),
+				new Metric<>("nozzle.gzip.ratio", compressed == 0 ? 0.0 : (double) uncompressed / compressed));
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The buckets of {@link LatencyHistogram}, recorded into from any number of threads without locking. Buckets are
+ * atomic counters, and the count, sum and max are striped, so threads only contend when they record into the
+ * same bucket at the same time. Reading while others record gives a view that may be a few values behind.
+ *
+ * Values are kept for a sliding window rather than forever: they go into the current interval, which becomes the
+ * previous one after a window's time, and reads cover both. A spike therefore shows in the next read, however
+ * long the nozzle has been up, and is gone again within two windows.
+ */
+class ConcurrentHistogram {
+	static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	private final long windowNanos;
+	private final AtomicLong rotateAt;
+	private volatile Interval current = new Interval();
+	private volatile Interval previous = new Interval();
+
+	ConcurrentHistogram() {
+		this(WINDOW_NANOS);
+	}
+
+	ConcurrentHistogram(long windowNanos) {
+		this.windowNanos = windowNanos;
+		this.rotateAt = new AtomicLong(System.nanoTime() + windowNanos);
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		rotate();
+		current.record(value);
+	}
+
+	long getCount() {
+		rotate();
+		return previous.count.sum() + current.count.sum();
+	}
+
+	long getMax() {
+		rotate();
+		return Math.max(previous.max.get(), current.max.get());
+	}
+
+	double getMean() {
+		rotate();
+		Interval last = previous;
+		Interval now = current;
+
+		long n = last.count.sum() + now.count.sum();
+		return n == 0 ? 0 : (double) (last.sum.sum() + now.sum.sum()) / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest value equivalent to the value at the percentile, never more than the max
+	 */
+	long valueAtPercentile(double percentile) {
+		rotate();
+		Interval last = previous;
+		Interval now = current;
+
+		long total = 0;
+		for (int i = 0; i < now.counts.length(); ++i) {
+			total += last.counts.get(i) + now.counts.get(i);
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		long highest = Math.max(last.max.get(), now.max.get());
+
+		for (int i = 0; i < now.counts.length(); ++i) {
+			seen += last.counts.get(i) + now.counts.get(i);
+			if (seen >= target) {
+				return Math.min(highest, LatencyHistogram.highestValueAt(i));
+			}
+		}
+
+		return highest;
+	}
+
+	/**
+	 * Start a new interval once the current one is a window old. Whoever gets there first swaps, the others
+	 * carry on with whichever interval they see.
+	 */
+	private void rotate() {
+		long now = System.nanoTime();
+		long at = rotateAt.get();
+		if (now - at < 0 || !rotateAt.compareAndSet(at, now + windowNanos)) {
+			return;
+		}
+
+		Interval last = current;
+		current = new Interval();
+		// nothing was recorded for a whole window, so what came before is older than that
+		previous = now - at >= windowNanos ? new Interval() : last;
+	}
+
+	private static class Interval {
+		private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.indexOf(Long.MAX_VALUE) + 1);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		void record(long value) {
+			counts.incrementAndGet(LatencyHistogram.indexOf(value));
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns series to InfluxDB nodes. Every node is placed on a ring of 64-bit hashes at many points (virtual
+ * nodes), and a series belongs to the node at the first point clockwise of its own hash. The points spread the
+ * series evenly, and adding or removing a node only moves the series between it and its neighbours instead of
+ * reshuffling all of them.
+ */
+class ConsistentHashRing {
+	static final int VIRTUAL_NODES = 128;
+
+	private final long[] points;
+	private final int[] owners;
+
+	ConsistentHashRing(List<String> nodes) {
+		this(nodes, VIRTUAL_NODES);
+	}
+
+	ConsistentHashRing(List<String> nodes, int virtualNodes) {
+		long[][] placed = new long[nodes.size() * virtualNodes][];
+		for (int node = 0; node < nodes.size(); ++node) {
+			for (int i = 0; i < virtualNodes; ++i) {
+				placed[node * virtualNodes + i] = new long[] { HyperLogLog.hash(nodes.get(node) + "#" + i), node };
+			}
+		}
+
+		Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+
+		this.points = new long[placed.length];
+		this.owners = new int[placed.length];
+		for (int i = 0; i < placed.length; ++i) {
+			points[i] = placed[i][0];
+			owners[i] = (int) placed[i][1];
+		}
+	}
+
+	/**
+	 * @return the index, in the list the ring was built from, of the node that owns the hash
+	 */
+	int nodeOf(long hash) {
+		int i = Arrays.binarySearch(points, hash);
+		if (i < 0) {
+			i = -i - 1;
+		}
+
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * Spread a 32-bit series hash over the whole ring
+	 */
+	static long mix(int hash) {
+		long h = hash;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * The last total written for every counter series, so counters that have not moved can be skipped. Series are
+ * identified by a 64-bit hash of their encoded prefix, and kept in an open-addressing table of primitive
+ * arrays, so tracking a counter costs no allocation. Only used by one thread.
+ *
+ * Counter series come and go with app instances, so whenever the table fills up, series not written for a few
+ * heartbeats are evicted before it is grown. That loses nothing: such a series would be written on its next
+ * update anyway, heartbeat expired.
+ */
+public class CounterState {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int EVICT_AFTER_HEARTBEATS = 3;
+
+	private final long heartbeatNanos;
+	private final long evictNanos;
+	private long latest = Long.MIN_VALUE;
+
+	private long[] series;
+	private long[] totals;
+	private long[] written;
+	private int size;
+
+	public CounterState(long heartbeatNanos) {
+		this.heartbeatNanos = heartbeatNanos;
+		this.evictNanos = heartbeatNanos * EVICT_AFTER_HEARTBEATS;
+		allocate(1024);
+	}
+
+	/**
+	 * Record a counter's total, unless it has not changed since the last write and the heartbeat has not
+	 * expired
+	 *
+	 * @param prefix    the encoded series prefix
+	 * @param total     the counter's total
+	 * @param timestamp the envelope timestamp, in nanoseconds
+	 * @return true if the counter should be written
+	 */
+	public boolean update(byte[] prefix, long total, long timestamp) {
+		long key = hash(prefix);
+		int slot = find(key);
+		latest = Math.max(latest, timestamp);
+
+		if (series[slot] == key) {
+			if (totals[slot] == total && timestamp - written[slot] < heartbeatNanos) {
+				return false;
+			}
+		} else {
+			if (size + 1 > series.length * 3 / 4) {
+				rebuild();
+				slot = find(key);
+			}
+
+			series[slot] = key;
+			++size;
+		}
+
+		totals[slot] = total;
+		written[slot] = timestamp;
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the slot holding the key, or the empty slot it belongs in
+	 */
+	private int find(long key) {
+		int mask = series.length - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+
+		while (series[slot] != 0 && series[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/**
+	 * Evict the series not written for a few heartbeats, and double the table if it would still be over half
+	 * full
+	 */
+	private void rebuild() {
+		long[] oldSeries = series;
+		long[] oldTotals = totals;
+		long[] oldWritten = written;
+
+		int live = 0;
+		for (int i = 0; i < oldSeries.length; ++i) {
+			if (oldSeries[i] != 0 && latest - oldWritten[i] < evictNanos) {
+				++live;
+			}
+		}
+
+		allocate(live + 1 > oldSeries.length / 2 ? oldSeries.length * 2 : oldSeries.length);
+
+		for (int i = 0; i < oldSeries.length; ++i) {
+			if (oldSeries[i] != 0 && latest - oldWritten[i] < evictNanos) {
+				int slot = find(oldSeries[i]);
+				series[slot] = oldSeries[i];
+				totals[slot] = oldTotals[i];
+				written[slot] = oldWritten[i];
+			}
+		}
+
+		size = live;
+	}
+
+	/**
+	 * @return the number of slots in the table
+	 */
+	int capacity() {
+		return series.length;
+	}
+
+	private void allocate(int capacity) {
+		series = new long[capacity];
+		totals = new long[capacity];
+		written = new long[capacity];
+	}
+
+	/**
+	 * 64-bit FNV-1a. Zero marks an empty slot, so it is never returned.
+	 */
+	static long hash(byte[] bytes) {
+		long hash = FNV_OFFSET;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= FNV_PRIME;
+		}
+
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which database each envelope is written to, from the <tt>influxdb.nozzle.routes</tt>
+ * {@link RouteRule}s. The first rule that matches decides; envelopes no rule matches go to
+ * <tt>influxdb.nozzle.db-name</tt>.
+ *
+ * Every target is numbered, the default being 0, and the {@link InfluxDBWriter} keeps separate batchers for
+ * each, whose batches have their own in-flight budget in the {@link FlowController}. A database that stalls
+ * then only holds back the envelopes routed to it.
+ *
+ * The target of a series is worked out the first time it is seen and cached by its {@link SeriesKey}, so for
+ * most envelopes routing is a lookup. Thread safe.
+ */
+@Component
+@Slf4j
+public class DatabaseRouter implements PublicMetrics {
+	/**
+	 * Stop caching decisions beyond this many series, and match the rules for the rest every time
+	 */
+	private static final int MAX_CACHED = 100_000;
+
+	private static final ThreadLocal<SeriesKey> PROBE = ThreadLocal.withInitial(SeriesKey::new);
+
+	private final List<RouteRule> rules = new ArrayList<>();
+	private final List<Integer> ruleTargets = new ArrayList<>();
+	private final List<RouteTarget> targets = new ArrayList<>();
+	private final List<LongAdder> routed = new ArrayList<>();
+
+	private final ConcurrentHashMap<SeriesKey, Integer> decisions = new ConcurrentHashMap<>();
+	private final AtomicInteger cached = new AtomicInteger();
+
+	@Autowired
+	public DatabaseRouter(NozzleProperties properties) {
+		// target 0 is the configured database itself
+		targets.add(null);
+		routed.add(new LongAdder());
+
+		RouteTarget defaultTarget = new RouteTarget(properties.getDbName(), null);
+		for (String text : properties.getRoutes()) {
+			RouteRule rule = RouteRule.parse(text);
+
+			int target = rule.getTarget().equals(defaultTarget) ? 0 : targets.indexOf(rule.getTarget());
+			if (target < 0) {
+				target = targets.size();
+				targets.add(rule.getTarget());
+				routed.add(new LongAdder());
+			}
+
+			rules.add(rule);
+			ruleTargets.add(target);
+
+			log.info("Route {}: {}", rules.size() - 1, rule);
+		}
+	}
+
+	/**
+	 * @return every target by its number, with null for the default database
+	 */
+	public List<RouteTarget> getTargets() {
+		return Collections.unmodifiableList(targets);
+	}
+
+	/**
+	 * @return the number of the target the envelope is written to
+	 */
+	public int route(Envelope envelope) {
+		if (rules.isEmpty()) {
+			return 0;
+		}
+
+		SeriesKey probe = PROBE.get().set(envelope);
+		Integer target = decisions.get(probe);
+
+		if (target == null) {
+			target = match(envelope);
+
+			if (cached.get() < MAX_CACHED && decisions.putIfAbsent(probe.copy(), target) == null) {
+				cached.incrementAndGet();
+			}
+		}
+
+		routed.get(target).increment();
+		return target;
+	}
+
+	private int match(Envelope envelope) {
+		for (int i = 0; i < rules.size(); ++i) {
+			if (rules.get(i).matches(envelope)) {
+				return ruleTargets.get(i);
+			}
+		}
+
+		return 0;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		if (rules.isEmpty()) {
+			return metrics;
+		}
+
+		metrics.add(new Metric<>("nozzle.routing.cached-decisions", cached.get()));
+		for (int i = 0; i < targets.size(); ++i) {
+			metrics.add(new Metric<>("nozzle.routing." + nameOf(targets.get(i)) + ".envelopes", routed.get(i).sum()));
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * @return the target as it appears in metric and thread names
+	 */
+	static String nameOf(RouteTarget target) {
+		return target == null ? "default" : target.toString().replaceAll("[^A-Za-z0-9]+", "-");
+	}
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.FirehoseRequest;
+import org.cloudfoundry.reactor.ConnectionContext;
+import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
+import org.cloudfoundry.reactor.util.UserAgent;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+
+/**
+ * The live Firehose. Every connection uses the same subscription ID, so Doppler spreads the envelopes across
+ * them.
+ *
+ * With <tt>influxdb.nozzle.pre-decode-filter</tt> the websocket is opened here rather than by the Doppler
+ * client, so each frame can go through an {@link EnvelopeFrameFilter} before it is decoded.
+ */
+@Slf4j
+public class DopplerEnvelopeSource implements EnvelopeSource {
+	private final ReactorDopplerClient dopplerClient;
+	private final NozzleProperties properties;
+	private final EnvelopeFrameFilter frameFilter;
+
+	public DopplerEnvelopeSource(ReactorDopplerClient dopplerClient, NozzleProperties properties,
+			PipelineMetrics pipelineMetrics) {
+		this.dopplerClient = dopplerClient;
+		this.properties = properties;
+		this.frameFilter = properties.isPreDecodeFilter()
+				? new EnvelopeFrameFilter(properties, pipelineMetrics) : null;
+	}
+
+	@Override
+	public Flux<Envelope> envelopes(int connection, int connections) {
+		if (frameFilter == null) {
+			return dopplerClient.firehose(FirehoseRequest.builder()
+					.subscriptionId(properties.getSubscriptionId())
+					.build());
+		}
+
+		return frames().filter(frameFilter::accept).handle((frame, sink) -> {
+			try {
+				sink.next(DropsondeCodec.decode(frame));
+			} catch (IOException | RuntimeException e) {
+				log.warn("Skipping envelope that could not be decoded: {}", e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * The Firehose as the Doppler client reads it, up to where it would decode each frame
+	 */
+	private Flux<byte[]> frames() {
+		ConnectionContext connectionContext = dopplerClient.getConnectionContext();
+
+		return dopplerClient.getRoot()
+				.map(root -> UriComponentsBuilder.fromUriString(root)
+						.pathSegment("firehose", properties.getSubscriptionId())
+						.build().encode().toUriString())
+				.and(dopplerClient.getTokenProvider().getToken(connectionContext))
+				.then(uriAndToken -> connectionContext.getHttpClient().ws(uriAndToken.getT1(), headers -> headers
+						.set(HttpHeaderNames.AUTHORIZATION, uriAndToken.getT2())
+						.set(HttpHeaderNames.USER_AGENT, UserAgent.USER_AGENT)))
+				.flatMap(response -> response.receiveWebsocket().aggregateFrames().receive().asByteArray());
+	}
+}
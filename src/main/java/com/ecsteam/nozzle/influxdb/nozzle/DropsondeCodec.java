@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import okio.ByteString;
+import org.cloudfoundry.doppler.ContainerMetric;
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.Error;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.cloudfoundry.dropsonde.events.Envelope.EventType;
+import org.cloudfoundry.dropsonde.events.Method;
+import org.cloudfoundry.dropsonde.events.PeerType;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Converts envelopes to and from the dropsonde protobuf the Firehose sends them as. Decoding goes through the
+ * same {@link Envelope#from} the Doppler client uses, so a replayed envelope comes out as the live one did.
+ * Encoding only writes what {@link Envelope} holds.
+ */
+final class DropsondeCodec {
+	private DropsondeCodec() {
+	}
+
+	static byte[] encode(Envelope envelope) {
+		return org.cloudfoundry.dropsonde.events.Envelope.ADAPTER.encode(toDropsonde(envelope));
+	}
+
+	static Envelope decode(byte[] bytes) throws IOException {
+		return Envelope.from(org.cloudfoundry.dropsonde.events.Envelope.ADAPTER.decode(bytes));
+	}
+
+	private static org.cloudfoundry.dropsonde.events.Envelope toDropsonde(Envelope envelope) {
+		org.cloudfoundry.dropsonde.events.Envelope.Builder builder =
+				new org.cloudfoundry.dropsonde.events.Envelope.Builder()
+					.origin(envelope.getOrigin())
+					.timestamp(envelope.getTimestamp())
+					.deployment(envelope.getDeployment())
+					.job(envelope.getJob())
+					.index(envelope.getIndex())
+					.ip(envelope.getIp())
+					.tags(envelope.getTags());
+
+		switch (envelope.getEventType()) {
+			case CONTAINER_METRIC:
+				ContainerMetric cm = envelope.getContainerMetric();
+				return builder.eventType(EventType.ContainerMetric)
+						.containerMetric(new org.cloudfoundry.dropsonde.events.ContainerMetric.Builder()
+								.applicationId(cm.getApplicationId())
+								.instanceIndex(cm.getInstanceIndex())
+								.cpuPercentage(cm.getCpuPercentage())
+								.memoryBytes(cm.getMemoryBytes())
+								.diskBytes(cm.getDiskBytes())
+								.memoryBytesQuota(cm.getMemoryBytesQuota())
+								.diskBytesQuota(cm.getDiskBytesQuota())
+								.build())
+						.build();
+
+			case COUNTER_EVENT:
+				CounterEvent ce = envelope.getCounterEvent();
+				return builder.eventType(EventType.CounterEvent)
+						.counterEvent(new org.cloudfoundry.dropsonde.events.CounterEvent.Builder()
+								.name(ce.getName())
+								.delta(ce.getDelta())
+								.total(ce.getTotal())
+								.build())
+						.build();
+
+			case ERROR:
+				Error error = envelope.getError();
+				return builder.eventType(EventType.Error)
+						.error(new org.cloudfoundry.dropsonde.events.Error.Builder()
+								.source(error.getSource())
+								.code(error.getCode())
+								.message(error.getMessage())
+								.build())
+						.build();
+
+			case HTTP_START_STOP:
+				HttpStartStop http = envelope.getHttpStartStop();
+				return builder.eventType(EventType.HttpStartStop)
+						.httpStartStop(new org.cloudfoundry.dropsonde.events.HttpStartStop.Builder()
+								.startTimestamp(http.getStartTimestamp())
+								.stopTimestamp(http.getStopTimestamp())
+								.requestId(toDropsonde(http.getRequestId()))
+								.peerType(http.getPeerType() == null ? null
+										: http.getPeerType() == org.cloudfoundry.doppler.PeerType.CLIENT
+										? PeerType.Client : PeerType.Server)
+								.method(http.getMethod() == null ? null : Method.valueOf(http.getMethod().name()))
+								.uri(http.getUri())
+								.remoteAddress(http.getRemoteAddress())
+								.userAgent(http.getUserAgent())
+								.statusCode(http.getStatusCode())
+								.contentLength(http.getContentLength())
+								.applicationId(toDropsonde(http.getApplicationId()))
+								.instanceIndex(http.getInstanceIndex())
+								.instanceId(http.getInstanceId())
+								.forwarded(http.getForwarded())
+								.build())
+						.build();
+
+			case LOG_MESSAGE:
+				LogMessage log = envelope.getLogMessage();
+				return builder.eventType(EventType.LogMessage)
+						.logMessage(new org.cloudfoundry.dropsonde.events.LogMessage.Builder()
+								.message(log.getMessage() == null ? null : ByteString.encodeUtf8(log.getMessage()))
+								.message_type(log.getMessageType() == null ? null
+										: org.cloudfoundry.dropsonde.events.LogMessage.MessageType.valueOf(
+										log.getMessageType().name()))
+								.timestamp(log.getTimestamp())
+								.app_id(log.getApplicationId())
+								.source_type(log.getSourceType())
+								.source_instance(log.getSourceInstance())
+								.build())
+						.build();
+
+			default:
+				ValueMetric vm = envelope.getValueMetric();
+				return builder.eventType(EventType.ValueMetric)
+						.valueMetric(new org.cloudfoundry.dropsonde.events.ValueMetric.Builder()
+								.name(vm.getName())
+								.value(vm.value())
+								.unit(vm.getUnit())
+								.build())
+						.build();
+		}
+	}
+
+	private static org.cloudfoundry.dropsonde.events.UUID toDropsonde(UUID uuid) {
+		// the inverse of the Doppler client's conversion
+		return uuid == null ? null : new org.cloudfoundry.dropsonde.events.UUID.Builder()
+				.high(uuid.getMostSignificantBits())
+				.low(uuid.getLeastSignificantBits())
+				.build();
+	}
+}
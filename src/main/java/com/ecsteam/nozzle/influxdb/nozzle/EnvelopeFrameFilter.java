@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.EventType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides from the raw dropsonde protobuf whether an envelope is worth decoding, so the LogMessages and
+ * HttpStartStops {@link FirehoseReader} would throw away never become objects. Only the top-level fields are
+ * walked, and the nested events are skipped over by their length; since the Firehose sends origin and eventType
+ * as the first two fields, a decision usually takes a handful of bytes.
+ *
+ * Envelopes are kept when their event type is one the reader writes and, if <tt>influxdb.nozzle.origins</tt>
+ * is set, their origin matches one of its patterns. A frame that cannot be walked is kept, so the decoder can
+ * report it.
+ */
+class EnvelopeFrameFilter {
+	private static final int ORIGIN = 1;
+	private static final int EVENT_TYPE = 2;
+
+	private static final int VARINT = 0;
+	private static final int FIXED64 = 1;
+	private static final int LENGTH_DELIMITED = 2;
+	private static final int FIXED32 = 5;
+
+	/**
+	 * Our event types by their protobuf value
+	 */
+	private static final EventType[] EVENT_TYPES = new EventType[16];
+
+	static {
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.HttpStartStop.getValue()] =
+				EventType.HTTP_START_STOP;
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.LogMessage.getValue()] =
+				EventType.LOG_MESSAGE;
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.ValueMetric.getValue()] =
+				EventType.VALUE_METRIC;
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.CounterEvent.getValue()] =
+				EventType.COUNTER_EVENT;
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.Error.getValue()] = EventType.ERROR;
+		EVENT_TYPES[org.cloudfoundry.dropsonde.events.Envelope.EventType.ContainerMetric.getValue()] =
+				EventType.CONTAINER_METRIC;
+	}
+
+	private final boolean[] handled = new boolean[EVENT_TYPES.length];
+	private final List<FieldPattern> origins = new ArrayList<>();
+	private final PipelineMetrics pipelineMetrics;
+
+	EnvelopeFrameFilter(NozzleProperties properties, PipelineMetrics pipelineMetrics) {
+		this.pipelineMetrics = pipelineMetrics;
+
+		Set<EventType> types = EnumSet.of(EventType.COUNTER_EVENT, EventType.VALUE_METRIC);
+		if (properties.isHttpLatency()) {
+			types.add(EventType.HTTP_START_STOP);
+		}
+
+		for (int i = 0; i < EVENT_TYPES.length; ++i) {
+			handled[i] = EVENT_TYPES[i] != null && types.contains(EVENT_TYPES[i]);
+		}
+
+		for (String origin : properties.getOrigins()) {
+			origins.add(FieldPattern.parse(origin.trim()));
+		}
+	}
+
+	/**
+	 * @param frame one envelope, as received from the websocket
+	 * @return whether to decode it. Envelopes left out are counted as received and skipped.
+	 */
+	boolean accept(byte[] frame) {
+		int originOffset = -1;
+		int originLength = 0;
+		int eventType = -1;
+
+		int position = 0;
+		while (position < frame.length && (eventType < 0 || (!origins.isEmpty() && originOffset < 0))) {
+			long tag = readVarint(frame, position);
+			if (tag < 0) {
+				return true;
+			}
+			position = (int) (tag >>> 32);
+
+			int field = (int) tag >>> 3;
+			switch ((int) tag & 7) {
+				case VARINT:
+					long value = readVarint(frame, position);
+					if (value < 0) {
+						return true;
+					}
+					position = (int) (value >>> 32);
+
+					if (field == EVENT_TYPE) {
+						eventType = (int) value;
+					}
+					break;
+
+				case LENGTH_DELIMITED:
+					long varint = readVarint(frame, position);
+					if (varint < 0) {
+						return true;
+					}
+					position = (int) (varint >>> 32);
+
+					int length = (int) varint;
+					if (length < 0 || length > frame.length - position) {
+						return true;
+					}
+
+					if (field == ORIGIN) {
+						originOffset = position;
+						originLength = length;
+					}
+					position += length;
+					break;
+
+				case FIXED64:
+					if (frame.length - position < 8) {
+						return true;
+					}
+					position += 8;
+					break;
+
+				case FIXED32:
+					if (frame.length - position < 4) {
+						return true;
+					}
+					position += 4;
+					break;
+
+				default:
+					return true;
+			}
+		}
+
+		if (eventType < 0) {
+			return true;
+		}
+
+		if (eventType < handled.length && handled[eventType]) {
+			if (origins.isEmpty() || matchesOrigin(originOffset < 0 ? ""
+					: new String(frame, originOffset, originLength, StandardCharsets.UTF_8))) {
+				return true;
+			}
+		}
+
+		pipelineMetrics.received(eventType < EVENT_TYPES.length ? EVENT_TYPES[eventType] : null);
+		pipelineMetrics.skipped();
+		return false;
+	}
+
+	private boolean matchesOrigin(String origin) {
+		for (FieldPattern pattern : origins) {
+			if (pattern.matches(origin)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the position after the varint in the upper 32 bits, and its low 32 bits in the lower ones, or -1 if
+	 * the varint runs past the end of the frame
+	 */
+	private static long readVarint(byte[] frame, int position) {
+		long value = 0;
+		for (int shift = 0; position < frame.length && shift < 64; shift += 7) {
+			byte b = frame[position++];
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return (long) position << 32 | value & 0xffffffffL;
+			}
+		}
+
+		return -1;
+	}
+}
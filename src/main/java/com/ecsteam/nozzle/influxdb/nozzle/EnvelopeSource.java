@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import reactor.core.publisher.Flux;
+
+/**
+ * Where a {@link FirehoseConnection} reads envelopes from: the live Firehose, or a capture being replayed
+ */
+public interface EnvelopeSource {
+	/**
+	 * @param connection which of the reader's connections is subscribing, from 0
+	 * @param connections how many connections the reader opens
+	 * @return the envelopes for that connection. Every connection subscribes separately, and again after an
+	 * error.
+	 */
+	Flux<Envelope> envelopes(int connection, int connections);
+
+	/**
+	 * @return whether the envelopes come to an end, as a replay does. Otherwise a connection whose envelopes
+	 * complete subscribes again.
+	 */
+	default boolean isFinite() {
+		return false;
+	}
+}
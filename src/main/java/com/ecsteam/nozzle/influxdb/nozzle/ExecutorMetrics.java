@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * How busy the <tt>taskExecutor</tt> that runs blocking sends is, published on the actuator <tt>/metrics</tt>
+ * endpoint as <tt>nozzle.executor.*</tt>. A utilization near 1 with a growing queue means the executor, not
+ * InfluxDB, is what holds batches back.
+ */
+@Component
+@RequiredArgsConstructor
+public class ExecutorMetrics implements PublicMetrics {
+	private final ThreadPoolTaskExecutor taskExecutor;
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		int active = taskExecutor.getActiveCount();
+		int max = taskExecutor.getMaxPoolSize();
+		int queued = taskExecutor.getThreadPoolExecutor().getQueue().size();
+
+		return Arrays.asList(
+				new Metric<>("nozzle.executor.active", active),
+				new Metric<>("nozzle.executor.pool-size", taskExecutor.getPoolSize()),
+				new Metric<>("nozzle.executor.queued", queued),
+				new Metric<>("nozzle.executor.utilization", max == 0 ? 0.0 : (double) active / max));
+	}
+}
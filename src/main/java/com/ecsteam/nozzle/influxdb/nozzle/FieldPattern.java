@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import org.springframework.util.PatternMatchUtils;
+
+import java.util.regex.Pattern;
+
+/**
+ * A pattern for one envelope field in a {@link FilterRule}: <tt>~regex</tt>, a glob with <tt>*</tt>, or a
+ * literal. Literals and globs whose only wildcard is a trailing <tt>*</tt> are kept as plain strings so they can
+ * go into a {@link PatternTrie}.
+ */
+public class FieldPattern {
+	public enum Kind {
+		exact, prefix, glob, regex
+	}
+
+	@Getter
+	private final Kind kind;
+
+	@Getter
+	private final String text;
+
+	private final Pattern regex;
+
+	private FieldPattern(Kind kind, String text) {
+		this.kind = kind;
+		this.text = text;
+		this.regex = kind == Kind.regex ? Pattern.compile(text) : null;
+	}
+
+	public static FieldPattern parse(String pattern) {
+		if (pattern.startsWith("~")) {
+			return new FieldPattern(Kind.regex, pattern.substring(1));
+		}
+
+		int star = pattern.indexOf('*');
+		if (star < 0) {
+			return new FieldPattern(Kind.exact, pattern);
+		}
+
+		if (star == pattern.length() - 1) {
+			return new FieldPattern(Kind.prefix, pattern.substring(0, star));
+		}
+
+		return new FieldPattern(Kind.glob, pattern);
+	}
+
+	public boolean matches(String value) {
+		if (value == null) {
+			value = "";
+		}
+
+		switch (kind) {
+			case exact:
+				return text.equals(value);
+			case prefix:
+				return value.startsWith(text);
+			case glob:
+				return PatternMatchUtils.simpleMatch(text, value);
+			default:
+				return regex.matcher(value).matches();
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+			case prefix:
+				return text + "*";
+			case regex:
+				return "~" + text;
+			default:
+				return text;
+		}
+	}
+}
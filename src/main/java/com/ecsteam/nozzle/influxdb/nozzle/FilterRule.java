@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import org.cloudfoundry.doppler.Envelope;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An include or exclude rule for envelopes, written as
+ *
+ * <tt>include|exclude:field=pattern[&amp;field=pattern]*</tt>
+ *
+ * where field is <tt>name</tt>, <tt>origin</tt>, <tt>job</tt>, <tt>deployment</tt> or <tt>tag.key</tt>, and the
+ * pattern is a {@link FieldPattern}. Every condition has to match for the rule to match.
+ */
+public class FilterRule {
+	private static final String TAG_PREFIX = "tag.";
+
+	@Getter
+	private final int index;
+
+	@Getter
+	private final boolean include;
+
+	@Getter
+	private final FieldPattern name;
+
+	@Getter
+	private final FieldPattern origin;
+
+	private final FieldPattern job;
+	private final FieldPattern deployment;
+	private final Map<String, FieldPattern> tags;
+
+	private final String text;
+	private final LongAdder hits = new LongAdder();
+
+	private FilterRule(int index, boolean include, Map<String, FieldPattern> conditions, String text) {
+		this.index = index;
+		this.include = include;
+		this.name = conditions.remove("name");
+		this.origin = conditions.remove("origin");
+		this.job = conditions.remove("job");
+		this.deployment = conditions.remove("deployment");
+		this.tags = new LinkedHashMap<>();
+		this.text = text;
+
+		conditions.forEach((field, pattern) -> {
+			if (!field.startsWith(TAG_PREFIX)) {
+				throw new IllegalArgumentException("Unknown field " + field + " in filter rule " + text);
+			}
+			tags.put(field.substring(TAG_PREFIX.length()), pattern);
+		});
+	}
+
+	public static FilterRule parse(int index, String rule) {
+		String text = rule.trim();
+
+		int separator = text.indexOf(':');
+		if (separator < 0) {
+			throw new IllegalArgumentException("Filter rules look like include|exclude:field=pattern, not " + rule);
+		}
+
+		String action = text.substring(0, separator).trim();
+		if (!"include".equals(action) && !"exclude".equals(action)) {
+			throw new IllegalArgumentException("Filter rules must start with include or exclude, not " + rule);
+		}
+
+		Map<String, FieldPattern> conditions = new LinkedHashMap<>();
+		for (String condition : text.substring(separator + 1).split("&")) {
+			int equals = condition.indexOf('=');
+			if (equals <= 0) {
+				throw new IllegalArgumentException("Invalid condition " + condition + " in filter rule " + rule);
+			}
+
+			conditions.put(condition.substring(0, equals).trim(), FieldPattern.parse(condition.substring(equals + 1).trim()));
+		}
+
+		return new FilterRule(index, "include".equals(action), conditions, text);
+	}
+
+	/**
+	 * @return true if the rule's name and origin conditions are all it has, so a match on those decides
+	 */
+	public boolean isNameAndOriginOnly() {
+		return job == null && deployment == null && tags.isEmpty();
+	}
+
+	/**
+	 * Check every condition except name and origin, which the {@link MetricFilter} has matched already
+	 */
+	public boolean matchesRest(Envelope envelope) {
+		if (job != null && !job.matches(envelope.getJob())) {
+			return false;
+		}
+
+		if (deployment != null && !deployment.matches(envelope.getDeployment())) {
+			return false;
+		}
+
+		for (Map.Entry<String, FieldPattern> tag : tags.entrySet()) {
+			String value = envelope.getTags() == null ? null : envelope.getTags().get(tag.getKey());
+			if (!tag.getValue().matches(value)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the envelopes the Firehose delivers to <tt>influxdb.nozzle.capture-directory</tt>, to be played back
+ * later by {@link ReplayEnvelopeSource}. Every connection writes its own stream of segment files, named
+ * <tt>capture-{connection}-{sequence}.cap</tt>, so recording takes no shared locks.
+ *
+ * A segment starts with a magic number and the time it was opened, in microseconds since the epoch. Each record
+ * is <tt>[varint microseconds since the previous record][varint length][dropsonde protobuf]</tt>. The protobuf is
+ * the decoded envelope encoded again by {@link DropsondeCodec}, not the frame Doppler sent: fields the Doppler
+ * client does not map, and the exact encoding of the original, are not kept. Capturing stops once
+ * <tt>influxdb.nozzle.capture-max-bytes</tt> have been written.
+ */
+@Slf4j
+class FirehoseCapture {
+	static final int MAGIC = 0x46484341;
+	static final int SEGMENT_HEADER = 12;
+	static final String SEGMENT_PREFIX = "capture-";
+	static final String SEGMENT_SUFFIX = ".cap";
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final long maxBytes;
+	private final AtomicLong written = new AtomicLong();
+	private final List<Writer> writers = new CopyOnWriteArrayList<>();
+
+	private volatile boolean full;
+
+	FirehoseCapture(NozzleProperties properties) throws IOException {
+		this.directory = Paths.get(properties.getCaptureDirectory());
+		this.segmentBytes = properties.getCaptureSegmentBytes();
+		this.maxBytes = properties.getCaptureMaxBytes();
+
+		Files.createDirectories(directory);
+		log.info("Capturing the Firehose to {}, up to {} bytes", directory, maxBytes);
+	}
+
+	Writer writer(int connection) {
+		Writer writer = new Writer(connection);
+		writers.add(writer);
+		return writer;
+	}
+
+	void close() {
+		writers.forEach(Writer::close);
+		writers.clear();
+	}
+
+	static void writeVarint(long value, OutputStream out) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	static int varintSize(long value) {
+		return value == 0 ? 1 : (64 - Long.numberOfLeadingZeros(value) + 6) / 7;
+	}
+
+	/**
+	 * @return the varint at the buffer's position, or -1 if the buffer ends in the middle of it
+	 */
+	static long readVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * The segment stream of one connection. Only that connection's thread writes to it.
+	 */
+	class Writer {
+		private final int connection;
+		private int sequence;
+		private OutputStream out;
+		private long size;
+		private long lastMicros;
+
+		private Writer(int connection) {
+			this.connection = connection;
+		}
+
+		synchronized void write(Envelope envelope) {
+			if (full) {
+				return;
+			}
+
+			try {
+				byte[] bytes = DropsondeCodec.encode(envelope);
+				long now = System.currentTimeMillis() * 1000L;
+
+				if (out == null || size + 20 + bytes.length > segmentBytes) {
+					open(now);
+				}
+
+				long delta = Math.max(0, now - lastMicros);
+				int recordSize = varintSize(delta) + varintSize(bytes.length) + bytes.length;
+				if (written.addAndGet(recordSize) > maxBytes) {
+					full = true;
+					log.warn("Stopped capturing the Firehose after {} bytes", maxBytes);
+					close();
+					return;
+				}
+
+				writeVarint(delta, out);
+				writeVarint(bytes.length, out);
+				out.write(bytes);
+
+				size += recordSize;
+				lastMicros = now;
+			} catch (IOException | RuntimeException e) {
+				log.error("Could not capture envelope on connection {}: {}", connection, e.getMessage());
+			}
+		}
+
+		private void open(long now) throws IOException {
+			close();
+
+			// never overwrite an earlier capture in the same directory
+			Path path;
+			do {
+				path = directory.resolve(String.format("%s%d-%010d%s", SEGMENT_PREFIX, connection, sequence++,
+						SEGMENT_SUFFIX));
+			} while (Files.exists(path));
+
+			out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE_NEW), 64 * 1024);
+
+			ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+			header.putInt(MAGIC).putLong(now);
+			out.write(header.array());
+
+			written.addAndGet(SEGMENT_HEADER);
+			size = SEGMENT_HEADER;
+			lastMicros = now;
+		}
+
+		synchronized void close() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					log.warn("Could not close capture segment of connection {}: {}", connection, e.getMessage());
+				}
+				out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One subscription to an {@link EnvelopeSource}, usually a websocket to the Firehose. Each connection hands its
+ * envelopes on from its own thread, and reconnects with its own backoff after an error or after the Firehose
+ * closes the websocket. If the Firehose is being captured, every envelope is recorded before it is handed on.
+ */
+@Slf4j
+class FirehoseConnection {
+	enum State {
+		connecting, connected, retrying, stopped
+	}
+
+	private final int id;
+	private final int connections;
+	private final EnvelopeSource source;
+	private final NozzleProperties properties;
+	private final Consumer<Envelope> consumer;
+	private final FirehoseCapture.Writer capture;
+
+	private volatile State state = State.stopped;
+	private final AtomicInteger attempts = new AtomicInteger();
+	private final LongAdder envelopes = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private volatile String lastError;
+	private volatile long lastEnvelope;
+
+	private Scheduler scheduler;
+	private Disposable subscription;
+
+	/**
+	 * @param capture where to record envelopes to, or null
+	 */
+	FirehoseConnection(int id, int connections, EnvelopeSource source, NozzleProperties properties,
+			Consumer<Envelope> consumer, FirehoseCapture.Writer capture) {
+		this.id = id;
+		this.connections = connections;
+		this.source = source;
+		this.properties = properties;
+		this.consumer = consumer;
+		this.capture = capture;
+	}
+
+	void start() {
+		state = State.connecting;
+
+		// Thanks to Ben Hale for the help with the doOnError and retry code.
+		// There is a situation where LogMessages can come through with a null
+		// message even though that's invalid according to the protobuf spec,
+		// and this causes the toEnvelope method to fail less than gracefully.
+		// This will catch those EOFExceptions and restart the Flux if/when it
+		// occurs
+		scheduler = Schedulers.newSingle("firehose-reader-" + id);
+		Flux<Envelope> envelopes = source.envelopes(id, connections)
+				.doOnError(this::receiveError)
+				.retryWhen(failures -> failures.concatMap(error -> Mono.delay(Duration.ofMillis(nextBackoff()))));
+
+		// Doppler closes a websocket cleanly when it is restarted or scaled, which is not the end of the
+		// Firehose, so only a replay ever runs out of envelopes
+		if (!source.isFinite()) {
+			envelopes = envelopes.repeatWhen(completions -> completions.concatMap(completion -> {
+				log.info("Firehose connection {} was closed", id);
+				return Mono.delay(Duration.ofMillis(nextBackoff()));
+			}));
+		}
+
+		subscription = envelopes
+				.publishOn(scheduler, properties.getFirehosePrefetch())
+				.subscribe(this::receiveEvent, this::receiveError, this::complete);
+	}
+
+	void stop() {
+		state = State.stopped;
+
+		if (subscription != null) {
+			subscription.dispose();
+			scheduler.dispose();
+		}
+	}
+
+	State getState() {
+		return state;
+	}
+
+	Map<String, Object> getDetails() {
+		Map<String, Object> details = new LinkedHashMap<>();
+		details.put("state", state);
+		details.put("envelopes", envelopes.sum());
+		details.put("errors", errors.sum());
+
+		if (lastEnvelope > 0) {
+			details.put("lastEnvelope", new Date(lastEnvelope));
+		}
+
+		if (lastError != null) {
+			details.put("lastError", lastError);
+		}
+
+		return details;
+	}
+
+	private long nextBackoff() {
+		state = State.retrying;
+
+		long delay = properties.getBackoffPolicy().delay(attempts.incrementAndGet(), properties.getMinBackoff(),
+				properties.getMaxBackoff());
+		log.info("Reconnecting Firehose connection {} in {} ms", id, delay);
+
+		return delay;
+	}
+
+	private void receiveEvent(Envelope envelope) {
+		if (state != State.connected) {
+			state = State.connected;
+			attempts.set(0);
+		}
+
+		envelopes.increment();
+		lastEnvelope = System.currentTimeMillis();
+
+		if (capture != null) {
+			capture.write(envelope);
+		}
+
+		consumer.accept(envelope);
+	}
+
+	private void complete() {
+		log.info("No more envelopes for connection {}", id);
+		state = State.stopped;
+
+		if (capture != null) {
+			capture.close();
+		}
+	}
+
+	private void receiveError(Throwable error) {
+		errors.increment();
+		lastError = error.getMessage();
+
+		log.error("Error in receiving Firehose event on connection {}: {}", id, error.getMessage());
+		if (log.isDebugEnabled()) {
+			error.printStackTrace();
+		}
+	}
+}
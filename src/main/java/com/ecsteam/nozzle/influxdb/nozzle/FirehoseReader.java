@@ -19,22 +19,42 @@ import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.cloudfoundry.doppler.Envelope;
-import org.cloudfoundry.doppler.FirehoseRequest;
-import org.cloudfoundry.reactor.doppler.ReactorDopplerClient;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.context.SmartLifecycle;
-import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Read events from the firehose
+ * Read events from the firehose over <tt>influxdb.nozzle.connections</tt> parallel {@link FirehoseConnection}s,
+ * so decoding is not limited to one websocket and its thread.
+ *
+ * Each connection hands envelopes to the writer on a dedicated thread, which requests at most
+ * <tt>influxdb.nozzle.firehose-prefetch</tt> envelopes ahead of what the writer has accepted. When the writer
+ * waits for room, demand stops, the websocket stops being read, and Doppler's slow consumer handling takes over
+ * rather than envelopes piling up on the heap.
+ *
+ * The envelopes come from an {@link EnvelopeSource}: the live Firehose, or a replayed capture. Setting
+ * <tt>influxdb.nozzle.capture-directory</tt> records everything received with a {@link FirehoseCapture}.
+ *
+ * Health is UP while at least one connection is receiving envelopes, with the state of every connection in
+ * the details.
  */
 @RequiredArgsConstructor
 @Slf4j
-public class FirehoseReader implements SmartLifecycle {
-	private final ReactorDopplerClient dopplerClient;
+public class FirehoseReader implements SmartLifecycle, HealthIndicator {
+	private final EnvelopeSource source;
 	private final NozzleProperties properties;
 	private final InfluxDBWriter writer;
+	private final PipelineMetrics pipelineMetrics;
+
+	private volatile boolean running = false;
 
-	private boolean running = false;
+	private final List<FirehoseConnection> connections = new ArrayList<>();
+	private FirehoseCapture capture;
 
 	@Override
 	public boolean isAutoStartup() {
@@ -49,25 +69,38 @@ public class FirehoseReader implements SmartLifecycle {
 
 	@Override
 	public void start() {
-		log.info("Connecting to the Firehose");
-		FirehoseRequest request = FirehoseRequest.builder()
-				.subscriptionId(properties.getSubscriptionId()).build();
-
-		// Thanks to Ben Hale for the help with the doOnError and retry code.
-		// There is a situation where LogMessages can come through with a null
-		// message even though that's invalid according to the protobuf spec,
-		// and this causes the toEnvelope method to fail less than gracefully.
-		// This will catch those EOFExceptions and restart the Flux if/when it
-		// occurs
-		dopplerClient.firehose(request)
-				.doOnError(this::receiveError)
-				.retry()
-				.subscribe(this::receiveEvent, this::receiveError);
+		int count = Math.max(1, properties.getConnections());
+		log.info("Opening {} connections to the Firehose", count);
+
+		if (StringUtils.hasText(properties.getCaptureDirectory())) {
+			try {
+				capture = new FirehoseCapture(properties);
+			} catch (IOException e) {
+				log.error("Could not capture the Firehose: {}", e.getMessage());
+			}
+		}
+
+		for (int i = 0; i < count; ++i) {
+			FirehoseConnection connection = new FirehoseConnection(i, count, source, properties, this::receiveEvent,
+					capture == null ? null : capture.writer(i));
+			connections.add(connection);
+			connection.start();
+		}
+
+		running = true;
 	}
 
 	@Override
 	public void stop() {
 		running = false;
+
+		connections.forEach(FirehoseConnection::stop);
+		connections.clear();
+
+		if (capture != null) {
+			capture.close();
+			capture = null;
+		}
 	}
 
 	@Override
@@ -80,19 +113,32 @@ public class FirehoseReader implements SmartLifecycle {
 		return 0;
 	}
 
+	@Override
+	public Health health() {
+		boolean connected = connections.stream()
+				.anyMatch(connection -> connection.getState() == FirehoseConnection.State.connected);
+		Health.Builder health = connected ? Health.up() : Health.down();
+
+		for (int i = 0; i < connections.size(); ++i) {
+			health.withDetail("connection-" + i, connections.get(i).getDetails());
+		}
+
+		return health.build();
+	}
+
 	private void receiveEvent(Envelope envelope) {
+		pipelineMetrics.received(envelope.getEventType());
+
 		switch (envelope.getEventType()) {
 			case COUNTER_EVENT:
 			case VALUE_METRIC:
 				writer.writeMessage(envelope);
 				break;
-		}
-	}
-
-	private void receiveError(Throwable error) {
-		log.error("Error in receiving Firehose event: {}", error.getMessage());
-		if (log.isDebugEnabled()) {
-			error.printStackTrace();
+			case HTTP_START_STOP:
+				if (properties.isHttpLatency()) {
+					writer.writeMessage(envelope);
+				}
+				break;
 		}
 	}
 }
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides how much is written to InfluxDB at once, from how InfluxDB has been responding.
+ *
+ * Each InfluxDB node gets a {@link Node} holding the batch size its batchers flush at and the number of batches
+ * that may be in flight to it. With <tt>influxdb.nozzle.adaptive</tt> both are adjusted AIMD-style: every write
+ * faster than the target latency grows the batch size by <tt>minBatchSize</tt>, and every round of writes that
+ * fast lets one more batch in flight; a slower write, a 429 or 503, or a failed connection halves both, at most
+ * once per target latency so a burst of slow responses to batches that were already in flight only counts once.
+ * Without it they stay at <tt>batchSize</tt> and <tt>maxInFlight</tt>.
+ *
+ * Either way, a <tt>Retry-After</tt> on a 429 or 503 holds back every write to that node until it has passed,
+ * and the optional points and bytes per second caps space out writes across all nodes.
+ *
+ * The chosen values are published on the actuator <tt>/metrics</tt> endpoint as
+ * <tt>nozzle.flow.&lt;node&gt;.*</tt>, along with <tt>nozzle.flow.overloads</tt> and
+ * <tt>nozzle.flow.throttled-ms</tt>, the time spent waiting on the rate caps.
+ */
+@Slf4j
+@Component
+public class FlowController implements PublicMetrics {
+	private final boolean adaptive;
+	private final long targetLatencyNanos;
+	private final int initialBatchSize;
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int maxInFlight;
+	private final double nanosPerPoint;
+	private final double nanosPerByte;
+
+	private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+	private final AtomicLong nextWrite = new AtomicLong(System.nanoTime());
+	private final LongAdder overloads = new LongAdder();
+	private final LongAdder throttledNanos = new LongAdder();
+
+	@Autowired
+	public FlowController(NozzleProperties properties) {
+		this.adaptive = properties.isAdaptive();
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(properties.getTargetLatency());
+		this.minBatchSize = Math.max(1, Math.min(properties.getMinBatchSize(), properties.getBatchSize()));
+		this.maxBatchSize = Math.max(properties.getMaxBatchSize(), properties.getBatchSize());
+		this.initialBatchSize = properties.getBatchSize();
+		this.maxInFlight = Math.max(1, properties.getMaxInFlight());
+		this.nanosPerPoint = properties.getMaxPointsPerSecond() > 0
+				? (double) TimeUnit.SECONDS.toNanos(1) / properties.getMaxPointsPerSecond() : 0;
+		this.nanosPerByte = properties.getMaxBytesPerSecond() > 0
+				? (double) TimeUnit.SECONDS.toNanos(1) / properties.getMaxBytesPerSecond() : 0;
+
+		if (adaptive) {
+			log.info("Adapting batches between {} and {} points and up to {} in flight to a {} ms target latency",
+					minBatchSize, maxBatchSize, maxInFlight, properties.getTargetLatency());
+		}
+	}
+
+	/**
+	 * @param destination the base URL of an InfluxDB node, or null for the default destination
+	 */
+	public Node node(String destination) {
+		return node(destination, null);
+	}
+
+	/**
+	 * @param destination the base URL of an InfluxDB node, or null for the default destination
+	 * @param target the database on that node, or null for the default database. Every database has a budget
+	 * of its own, so one that stalls does not hold up writes to the others.
+	 */
+	public Node node(String destination, RouteTarget target) {
+		return node(destination, target, null);
+	}
+
+	/**
+	 * @param lane the priority lane writing through the node, which gets its share of <tt>maxInFlight</tt>, or
+	 * null if there are no lanes
+	 */
+	public Node node(String destination, RouteTarget target, PriorityLane lane) {
+		String key = target == null ? String.valueOf(destination) : destination + " " + target;
+		return nodes.computeIfAbsent(lane == null ? key : key + " " + lane.getName(),
+				k -> new Node(destination, target, lane));
+	}
+
+	/**
+	 * Parse a <tt>Retry-After</tt> header, either a number of seconds or an HTTP date
+	 *
+	 * @return the time to wait in ms, or 0 if there is no (valid) header
+	 */
+	static long retryAfter(String header) {
+		if (header == null || header.trim().isEmpty()) {
+			return 0;
+		}
+
+		String value = header.trim();
+		try {
+			return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+		} catch (NumberFormatException e) {
+			try {
+				ZonedDateTime until = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+				return Math.max(0, Duration.between(ZonedDateTime.now(until.getZone()), until).toMillis());
+			} catch (DateTimeParseException invalid) {
+				log.debug("Ignoring invalid Retry-After header {}", value);
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Wait until a batch of this size fits under the rate caps. Every batch reserves the slot after the one
+	 * before it, so writes are spaced out rather than let through in bursts.
+	 */
+	private void throttle(Batch batch) {
+		if (nanosPerPoint == 0 && nanosPerByte == 0) {
+			return;
+		}
+
+		long cost = (long) Math.max(batch.getPoints() * nanosPerPoint, batch.getBody().length() * nanosPerByte);
+
+		long now = System.nanoTime();
+		long start;
+		long next;
+		do {
+			next = nextWrite.get();
+			start = next - now > 0 ? next : now;
+		} while (!nextWrite.compareAndSet(next, start + cost));
+
+		long wait = start - now;
+		if (wait > 0) {
+			throttledNanos.add(wait);
+			while ((wait = start - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+
+		for (Node node : nodes.values()) {
+			String prefix = "nozzle.flow." + node.name + ".";
+			metrics.add(new Metric<>(prefix + "batch-size", node.batchSize));
+			metrics.add(new Metric<>(prefix + "concurrency", node.concurrency));
+			metrics.add(new Metric<>(prefix + "in-flight", node.inFlight.get()));
+			metrics.add(new Metric<>(prefix + "paused-ms",
+					Math.max(0, TimeUnit.NANOSECONDS.toMillis(node.pausedUntil - System.nanoTime()))));
+		}
+
+		metrics.add(new Metric<>("nozzle.flow.overloads", overloads.sum()));
+		metrics.add(new Metric<>("nozzle.flow.throttled-ms", TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum())));
+
+		return metrics;
+	}
+
+	/**
+	 * What may be written to one InfluxDB node, and what it has been saying about it
+	 */
+	public class Node {
+		private final String name;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final ReentrantLock slots = new ReentrantLock();
+		private final Condition slotFreed = slots.newCondition();
+
+		private final int limit;
+		private volatile int batchSize;
+		private volatile int concurrency;
+		private volatile long pausedUntil = System.nanoTime();
+
+		private int fastWrites;
+		private long lastDecrease = System.nanoTime() - targetLatencyNanos;
+
+		private Node(String destination, RouteTarget target, PriorityLane lane) {
+			String host = destination == null ? "default" : destination.replaceFirst("^[a-z]+://", "")
+					.replaceAll("[^A-Za-z0-9]+", "-");
+			String name = target == null ? host : host + "." + DatabaseRouter.nameOf(target);
+			this.name = lane == null ? name : name + "." + lane.getName();
+			this.limit = lane == null ? maxInFlight
+					: Math.max(1, (int) Math.round(maxInFlight * lane.getShare() / 100.0));
+			this.batchSize = initialBatchSize;
+			this.concurrency = adaptive ? 1 : limit;
+		}
+
+		/**
+		 * @return the number of points a batch for this node is flushed at
+		 */
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/**
+		 * Block until the batch may be written: the node is not paused by a <tt>Retry-After</tt>, fewer than
+		 * the allowed number of batches are in flight, and the rate caps have room. Every call must be paired
+		 * with {@link #release()}.
+		 */
+		public void acquire(Batch batch) {
+			awaitResume();
+
+			slots.lock();
+			try {
+				while (inFlight.get() >= concurrency) {
+					slotFreed.awaitUninterruptibly();
+				}
+				inFlight.incrementAndGet();
+			} finally {
+				slots.unlock();
+			}
+
+			throttle(batch);
+		}
+
+		public void release() {
+			slots.lock();
+			try {
+				inFlight.decrementAndGet();
+				slotFreed.signal();
+			} finally {
+				slots.unlock();
+			}
+		}
+
+		/**
+		 * Wake every waiting writer after the concurrency grew, as there may be room for more than one
+		 */
+		private void concurrencyRaised() {
+			slots.lock();
+			try {
+				slotFreed.signalAll();
+			} finally {
+				slots.unlock();
+			}
+		}
+
+		/**
+		 * Block until a <tt>Retry-After</tt> has passed
+		 */
+		public void awaitResume() {
+			long wait;
+			while ((wait = pausedUntil - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+
+		/**
+		 * @return how long in ms a <tt>Retry-After</tt> still holds back writes to this node
+		 */
+		public long remainingPause() {
+			return Math.max(0, TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime()));
+		}
+
+		/**
+		 * A write was accepted
+		 *
+		 * @param latencyNanos how long the request took
+		 */
+		public void written(long latencyNanos) {
+			if (!adaptive) {
+				return;
+			}
+
+			if (latencyNanos > targetLatencyNanos) {
+				decrease();
+				return;
+			}
+
+			boolean raised = false;
+			synchronized (this) {
+				batchSize = Math.min(maxBatchSize, batchSize + minBatchSize);
+
+				// one more batch in flight for every round of fast writes at the current concurrency
+				if (++fastWrites >= concurrency) {
+					fastWrites = 0;
+					raised = concurrency < limit;
+					concurrency = Math.min(limit, concurrency + 1);
+				}
+			}
+
+			if (raised) {
+				concurrencyRaised();
+			}
+		}
+
+		/**
+		 * InfluxDB answered 429 or 503
+		 *
+		 * @param retryAfterMillis the <tt>Retry-After</tt> it sent, or 0
+		 */
+		public void overloaded(int status, long retryAfterMillis) {
+			overloads.increment();
+
+			if (retryAfterMillis > 0) {
+				log.warn("InfluxDB answered {}, holding back writes to {} for {} ms", status, name, retryAfterMillis);
+
+				long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+				synchronized (this) {
+					if (until - pausedUntil > 0) {
+						pausedUntil = until;
+					}
+				}
+			}
+
+			if (adaptive) {
+				decrease();
+			}
+		}
+
+		/**
+		 * The request did not get a response
+		 */
+		public void failed() {
+			if (adaptive) {
+				decrease();
+			}
+		}
+
+		private synchronized void decrease() {
+			long now = System.nanoTime();
+			if (now - lastDecrease < targetLatencyNanos) {
+				return;
+			}
+
+			lastDecrease = now;
+			fastWrites = 0;
+			batchSize = Math.max(minBatchSize, batchSize / 2);
+			concurrency = Math.max(1, concurrency / 2);
+
+			log.debug("Backing off writes to {} to {} points and {} in flight", name, batchSize, concurrency);
+		}
+	}
+}
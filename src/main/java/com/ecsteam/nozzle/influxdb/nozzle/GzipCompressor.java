@@ -0,0 +1,120 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips encoded batches for <tt>Content-Encoding: gzip</tt> requests. Deflaters hold native memory and are
+ * expensive to create, so they are kept in a pool and reset between uses instead of being created per batch.
+ */
+@Component
+@Slf4j
+public class GzipCompressor {
+	private static final byte[] HEADER = {
+			0x1f, (byte) 0x8b, // magic
+			Deflater.DEFLATED, // compression method
+			0,                 // flags
+			0, 0, 0, 0,        // modification time
+			0,                 // extra flags
+			(byte) 0xff        // operating system: unknown
+	};
+
+	private final RingBuffer<Deflater> deflaters;
+	private final int level;
+	private final CompressionMetrics metrics;
+
+	@Autowired
+	public GzipCompressor(NozzleProperties properties, CompressionMetrics metrics) {
+		this.deflaters = new RingBuffer<>(Runtime.getRuntime().availableProcessors() * 2);
+		this.level = properties.getCompressionLevel();
+		this.metrics = metrics;
+
+		if (properties.isGzip()) {
+			log.info("Compressing batches with gzip level {}", level);
+		}
+	}
+
+	/**
+	 * Append the gzip encoding of {@code in} to {@code out}
+	 */
+	public void compress(LineProtocolBuffer in, LineProtocolBuffer out) {
+		int start = out.length();
+
+		out.write(HEADER);
+
+		Deflater deflater = acquire();
+		try {
+			deflater.setInput(in.array(), 0, in.length());
+			deflater.finish();
+
+			// line protocol usually shrinks at least 4x, so this rarely needs to grow
+			out.ensureCapacity(out.length() + in.length() / 4 + 64);
+			while (!deflater.finished()) {
+				if (out.length() == out.capacity()) {
+					out.ensureCapacity(out.capacity() + 1);
+				}
+
+				out.advance(deflater.deflate(out.array(), out.length(), out.capacity() - out.length()));
+			}
+		} finally {
+			release(deflater);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(in.array(), 0, in.length());
+
+		writeIntLE((int) crc.getValue(), out);
+		writeIntLE(in.length(), out);
+
+		metrics.compressed(in.length(), out.length() - start);
+	}
+
+	private Deflater acquire() {
+		Deflater deflater = deflaters.poll();
+		return deflater == null ? new Deflater(level, true) : deflater;
+	}
+
+	private void release(Deflater deflater) {
+		deflater.reset();
+
+		if (!deflaters.offer(deflater)) {
+			deflater.end();
+		}
+	}
+
+	private static void writeIntLE(int value, LineProtocolBuffer out) {
+		out.write((byte) value);
+		out.write((byte) (value >>> 8));
+		out.write((byte) (value >>> 16));
+		out.write((byte) (value >>> 24));
+	}
+
+	@PreDestroy
+	public void close() {
+		Deflater deflater;
+		while ((deflater = deflaters.poll()) != null) {
+			deflater.end();
+		}
+	}
+}
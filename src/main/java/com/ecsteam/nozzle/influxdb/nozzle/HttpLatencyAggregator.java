@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.Method;
+import org.cloudfoundry.doppler.PeerType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds HttpStartStop events into a {@link LatencyHistogram} per (application or route, method, status class,
+ * peer type) and window, and writes one point per histogram and window instead of one per request:
+ *
+ * <tt>http_latency,app_id=..|route=..,method=GET,peerType=CLIENT,status=2xx count=Ni,max=..,p50=..,p90=..,p99=..
+ * start</tt>
+ *
+ * with the latencies in milliseconds. Histograms are reset rather than replaced between windows, so steady traffic
+ * allocates nothing but the route of requests without an application ID. Only used by one thread.
+ */
+public class HttpLatencyAggregator {
+	public static final String MEASUREMENT = "http_latency";
+
+	private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final int IDLE_WINDOWS = 10;
+
+	private static final String[] STATUS_CLASSES = {"unknown", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+	private static final byte[] COUNT_FIELD = " count=".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] MAX_FIELD = "i,max=".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] P50_FIELD = ",p50=".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] P90_FIELD = ",p90=".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] P99_FIELD = ",p99=".getBytes(StandardCharsets.UTF_8);
+
+	private final LineProtocolEncoder encoder;
+	private final long windowNanos;
+
+	private final HashMap<Key, Window> windows = new HashMap<>();
+	private final Key probe = new Key();
+
+	public HttpLatencyAggregator(LineProtocolEncoder encoder, long windowMillis) {
+		this.encoder = encoder;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+	}
+
+	/**
+	 * Record the duration of an HttpStartStop, writing the previous window of its histogram first if this
+	 * request starts a new one
+	 *
+	 * @return the number of points written, or -1 if the envelope is not an HttpStartStop
+	 */
+	public int aggregate(Envelope envelope, LineProtocolBuffer out) {
+		HttpStartStop http = envelope.getHttpStartStop();
+		if (http == null) {
+			return -1;
+		}
+
+		if (http.getStartTimestamp() == null || http.getStopTimestamp() == null) {
+			return 0;
+		}
+
+		Window window = windows.get(probe.set(http));
+		if (window == null) {
+			Key key = probe.copy();
+			window = new Window(encoder.getPrefix(MEASUREMENT, key.tags()));
+			windows.put(key, window);
+		}
+
+		long timestamp = envelope.getTimestamp();
+		int written = 0;
+
+		if (window.histogram.getCount() > 0
+				&& (timestamp < window.start || timestamp - window.start >= windowNanos)) {
+			written = write(window, out);
+		}
+
+		if (window.histogram.getCount() == 0) {
+			window.start = timestamp - Math.floorMod(timestamp, windowNanos);
+		}
+
+		window.histogram.record(TimeUnit.NANOSECONDS.toMicros(http.getStopTimestamp() - http.getStartTimestamp()));
+		window.lastSeen = timestamp;
+
+		return written;
+	}
+
+	/**
+	 * Write every window that ended more than the grace period ago, and forget histograms that have gone quiet
+	 *
+	 * @param now the current time in epoch nanoseconds
+	 * @param all write every open window regardless of its end, e.g. on shutdown
+	 * @return the number of points written
+	 */
+	public int flush(long now, boolean all, LineProtocolBuffer out) {
+		int written = 0;
+
+		for (Iterator<Window> it = windows.values().iterator(); it.hasNext(); ) {
+			Window window = it.next();
+
+			if (window.histogram.getCount() > 0) {
+				if (all || now - (window.start + windowNanos) >= GRACE_NANOS) {
+					written += write(window, out);
+				}
+			} else if (now - window.lastSeen > IDLE_WINDOWS * windowNanos) {
+				it.remove();
+			}
+		}
+
+		return written;
+	}
+
+	private int write(Window window, LineProtocolBuffer out) {
+		LatencyHistogram histogram = window.histogram;
+
+		out.write(window.prefix);
+		out.write(COUNT_FIELD);
+		encoder.writeLong(histogram.getCount(), out);
+		out.write(MAX_FIELD);
+		writeMillis(histogram.getMax(), out);
+		out.write(P50_FIELD);
+		writeMillis(histogram.valueAtPercentile(50), out);
+		out.write(P90_FIELD);
+		writeMillis(histogram.valueAtPercentile(90), out);
+		out.write(P99_FIELD);
+		writeMillis(histogram.valueAtPercentile(99), out);
+		out.write((byte) ' ');
+		encoder.writeTimestamp(window.start, out);
+		out.write((byte) '\n');
+
+		histogram.reset();
+		return 1;
+	}
+
+	private void writeMillis(long micros, LineProtocolBuffer out) {
+		encoder.writeDouble(micros / 1000.0, out);
+	}
+
+	public int size() {
+		return windows.size();
+	}
+
+	/**
+	 * The host of a request URI, which may or may not include a scheme
+	 */
+	static String routeOf(String uri) {
+		if (uri == null) {
+			return null;
+		}
+
+		int start = uri.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+
+		int end = start;
+		while (end < uri.length() && "/:?#".indexOf(uri.charAt(end)) < 0) {
+			++end;
+		}
+
+		return end > start ? uri.substring(start, end) : null;
+	}
+
+	/**
+	 * What a histogram is kept for. Mutable, so one instance can probe the map for every request.
+	 */
+	private static final class Key {
+		UUID application;
+		String route;
+		Method method;
+		PeerType peerType;
+		int statusClass;
+
+		Key set(HttpStartStop http) {
+			this.application = http.getApplicationId();
+			this.route = application == null ? routeOf(http.getUri()) : null;
+			this.method = http.getMethod();
+			this.peerType = http.getPeerType();
+
+			Integer status = http.getStatusCode();
+			this.statusClass = status == null || status < 100 || status >= 600 ? 0 : status / 100;
+
+			return this;
+		}
+
+		Key copy() {
+			Key copy = new Key();
+			copy.application = application;
+			copy.route = route;
+			copy.method = method;
+			copy.peerType = peerType;
+			copy.statusClass = statusClass;
+
+			return copy;
+		}
+
+		Map<String, String> tags() {
+			Map<String, String> tags = new TreeMap<>();
+
+			if (application != null) {
+				tags.put("app_id", application.toString());
+			} else if (route != null) {
+				tags.put("route", route);
+			}
+
+			if (method != null) {
+				tags.put("method", method.toString());
+			}
+
+			if (peerType != null) {
+				tags.put("peerType", peerType.toString());
+			}
+
+			tags.put("status", STATUS_CLASSES[statusClass]);
+			return tags;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = Objects.hashCode(application);
+			h = 31 * h + Objects.hashCode(route);
+			h = 31 * h + Objects.hashCode(method);
+			h = 31 * h + Objects.hashCode(peerType);
+			return 31 * h + statusClass;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) o;
+			return statusClass == other.statusClass
+					&& method == other.method
+					&& peerType == other.peerType
+					&& Objects.equals(application, other.application)
+					&& Objects.equals(route, other.route);
+		}
+	}
+
+	private static class Window {
+		final byte[] prefix;
+		final LatencyHistogram histogram = new LatencyHistogram();
+
+		long start;
+		long lastSeen;
+
+		Window(byte[] prefix) {
+			this.prefix = prefix;
+		}
+	}
+}
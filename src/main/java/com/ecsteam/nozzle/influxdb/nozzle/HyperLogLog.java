@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * A fixed-size HyperLogLog sketch estimating the number of distinct values offered to it, within about 3% with
+ * the default 1024 one-byte registers. Thread safe.
+ */
+public class HyperLogLog {
+	private static final int DEFAULT_PRECISION = 10;
+
+	private final int precision;
+	private final byte[] registers;
+	private final double alpha;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision) {
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+
+		int m = registers.length;
+		this.alpha = m >= 128 ? 0.7213 / (1 + 1.079 / m) : m == 64 ? 0.709 : m == 32 ? 0.697 : 0.673;
+	}
+
+	public void offer(String value) {
+		offer(hash(value));
+	}
+
+	public synchronized void offer(long hash) {
+		int register = (int) (hash >>> (64 - precision));
+		// the remaining bits, with a sentinel so the count of leading zeros is bounded
+		long rest = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+
+		if (rank > registers[register]) {
+			registers[register] = rank;
+		}
+	}
+
+	public synchronized long cardinality() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+
+		for (byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) {
+				++zeros;
+			}
+		}
+
+		double estimate = alpha * m * m / sum;
+
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// small range correction: linear counting is more accurate here
+			estimate = m * Math.log((double) m / zeros);
+		}
+
+		return Math.round(estimate);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-16 chars, finished with the MurmurHash3 mixer so the high bits are well spread
+	 */
+	static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); ++i) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+}
@@ -0,0 +1,402 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects envelopes from any number of producer threads through a lock-free {@link RingBuffer} and
+ * drains them on a single thread, encoding each one straight into the current batch's buffer. A batch
+ * is flushed to the {@link InfluxDBSender} as soon as it reaches the batch size the {@link FlowController}
+ * currently allows, the configured number of bytes, or has been open for longer than the max linger time,
+ * whichever comes first.
+ */
+@Slf4j
+public class InfluxDBBatcher implements Runnable {
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final int POOLED_BUFFERS = 32;
+
+	private static final long WINDOW_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final RingBuffer<Envelope> buffer;
+	private final InfluxDBSender sender;
+	private final BatchSpool spool;
+	private final PipelineMetrics pipelineMetrics;
+	private final LineProtocolEncoder encoder;
+	private final ValueMetricAggregator aggregator;
+	private final MetricCoalescer coalescer;
+	private final HttpLatencyAggregator httpLatency;
+	private final BufferPool pool;
+	private final FlowController.Node flow;
+
+	private final int maxBytes;
+	private final long maxLingerNanos;
+
+	private final OverloadPolicy overloadPolicy;
+	private final long blockTimeoutNanos;
+	private final int sampleRate;
+	private final int sampleThreshold;
+
+	/**
+	 * Envelopes offered past the sample threshold, counted across every thread adding to this shard
+	 */
+	private final AtomicLong sampled = new AtomicLong();
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	private final String destination;
+	private final RouteTarget target;
+	private final PriorityLane lane;
+
+	private Batch batch;
+	private long batchOpened;
+	private long nextWindowCheck;
+
+	/**
+	 * @param destination the base URL of the InfluxDB node every batch is written to, or null for the default
+	 * @param target the database every batch is written to, or null for the default
+	 * @param lane the priority lane the batcher serves, whose settings override the properties, or null
+	 * @param seriesCacheSize this batcher's share of <tt>series-cache-size</tt>
+	 */
+	public InfluxDBBatcher(NozzleProperties properties, InfluxDBSender sender, BatchSpool spool,
+			TagCardinalityGuard guard, SeriesKeyCacheMetrics cacheMetrics, PipelineMetrics pipelineMetrics,
+			FlowController flowController, String destination, RouteTarget target, PriorityLane lane,
+			int seriesCacheSize) {
+		this.destination = destination;
+		this.target = target;
+		this.lane = lane;
+		this.flow = flowController.node(destination, target, lane);
+		this.buffer = new RingBuffer<>(lane != null && lane.getBufferSize() > 0 ? lane.getBufferSize()
+				: properties.getBufferSize());
+		this.sender = sender;
+		this.spool = spool;
+		this.pipelineMetrics = pipelineMetrics;
+
+		int cacheSize = Math.max(1, seriesCacheSize);
+		CounterState counters = properties.isSuppressUnchangedCounters()
+				? new CounterState(TimeUnit.MILLISECONDS.toNanos(properties.getCounterHeartbeat())) : null;
+		this.encoder = new LineProtocolEncoder(properties.getFoundation(), new SeriesKeyCache(cacheSize, cacheMetrics),
+				counters, guard, properties.getPrecision(), properties.getIntegerMetrics());
+
+		List<AggregationRule> rules = AggregationRule.parse(properties.getAggregations());
+		this.aggregator = rules.isEmpty() ? null : new ValueMetricAggregator(rules, encoder, pipelineMetrics);
+		this.coalescer = properties.isCoalesce()
+				? new MetricCoalescer(encoder, properties.getCoalesceWindow(), properties.getCoalesceMeasurement()) : null;
+		this.httpLatency = properties.isHttpLatency()
+				? new HttpLatencyAggregator(encoder, properties.getHttpLatencyWindow()) : null;
+
+		this.maxBytes = properties.getBatchBytes();
+		this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(lane != null && lane.getLingerMillis() > 0
+				? lane.getLingerMillis() : properties.getMaxLinger());
+
+		// only the first lane may hold back the Firehose; the others make way by dropping
+		this.overloadPolicy = lane != null && !lane.isBlocking() && properties.getOverloadPolicy() == OverloadPolicy.block
+				? OverloadPolicy.drop_newest : properties.getOverloadPolicy();
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(properties.getOverloadBlockTimeout());
+		this.sampleRate = Math.max(1, properties.getOverloadSampleRate());
+		this.sampleThreshold = buffer.capacity() / 2;
+
+		// a line is a few hundred bytes at most, so size new buffers for a full batch without growing
+		int initialCapacity = Math.min(maxBytes, properties.getBatchSize() * 256);
+		this.pool = new BufferPool(POOLED_BUFFERS, initialCapacity, Math.max(initialCapacity, maxBytes) * 2);
+	}
+
+	public void start(String name) {
+		pipelineMetrics.register(this);
+		if (lane != null) {
+			lane.register(this);
+		}
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting work, flush whatever is left and wait for the batching thread to exit
+	 */
+	public void stop() {
+		running = false;
+
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			try {
+				thread.join(TimeUnit.NANOSECONDS.toMillis(maxLingerNanos) + 1000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		pipelineMetrics.unregister(this);
+		if (lane != null) {
+			lane.unregister(this);
+		}
+	}
+
+	/**
+	 * @return how many envelopes are waiting to be batched
+	 */
+	int getQueued() {
+		return buffer.size();
+	}
+
+	/**
+	 * @return whether at least half the buffer is waiting to be batched
+	 */
+	boolean isHalfFull() {
+		return buffer.size() >= sampleThreshold;
+	}
+
+	/**
+	 * Add an envelope to the next batch. If the buffer is full, the configured {@link OverloadPolicy} decides
+	 * whether to wait for room, for at most <tt>overload-block-timeout</tt>, or which envelope to discard.
+	 *
+	 * @param envelope a CounterEvent or ValueMetric
+	 * @return false if the envelope was discarded
+	 */
+	public boolean add(Envelope envelope) {
+		switch (overloadPolicy) {
+			case drop_oldest:
+				while (!buffer.offer(envelope)) {
+					if (buffer.poll() != null) {
+						dropped();
+					}
+				}
+				break;
+
+			case drop_newest:
+				if (!buffer.offer(envelope)) {
+					dropped();
+					return false;
+				}
+				break;
+
+			case sample:
+				if ((buffer.size() >= sampleThreshold && sampled.incrementAndGet() % sampleRate != 0) || !buffer.offer(envelope)) {
+					dropped();
+					return false;
+				}
+				break;
+
+			default:
+				long waitingSince = 0;
+				while (!buffer.offer(envelope)) {
+					if (!running) {
+						return false;
+					}
+
+					if (waitingSince == 0) {
+						waitingSince = System.nanoTime();
+					} else if (blockTimeoutNanos > 0 && System.nanoTime() - waitingSince >= blockTimeoutNanos) {
+						// InfluxDB has not taken a batch in all that time; keep reading rather than stall for good
+						dropped();
+						return false;
+					}
+
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+		}
+
+		pipelineMetrics.accepted();
+		if (lane != null) {
+			lane.accepted();
+		}
+		return true;
+	}
+
+	private void dropped() {
+		pipelineMetrics.dropped();
+		if (lane != null) {
+			lane.shed();
+		}
+	}
+
+	@Override
+	public void run() {
+		log.info("Batching up to {} points, {} bytes or {} ms per batch", flow.getBatchSize(), maxBytes,
+				TimeUnit.NANOSECONDS.toMillis(maxLingerNanos));
+
+		while (running || !buffer.isEmpty()) {
+			if (hasWindows() && System.nanoTime() - nextWindowCheck >= 0) {
+				flushWindows(false);
+				nextWindowCheck = System.nanoTime() + WINDOW_CHECK_NANOS;
+			}
+
+			Envelope envelope = buffer.poll();
+
+			if (envelope == null) {
+				if (lingerExpired()) {
+					flush();
+				} else {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+
+				continue;
+			}
+
+			openBatch();
+			encode(envelope);
+			flushIfFull();
+		}
+
+		if (hasWindows()) {
+			flushWindows(true);
+		}
+
+		flush();
+	}
+
+	private void openBatch() {
+		if (batch == null) {
+			batch = new Batch(pool);
+			batch.setDestination(destination);
+			batch.setTarget(target);
+			batch.setLane(lane);
+			batchOpened = System.nanoTime();
+		}
+	}
+
+	private void flushIfFull() {
+		if (batch.getPoints() >= flow.getBatchSize() || batch.getBytes() >= maxBytes || lingerExpired()) {
+			flush();
+		}
+	}
+
+	private void encode(Envelope envelope) {
+		LineProtocolBuffer out = batch.getBuffer();
+		int start = out.length();
+
+		try {
+			int aggregated = httpLatency == null ? -1 : httpLatency.aggregate(envelope, out);
+			if (aggregated < 0 && aggregator != null) {
+				aggregated = aggregator.aggregate(envelope, out);
+			}
+			if (aggregated < 0 && coalescer != null) {
+				aggregated = coalescer.coalesce(envelope, out);
+			}
+
+			if (aggregated >= 0) {
+				batch.pointsAdded(aggregated);
+			} else if (encoder.encode(envelope, out)) {
+				batch.pointAdded();
+				batch.envelopeAdded(envelope.getTimestamp() == null ? 0 : envelope.getTimestamp());
+			} else {
+				log.trace("Skipping envelope that is unchanged or cannot be written as line protocol: {}", envelope);
+			}
+		} catch (RuntimeException e) {
+			out.truncate(start);
+			log.error("Could not encode envelope: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Write the aggregation windows, coalesced groups and latency histograms that have closed into the current
+	 * batch
+	 *
+	 * @param all write every open window, when shutting down
+	 */
+	private void flushWindows(boolean all) {
+		openBatch();
+
+		LineProtocolBuffer out = batch.getBuffer();
+		int start = out.length();
+
+		try {
+			long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+
+			if (aggregator != null) {
+				batch.pointsAdded(aggregator.flush(now, all, out));
+			}
+
+			if (coalescer != null) {
+				batch.pointsAdded(coalescer.flush(now, all, out));
+			}
+
+			if (httpLatency != null) {
+				batch.pointsAdded(httpLatency.flush(now, all, out));
+			}
+		} catch (RuntimeException e) {
+			out.truncate(start);
+			log.error("Could not write aggregation windows: {}", e.getMessage());
+		}
+
+		flushIfFull();
+	}
+
+	private boolean hasWindows() {
+		return aggregator != null || coalescer != null || httpLatency != null;
+	}
+
+	private boolean lingerExpired() {
+		return batch != null && System.nanoTime() - batchOpened >= maxLingerNanos;
+	}
+
+	private void flush() {
+		if (batch == null) {
+			return;
+		}
+
+		if (batch.isEmpty()) {
+			// nothing but skipped envelopes
+			batch.release();
+			batch = null;
+			return;
+		}
+
+		log.debug("Flushing batch of {} points ({} bytes)", batch.getPoints(), batch.getBytes());
+
+		// hand the batch off as-is; the next envelope opens a fresh one, so nothing is shared with the sender
+		Batch flushed = batch;
+		batch = null;
+
+		long sent = System.nanoTime();
+		pipelineMetrics.sending(flushed);
+
+		try {
+			sender.sendBatch(flushed).whenComplete((delivered, error) -> {
+				if (error != null) {
+					log.error("Failed to send batch: {}", error.getMessage());
+				}
+
+				boolean written = Boolean.TRUE.equals(delivered);
+				pipelineMetrics.sent(flushed, sent, written);
+				if (written && lane != null) {
+					lane.delivered(flushed);
+				}
+
+				if (!written && !(spool.isEnabled() && spool.append(flushed))) {
+					pipelineMetrics.lost(flushed);
+				}
+
+				flushed.release();
+			});
+		} catch (RuntimeException e) {
+			log.error("Could not hand batch to the sender: {}", e.getMessage());
+			pipelineMetrics.sent(flushed, sent, false);
+			pipelineMetrics.lost(flushed);
+			flushed.release();
+		}
+	}
+}
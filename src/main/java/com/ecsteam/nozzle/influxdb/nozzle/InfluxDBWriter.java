@@ -18,130 +18,173 @@ package com.ecsteam.nozzle.influxdb.nozzle;
 import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
 import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
 import lombok.extern.slf4j.Slf4j;
-import org.cloudfoundry.doppler.CounterEvent;
 import org.cloudfoundry.doppler.Envelope;
-import org.cloudfoundry.doppler.ValueMetric;
+import org.cloudfoundry.doppler.HttpStartStop;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
-import org.springframework.util.StringUtils;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import javax.annotation.PreDestroy;
 import java.util.List;
-import java.util.Map;
 
 /**
- * Captures messages from the Cloud Foundry Firehose and batches them to be sent to InfluxDB
+ * Captures messages from the Cloud Foundry Firehose and batches them to be sent to InfluxDB.
+ *
+ * Envelopes are partitioned by series (metric name, origin, job and index) over
+ * <tt>influxdb.nozzle.shards</tt> batchers, each with its own buffer, encoder and batching thread. Every
+ * series always lands on the same shard, so its points are written in the order they were received, and
+ * no shard shares anything with another on the way to the sender.
+ *
+ * With several InfluxDB nodes configured, series are first partitioned over the nodes with a
+ * {@link ConsistentHashRing}, and each node gets its own set of shards, so a batch only ever holds points for
+ * one node.
+ *
+ * Before any of that, the {@link DatabaseRouter} picks the database an envelope goes to. Every database routed
+ * to gets its own nodes' worth of shards, and so its own batches and in-flight budget.
+ *
+ * With <tt>influxdb.nozzle.lanes</tt> configured, each {@link PriorityLanes priority lane} gets such a set of
+ * batchers for every database, with the lane's own buffers, flush interval and in-flight share. While a lane is
+ * under pressure, envelopes for the lanes below it are shed here, before they take up any room.
  */
 @Service
 @Slf4j
 public class InfluxDBWriter {
 
-	private final ResettableCountDownLatch latch;
-	private final List<String> messages;
+	private final MetricFilter filter;
+	private final DatabaseRouter router;
+	private final PriorityLanes priorities;
+	private final PipelineMetrics pipelineMetrics;
+	private final int targetCount;
 
-	private String foundation;
+	/**
+	 * The batchers by lane and database (lane * databases + database), node and shard
+	 */
+	private final InfluxDBBatcher[][][] lanes;
+	private final ConsistentHashRing ring;
+	private final boolean shardByTags;
 
 	@Autowired
-	public InfluxDBWriter(NozzleProperties properties, MetricsDestination destination, InfluxDBSender sender) {
-		log.info("Initializing DB Writer with batch size {}", properties.getBatchSize());
-		this.messages = Collections.synchronizedList(new ArrayList<>());
-		this.latch = new ResettableCountDownLatch(properties.getBatchSize());
-
-		this.foundation = properties.getFoundation();
+	public InfluxDBWriter(NozzleProperties properties, MetricsDestination destination, InfluxDBSender sender,
+			BatchSpool spool, MetricFilter filter, TagCardinalityGuard guard, SeriesKeyCacheMetrics cacheMetrics,
+			PipelineMetrics pipelineMetrics, FlowController flow, DatabaseRouter router, PriorityLanes priorities) {
+		this.filter = filter;
+		this.router = router;
+		this.priorities = priorities;
+		this.pipelineMetrics = pipelineMetrics;
+
+		int count = Math.max(1, properties.getShards());
+		List<String> nodes = destination.getInfluxDbHosts();
+		List<RouteTarget> targets = router.getTargets();
+		List<PriorityLane> priorityLanes = priorities.getLanes();
+		this.targetCount = targets.size();
+		log.info("Initializing DB Writer with batch size {} over {} shards for each of {} InfluxDB nodes, {} "
+				+ "databases and {} lanes", properties.getBatchSize(), count, nodes.size(), targets.size(),
+				priorityLanes.size());
+
+		// coalescing needs every metric with the same tags on the same shard
+		this.shardByTags = properties.isCoalesce();
+		this.ring = nodes.size() > 1 ? new ConsistentHashRing(nodes) : null;
+		this.lanes = new InfluxDBBatcher[priorityLanes.size() * targets.size()][nodes.size()][count];
+
+		// every series goes to exactly one batcher, so they split the series cache between them
+		int cacheSize = properties.getSeriesCacheSize() / (lanes.length * nodes.size() * count);
+		for (int priority = 0; priority < priorityLanes.size(); ++priority) {
+			// without lanes configured, the batchers are the same as they have always been
+			PriorityLane lane = priorities.isConfigured() ? priorityLanes.get(priority) : null;
+
+			for (int target = 0; target < targets.size(); ++target) {
+				String prefix = "influxdb-batcher-" + (lane == null ? "" : lane.getName() + "-")
+						+ (target == 0 ? "" : DatabaseRouter.nameOf(targets.get(target)) + "-");
+
+				for (int node = 0; node < nodes.size(); ++node) {
+					// a single node keeps the default destination, so its batches are spooled and sent as before
+					String host = ring == null ? null : nodes.get(node);
+					for (int i = 0; i < count; ++i) {
+						InfluxDBBatcher shard = new InfluxDBBatcher(properties, sender, spool, guard, cacheMetrics,
+								pipelineMetrics, flow, host, targets.get(target), lane, cacheSize);
+						shard.start(ring == null ? prefix + i : prefix + node + "-" + i);
+						lanes[priority * targetCount + target][node][i] = shard;
+					}
+				}
+			}
+		}
+	}
 
-		new Thread(new InfluxDBBatchListener(latch, messages, sender)).start();
+	@PreDestroy
+	public void close() {
+		for (InfluxDBBatcher[][] nodes : lanes) {
+			for (InfluxDBBatcher[] shards : nodes) {
+				for (InfluxDBBatcher shard : shards) {
+					shard.stop();
+				}
+			}
+		}
 	}
 
 	/**
-	 * Convert an envelope into an InfluxDB compatible message. In general, the format is
+	 * Hand an envelope to the batcher, which converts it into an InfluxDB compatible message with
+	 * {@link LineProtocolEncoder} and writes it to InfluxDB with the next batch. In general, the format is
 	 *
 	 * <tt>message[,tag=value]* value timestamp</tt>
 	 *
-	 * Add each message String to a batch list and count down a latch. When the latch reaches 0,
-	 * it will write to InfluxDB and reset.
+	 * This runs on the caller's thread. With the <tt>block</tt> overload policy it waits while the batcher is
+	 * full, which is what holds back demand on the Firehose.
 	 *
 	 * @param envelope The event from the Firehose
+	 * @return false if the envelope was filtered out or discarded by the overload policy
 	 */
-	@Async
-	public void writeMessage(Envelope envelope) {
-		final StringBuilder messageBuilder = new StringBuilder();
-
-		CounterEvent ce = envelope.getCounterEvent();
-		ValueMetric vm = envelope.getValueMetric();
-
-		messageBuilder.append(ce == null ? vm.getName() : ce.getName());
-		getTags(envelope).forEach((k, v) -> messageBuilder.append(",").append(k).append("=").append(v));
-
-		messageBuilder.append(" value=").append(ce == null ? vm.value() : ce.getTotal())
-				.append(" ")
-				.append(envelope.getTimestamp());
-
-		this.messages.add(messageBuilder.toString());
-
-		latch.countDown();
-	}
-
-	/**
-	 * Get all the tags from the Envelope plus any EventType-specific fields into a single Map
-	 *
-	 * @param envelope the Event
-	 * @return the tag map
-	 */
-	private Map<String, String> getTags(Envelope envelope) {
-		final Map<String, String> tags = new HashMap<>();
-
-		if (StringUtils.hasText(foundation)) {
-			tags.put("foundation", foundation);
-		}
-
-		if (!CollectionUtils.isEmpty(envelope.getTags())) {
-			envelope.getTags().forEach((k, v) -> {
-				if (StringUtils.hasText(v)) {
-					tags.put(k, v);
-				}
-			});
-		}
-
-		if (StringUtils.hasText(envelope.getOrigin())) {
-			tags.put("origin", envelope.getOrigin());
+	public boolean writeMessage(Envelope envelope) {
+		if (!filter.accept(envelope)) {
+			return false;
 		}
 
-		if (StringUtils.hasText(envelope.getIp())) {
-			tags.put("ip", envelope.getIp());
+		int lane = priorities.laneOf(envelope);
+		if (lane > 0 && priorities.shouldShed(lane)) {
+			priorities.getLanes().get(lane).shed();
+			pipelineMetrics.dropped();
+			return false;
 		}
 
-		if (StringUtils.hasText(envelope.getDeployment())) {
-			tags.put("deployment", envelope.getDeployment());
+		InfluxDBBatcher[][] nodes = lanes[lane * targetCount + router.route(envelope)];
+		InfluxDBBatcher shard = nodes[0][0];
+		if (ring != null || nodes[0].length > 1) {
+			int hash = seriesHash(envelope, shardByTags);
+			InfluxDBBatcher[] shards = ring == null ? nodes[0] : nodes[ring.nodeOf(ConsistentHashRing.mix(hash))];
+			shard = shards[Math.floorMod(hash, shards.length)];
 		}
 
-		if (StringUtils.hasText(envelope.getJob())) {
-			tags.put("job", envelope.getJob());
+		boolean added = shard.add(envelope);
+		if (lane < priorities.getLanes().size() - 1) {
+			priorities.queued(lane, shard);
 		}
 
-		if (StringUtils.hasText(envelope.getIndex())) {
-			tags.put("index", envelope.getIndex());
-		}
-
-		if (envelope.getValueMetric() != null) {
-			if (StringUtils.hasText(envelope.getValueMetric().getUnit())) {
-				tags.put("unit", envelope.getValueMetric().getUnit());
-			}
+		return added;
+	}
 
-			tags.put("eventType", "ValueMetric");
+	/**
+	 * Hash the series from the strings' cached hash codes, so routing an envelope allocates nothing
+	 *
+	 * @param tagsOnly leave the metric name out, so every metric from one emitter lands on the same shard
+	 */
+	static int seriesHash(Envelope envelope, boolean tagsOnly) {
+		HttpStartStop http = envelope.getHttpStartStop();
+		if (http != null) {
+			// every request for an application must land on the shard that holds its histograms
+			int hash = http.getApplicationId() != null ? http.getApplicationId().hashCode()
+					: hash(HttpLatencyAggregator.routeOf(http.getUri()));
+			return hash ^ (hash >>> 16);
 		}
 
-		if (envelope.getCounterEvent() != null) {
-			if (envelope.getCounterEvent().getDelta() != null) {
-				tags.put("delta", envelope.getCounterEvent().getDelta().toString());
-			}
+		String name = tagsOnly ? null : envelope.getValueMetric() != null ? envelope.getValueMetric().getName()
+				: envelope.getCounterEvent() != null ? envelope.getCounterEvent().getName() : null;
 
-			tags.put("eventType", "CounterEvent");
-		}
+		int hash = hash(name);
+		hash = 31 * hash + hash(envelope.getOrigin());
+		hash = 31 * hash + hash(envelope.getJob());
+		hash = 31 * hash + hash(envelope.getIndex());
+		return hash ^ (hash >>> 16);
+	}
 
-		return tags;
+	private static int hash(String value) {
+		return value == null ? 0 : value.hashCode();
 	}
 }
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-memory, log-linear histogram of durations in microseconds, in the style of HdrHistogram. Every power of
+ * two is split into {@value #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported within about 3%
+ * across the whole range from 1 &#181;s to over an hour, in about 8 KiB. The max is tracked exactly. Only used by
+ * one thread.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Values from 2^32 &#181;s (71 minutes) up all land in the top bucket
+	 */
+	private static final int MAX_EXPONENT = 32;
+
+	private final long[] counts = new long[2 * SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS];
+
+	private long count;
+	private long max;
+
+	void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		++counts[indexOf(micros)];
+		++count;
+		max = Math.max(max, micros);
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest value equivalent to the value at the percentile, never more than the max
+	 */
+	long valueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(max, highestValueAt(i));
+			}
+		}
+
+		return max;
+	}
+
+	void reset() {
+		if (count > 0) {
+			Arrays.fill(counts, 0);
+			count = 0;
+			max = 0;
+		}
+	}
+
+	static int indexOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			exponent = MAX_EXPONENT;
+			value = (1L << (MAX_EXPONENT + 1)) - 1;
+		}
+
+		// keep the top SUB_BUCKET_BITS + 1 bits; the leading one selects the upper half of the linear range
+		int shift = exponent - SUB_BUCKET_BITS;
+		int top = (int) (value >>> shift);
+
+		return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	static long highestValueAt(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+
+		int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+		long top = SUB_BUCKETS + (index - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte array that holds encoded line protocol. Instances are recycled through a
+ * {@link BufferPool}, so the backing array is reused from batch to batch instead of being reallocated.
+ */
+public class LineProtocolBuffer {
+	private byte[] array;
+	private int length;
+
+	public LineProtocolBuffer(int initialCapacity) {
+		this.array = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public void write(byte b) {
+		ensureCapacity(length + 1);
+		array[length++] = b;
+	}
+
+	public void write(byte[] bytes, int offset, int count) {
+		ensureCapacity(length + count);
+		System.arraycopy(bytes, offset, array, length, count);
+		length += count;
+	}
+
+	public void write(byte[] bytes) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Make room for at least {@code capacity} bytes in total
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > array.length) {
+			array = Arrays.copyOf(array, Math.max(capacity, array.length << 1));
+		}
+	}
+
+	/**
+	 * Mark {@code count} bytes as written after they have been put into {@link #array()} directly, starting at
+	 * {@link #length()}
+	 */
+	public void advance(int count) {
+		if (length + count > array.length) {
+			throw new IndexOutOfBoundsException("Cannot advance past the capacity of the buffer");
+		}
+
+		length += count;
+	}
+
+	/**
+	 * Discard everything after {@code length}, used to roll back a partially written line
+	 */
+	public void truncate(int length) {
+		this.length = Math.min(this.length, length);
+	}
+
+	public void reset() {
+		length = 0;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(array, 0, length);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int capacity() {
+		return array.length;
+	}
+
+	/**
+	 * @return the backing array. Only the first {@link #length()} bytes are valid.
+	 */
+	public byte[] array() {
+		return array;
+	}
+}
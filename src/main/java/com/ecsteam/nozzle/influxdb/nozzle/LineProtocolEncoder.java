@@ -0,0 +1,505 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Encodes Firehose envelopes as InfluxDB line protocol, in the form
+ *
+ * <tt>measurement[,tag=value]* value=value timestamp</tt>
+ *
+ * for ValueMetrics, and <tt>measurement[,tag=value]* delta=Ni,total=Ni timestamp</tt> for CounterEvents. Tags
+ * only ever identify the series; everything that changes from point to point is a field. ValueMetrics are
+ * float fields unless their name matches one of the integer metric patterns. Timestamps are written with the
+ * configured {@link Precision}.
+ *
+ * Everything is written as UTF-8 straight into a {@link LineProtocolBuffer}; no intermediate Strings, maps or
+ * boxed numbers are created for a line. Measurements, tag keys and tag values are escaped according to the
+ * line protocol rules. The escaped, key-sorted <tt>measurement,tag=value,...</tt> prefix of each series is
+ * kept in a {@link SeriesKeyCache}, so a repeated series only costs its value and timestamp. An encoder keeps
+ * scratch state and must only be used by one thread.
+ */
+public class LineProtocolEncoder {
+	private static final byte[] VALUE_FIELD = bytes(" value=");
+	private static final byte[] DELTA_FIELD = bytes("delta=");
+	private static final byte[] TOTAL_FIELD = bytes("total=");
+	private static final byte[] COUNT_FIELD = bytes(" count=");
+	private static final byte[] LAST_FIELD = bytes("i,last=");
+	private static final byte[] MAX_FIELD = bytes(",max=");
+	private static final byte[] MEAN_FIELD = bytes(",mean=");
+	private static final byte[] MIN_FIELD = bytes(",min=");
+
+	/**
+	 * The largest integer a double holds exactly
+	 */
+	private static final long MAX_EXACT_LONG = 1L << 53;
+
+	/**
+	 * The most ValueMetric names whose field type is remembered
+	 */
+	private static final int MAX_INTEGER_NAMES = 65536;
+
+	private final String foundation;
+	private final SeriesKeyCache seriesKeys;
+	private final CounterState counters;
+	private final TagCardinalityGuard guard;
+	private int guardGeneration;
+
+	private final Precision precision;
+	private final List<FieldPattern> integerMetrics;
+	private final Map<String, Boolean> integerNames = new HashMap<>();
+
+	private final SeriesKey probe = new SeriesKey();
+	private final LineProtocolBuffer scratch = new LineProtocolBuffer(256);
+	private final byte[] digits = new byte[20];
+
+	public LineProtocolEncoder(String foundation, SeriesKeyCache seriesKeys) {
+		this(foundation, seriesKeys, null, null);
+	}
+
+	/**
+	 * @param counters if not null, counters whose total has not changed since they were last written are skipped
+	 * @param guard    if not null, limits the number of distinct values of envelope tags
+	 */
+	public LineProtocolEncoder(String foundation, SeriesKeyCache seriesKeys, CounterState counters,
+			TagCardinalityGuard guard) {
+		this(foundation, seriesKeys, counters, guard, Precision.ns, Collections.emptyList());
+	}
+
+	/**
+	 * @param precision      the precision timestamps are written with
+	 * @param integerMetrics patterns for the names of ValueMetrics to write as integer fields
+	 */
+	public LineProtocolEncoder(String foundation, SeriesKeyCache seriesKeys, CounterState counters,
+			TagCardinalityGuard guard, Precision precision, List<String> integerMetrics) {
+		this.foundation = StringUtils.hasText(foundation) ? foundation : null;
+		this.seriesKeys = seriesKeys;
+		this.counters = counters;
+		this.guard = guard != null && guard.isEnabled() ? guard : null;
+		this.precision = precision;
+		this.integerMetrics = new ArrayList<>();
+		for (String pattern : integerMetrics) {
+			this.integerMetrics.add(FieldPattern.parse(pattern));
+		}
+	}
+
+	/**
+	 * Write a CounterEvent or ValueMetric as a single line, including the trailing newline
+	 *
+	 * @param envelope the event from the Firehose
+	 * @param out      where to write the line
+	 * @return false if the envelope cannot be represented in line protocol or is an unchanged counter, in which
+	 * case nothing is written
+	 */
+	public boolean encode(Envelope envelope, LineProtocolBuffer out) {
+		CounterEvent ce = envelope.getCounterEvent();
+		ValueMetric vm = envelope.getValueMetric();
+
+		if (ce == null && vm == null) {
+			return false;
+		}
+
+		int start = out.length();
+		byte[] prefix = getPrefix(envelope);
+
+		if (ce == null) {
+			out.write(prefix);
+			out.write(VALUE_FIELD);
+
+			if (!writeValue(vm.getName(), vm.value(), out)) {
+				out.truncate(start);
+				return false;
+			}
+		} else {
+			if (ce.getDelta() == null && ce.getTotal() == null) {
+				return false;
+			}
+
+			if (counters != null && ce.getTotal() != null
+					&& !counters.update(prefix, ce.getTotal(), envelope.getTimestamp())) {
+				return false;
+			}
+
+			out.write(prefix);
+			writeCounterFields(ce, out);
+		}
+
+		out.write((byte) ' ');
+		writeTimestamp(envelope.getTimestamp(), out);
+		out.write((byte) '\n');
+
+		return true;
+	}
+
+	/**
+	 * Write <tt> delta=Ni,total=Ni</tt>, leaving out whichever is missing
+	 */
+	private void writeCounterFields(CounterEvent ce, LineProtocolBuffer out) {
+		out.write((byte) ' ');
+
+		if (ce.getDelta() != null) {
+			out.write(DELTA_FIELD);
+			writeLong(ce.getDelta(), out);
+			out.write((byte) 'i');
+
+			if (ce.getTotal() != null) {
+				out.write((byte) ',');
+			}
+		}
+
+		if (ce.getTotal() != null) {
+			out.write(TOTAL_FIELD);
+			writeLong(ce.getTotal(), out);
+			out.write((byte) 'i');
+		}
+	}
+
+	/**
+	 * Write one aggregated window as <tt>measurement[,tag=value]* count=Ni,last=..,max=..,mean=..,min=.. start</tt>,
+	 * timestamped with the start of the window
+	 *
+	 * @return false if the window is empty or its sum overflowed, in which case nothing is written
+	 */
+	boolean encodeWindow(WindowAccumulator window, LineProtocolBuffer out) {
+		double mean = window.sum / window.count;
+		if (window.count == 0 || !Double.isFinite(mean)) {
+			return false;
+		}
+
+		out.write(window.prefix);
+		out.write(COUNT_FIELD);
+		writeLong(window.count, out);
+		out.write(LAST_FIELD);
+		writeDouble(window.last, out);
+		out.write(MAX_FIELD);
+		writeDouble(window.max, out);
+		out.write(MEAN_FIELD);
+		writeDouble(mean, out);
+		out.write(MIN_FIELD);
+		writeDouble(window.min, out);
+		out.write((byte) ' ');
+		writeTimestamp(window.windowStart, out);
+		out.write((byte) '\n');
+
+		return true;
+	}
+
+	/**
+	 * Get the escaped <tt>measurement,tag=value,...</tt> prefix for an envelope's series, encoding it on a cache
+	 * miss
+	 */
+	byte[] getPrefix(Envelope envelope) {
+		if (guard != null && guard.getGeneration() != guardGeneration) {
+			// a tag has tripped the cardinality guard; forget the prefixes written with its raw values
+			guardGeneration = guard.getGeneration();
+			seriesKeys.clear();
+		}
+
+		byte[] prefix = seriesKeys.get(probe.set(envelope));
+
+		if (prefix == null) {
+			scratch.reset();
+
+			String measurement = envelope.getValueMetric() == null ? envelope.getCounterEvent().getName()
+					: envelope.getValueMetric().getName();
+			writeMeasurement(measurement, scratch);
+			getTags(envelope, measurement).forEach((k, v) -> writeTag(k, v, scratch));
+
+			prefix = Arrays.copyOf(scratch.array(), scratch.length());
+			seriesKeys.put(probe, prefix);
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * Encode a <tt>measurement,tag=value,...</tt> prefix for points the nozzle derives itself, with the foundation
+	 * tag added
+	 */
+	byte[] getPrefix(String measurement, Map<String, String> tags) {
+		SortedMap<String, String> sorted = new TreeMap<>(tags);
+		if (foundation != null) {
+			sorted.put("foundation", foundation);
+		}
+
+		scratch.reset();
+		writeMeasurement(measurement, scratch);
+		sorted.forEach((k, v) -> writeTag(k, v, scratch));
+
+		return Arrays.copyOf(scratch.array(), scratch.length());
+	}
+
+	/**
+	 * @return a number that changes every time a tag trips the cardinality guard, so prefixes cached outside the
+	 * encoder can be rebuilt with the guarded values
+	 */
+	int getGuardGeneration() {
+		return guard == null ? 0 : guard.getGeneration();
+	}
+
+	/**
+	 * Encode the <tt>measurement,tag=value,...</tt> prefix shared by every ValueMetric in a coalesced group. The
+	 * unit differs from metric to metric, so it is left out.
+	 */
+	byte[] getGroupPrefix(Envelope envelope, String measurement) {
+		scratch.reset();
+
+		writeMeasurement(measurement, scratch);
+
+		SortedMap<String, String> tags = getTags(envelope, measurement);
+		tags.remove("unit");
+		tags.forEach((k, v) -> writeTag(k, v, scratch));
+
+		return Arrays.copyOf(scratch.array(), scratch.length());
+	}
+
+	/**
+	 * Get all the tags from the Envelope plus any EventType-specific fields, sorted by key as InfluxDB
+	 * prefers
+	 *
+	 * @param envelope    the Event
+	 * @param measurement the measurement the tags are written with, for the cardinality guard
+	 * @return the tag map
+	 */
+	private SortedMap<String, String> getTags(Envelope envelope, String measurement) {
+		final SortedMap<String, String> tags = new TreeMap<>();
+
+		if (foundation != null) {
+			tags.put("foundation", foundation);
+		}
+
+		if (!CollectionUtils.isEmpty(envelope.getTags())) {
+			envelope.getTags().forEach((k, v) -> {
+				String value = guard == null || !StringUtils.hasText(v) ? v : guard.guard(measurement, k, v);
+				if (StringUtils.hasText(k) && StringUtils.hasText(value)) {
+					tags.put(k, value);
+				}
+			});
+		}
+
+		putIfHasText(tags, "origin", envelope.getOrigin());
+		putIfHasText(tags, "ip", envelope.getIp());
+		putIfHasText(tags, "deployment", envelope.getDeployment());
+		putIfHasText(tags, "job", envelope.getJob());
+		putIfHasText(tags, "index", envelope.getIndex());
+
+		if (envelope.getValueMetric() != null) {
+			putIfHasText(tags, "unit", envelope.getValueMetric().getUnit());
+			tags.put("eventType", "ValueMetric");
+		}
+
+		if (envelope.getCounterEvent() != null) {
+			tags.remove("delta");
+			tags.put("eventType", "CounterEvent");
+		}
+
+		return tags;
+	}
+
+	private static void putIfHasText(Map<String, String> tags, String key, String value) {
+		if (StringUtils.hasText(value)) {
+			tags.put(key, value);
+		}
+	}
+
+	/**
+	 * Write <tt>,key=value</tt>, or nothing if the value is empty
+	 */
+	public void writeTag(String key, String value, LineProtocolBuffer out) {
+		if (StringUtils.hasText(key) && StringUtils.hasText(value)) {
+			writeTagKey(key, out);
+			writeEscaped(value, true, out);
+		}
+	}
+
+	private void writeTagKey(String key, LineProtocolBuffer out) {
+		out.write((byte) ',');
+		writeEscaped(key, true, out);
+		out.write((byte) '=');
+	}
+
+	public void writeMeasurement(String measurement, LineProtocolBuffer out) {
+		writeEscaped(measurement, false, out);
+	}
+
+	/**
+	 * Write a string as UTF-8, escaping commas and spaces, plus equals signs in tag keys, tag values and field
+	 * keys. Newlines cannot appear in line protocol, so they are written as a literal <tt>\n</tt>.
+	 */
+	public void writeEscaped(String value, boolean escapeEquals, LineProtocolBuffer out) {
+		int length = value.length();
+		out.ensureCapacity(out.length() + length);
+
+		for (int i = 0; i < length; ++i) {
+			char c = value.charAt(i);
+
+			switch (c) {
+				case ',':
+				case ' ':
+					out.write((byte) '\\');
+					out.write((byte) c);
+					break;
+				case '=':
+					if (escapeEquals) {
+						out.write((byte) '\\');
+					}
+					out.write((byte) c);
+					break;
+				case '\n':
+					out.write((byte) '\\');
+					out.write((byte) 'n');
+					break;
+				default:
+					if (c < 0x80) {
+						out.write((byte) c);
+					} else if (c < 0x800) {
+						out.write((byte) (0xc0 | (c >> 6)));
+						out.write((byte) (0x80 | (c & 0x3f)));
+					} else if (Character.isHighSurrogate(c) && i + 1 < length
+							&& Character.isLowSurrogate(value.charAt(i + 1))) {
+						int codePoint = Character.toCodePoint(c, value.charAt(++i));
+						out.write((byte) (0xf0 | (codePoint >> 18)));
+						out.write((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+						out.write((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+						out.write((byte) (0x80 | (codePoint & 0x3f)));
+					} else if (Character.isSurrogate(c)) {
+						// unpaired surrogate, same replacement String.getBytes would use
+						out.write((byte) '?');
+					} else {
+						out.write((byte) (0xe0 | (c >> 12)));
+						out.write((byte) (0x80 | ((c >> 6) & 0x3f)));
+						out.write((byte) (0x80 | (c & 0x3f)));
+					}
+			}
+		}
+	}
+
+	/**
+	 * Write the decimal digits of a long
+	 */
+	public void writeLong(long value, LineProtocolBuffer out) {
+		if (value == Long.MIN_VALUE) {
+			// cannot be negated
+			out.write(bytes(Long.toString(value)));
+			return;
+		}
+
+		if (value < 0) {
+			out.write((byte) '-');
+			value = -value;
+		}
+
+		int position = digits.length;
+		do {
+			digits[--position] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+
+		out.write(digits, position, digits.length - position);
+	}
+
+	/**
+	 * Write a timestamp in nanoseconds with the configured precision
+	 */
+	public void writeTimestamp(long nanos, LineProtocolBuffer out) {
+		writeLong(precision.truncate(nanos), out);
+	}
+
+	/**
+	 * Write the value of a ValueMetric as an integer field if its name is one of the integer metrics, rounding
+	 * away any fraction, or as a float field otherwise. A field must keep the same type in a shard, so this is
+	 * decided by name rather than by value.
+	 *
+	 * @return false for NaN and infinity, which line protocol cannot represent
+	 */
+	public boolean writeValue(String name, double value, LineProtocolBuffer out) {
+		if (!isInteger(name)) {
+			return writeDouble(value, out);
+		}
+
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return false;
+		}
+
+		writeLong(Math.round(value), out);
+		out.write((byte) 'i');
+		return true;
+	}
+
+	private boolean isInteger(String name) {
+		if (integerMetrics.isEmpty() || name == null) {
+			return false;
+		}
+
+		Boolean integer = integerNames.get(name);
+		if (integer == null) {
+			integer = false;
+			for (FieldPattern pattern : integerMetrics) {
+				if (pattern.matches(name)) {
+					integer = true;
+					break;
+				}
+			}
+
+			if (integerNames.size() >= MAX_INTEGER_NAMES) {
+				integerNames.clear();
+			}
+			integerNames.put(name, integer);
+		}
+
+		return integer;
+	}
+
+	/**
+	 * Write a double with the fewest digits that still parse back to the same value, using
+	 * {@link ShortestDecimal}. Whole numbers are written without a fraction (InfluxDB still stores them as floats,
+	 * since there is no <tt>i</tt> suffix).
+	 *
+	 * @return false for NaN and infinity, which line protocol cannot represent
+	 */
+	public boolean writeDouble(double value, LineProtocolBuffer out) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return false;
+		}
+
+		if (Math.abs(value) < MAX_EXACT_LONG && value == (long) value) {
+			writeLong((long) value, out);
+			return true;
+		}
+
+		ShortestDecimal.write(value, digits, out);
+		return true;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+}
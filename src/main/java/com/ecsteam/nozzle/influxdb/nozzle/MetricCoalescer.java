@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.springframework.util.StringUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces ValueMetrics that share a tag set and fall into the same short time bucket into a single point with
+ * one field per metric name:
+ *
+ * <tt>measurement[,tag=value]* metricA=1,metricB=2 bucket</tt>
+ *
+ * The measurement is built from a template in which <tt>{origin}</tt>, <tt>{job}</tt> and <tt>{deployment}</tt>
+ * are replaced by the envelope's values. A group is written when a point from a later bucket arrives, when the
+ * same metric shows up twice in a bucket, or once the bucket has ended by the wall clock. When a tag trips the
+ * {@link TagCardinalityGuard}, every group is written and forgotten, so new groups are encoded with the guarded
+ * values. Like the batcher that owns it, it is only used by one thread.
+ */
+public class MetricCoalescer {
+	/**
+	 * How many buckets a group may go without points before it is forgotten
+	 */
+	private static final int IDLE_BUCKETS = 10;
+
+	private final LineProtocolEncoder encoder;
+	private final long bucketNanos;
+	private final String measurement;
+
+	private final HashMap<SeriesKey, Group> groups = new HashMap<>();
+	private final SeriesKey probe = new SeriesKey();
+	private int guardGeneration;
+
+	public MetricCoalescer(LineProtocolEncoder encoder, long windowMillis, String measurement) {
+		this.encoder = encoder;
+		this.bucketNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMillis));
+		this.measurement = measurement;
+	}
+
+	/**
+	 * Add a ValueMetric to its group, writing the group first if this point does not belong in it
+	 *
+	 * @return the number of points written, or -1 if the envelope is not a ValueMetric and should be encoded as is
+	 */
+	public int coalesce(Envelope envelope, LineProtocolBuffer out) {
+		ValueMetric vm = envelope.getValueMetric();
+		if (vm == null || vm.value() == null || !StringUtils.hasText(vm.getName())) {
+			return -1;
+		}
+
+		int written = 0;
+
+		if (encoder.getGuardGeneration() != guardGeneration) {
+			// a tag has tripped the cardinality guard; the prefixes of the groups carry its raw values
+			guardGeneration = encoder.getGuardGeneration();
+			written = flush(0L, true, out);
+			groups.clear();
+		}
+
+		Group group = groups.get(probe.setGroup(envelope));
+		if (group == null) {
+			group = new Group(encoder.getGroupPrefix(envelope, measurementFor(envelope)));
+			groups.put(probe.copy(), group);
+		}
+
+		long timestamp = envelope.getTimestamp();
+		long bucket = timestamp - Math.floorMod(timestamp, bucketNanos);
+
+		if (!group.isEmpty() && (group.bucket != bucket || group.names.contains(vm.getName()))) {
+			written += write(group, out);
+		}
+
+		group.add(bucket, vm.getName(), vm.value());
+		return written;
+	}
+
+	/**
+	 * Write every group whose bucket has ended, and forget groups that have gone quiet
+	 *
+	 * @param now the current time in epoch nanoseconds
+	 * @param all write every group regardless of its bucket, e.g. on shutdown
+	 * @return the number of points written
+	 */
+	public int flush(long now, boolean all, LineProtocolBuffer out) {
+		int written = 0;
+
+		for (Iterator<Group> it = groups.values().iterator(); it.hasNext(); ) {
+			Group group = it.next();
+
+			if (!group.isEmpty()) {
+				if (all || now - group.bucket >= 2 * bucketNanos) {
+					written += write(group, out);
+				}
+			} else if (now - group.bucket > IDLE_BUCKETS * bucketNanos) {
+				it.remove();
+			}
+		}
+
+		return written;
+	}
+
+	private int write(Group group, LineProtocolBuffer out) {
+		out.write(group.prefix);
+		out.write((byte) ' ');
+		out.write(group.fields.array(), 0, group.fields.length());
+		out.write((byte) ' ');
+		encoder.writeTimestamp(group.bucket, out);
+		out.write((byte) '\n');
+
+		group.reset();
+		return 1;
+	}
+
+	private String measurementFor(Envelope envelope) {
+		String name = measurement
+				.replace("{origin}", nullToEmpty(envelope.getOrigin()))
+				.replace("{job}", nullToEmpty(envelope.getJob()))
+				.replace("{deployment}", nullToEmpty(envelope.getDeployment()));
+
+		// a measurement cannot be empty
+		return StringUtils.hasText(name) ? name : "ValueMetric";
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * The fields collected for one tag set in the current bucket. The buffer and name set are reused from bucket
+	 * to bucket.
+	 */
+	private class Group {
+		final byte[] prefix;
+		final LineProtocolBuffer fields = new LineProtocolBuffer(256);
+		final Set<String> names = new HashSet<>();
+
+		long bucket;
+
+		Group(byte[] prefix) {
+			this.prefix = prefix;
+		}
+
+		boolean isEmpty() {
+			return names.isEmpty();
+		}
+
+		void add(long bucket, String name, double value) {
+			int start = fields.length();
+
+			if (!isEmpty()) {
+				fields.write((byte) ',');
+			}
+
+			encoder.writeEscaped(name, true, fields);
+			fields.write((byte) '=');
+
+			if (!encoder.writeValue(name, value, fields)) {
+				fields.truncate(start);
+				return;
+			}
+
+			this.bucket = bucket;
+			names.add(name);
+		}
+
+		void reset() {
+			fields.reset();
+			names.clear();
+		}
+	}
+}
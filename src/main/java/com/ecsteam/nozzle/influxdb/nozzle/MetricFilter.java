@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which envelopes are written at all, from the <tt>influxdb.nozzle.filters</tt> {@link FilterRule}s. The
+ * first rule that matches decides; envelopes no rule matches are kept unless
+ * <tt>influxdb.nozzle.filter-include-unmatched</tt> is false.
+ *
+ * The name and origin patterns of every rule are compiled into a {@link PatternTrie} per field. The rules that
+ * can match a given (origin, name) are worked out the first time that pair is seen and cached, so for most
+ * envelopes filtering is a lookup, plus checking the job, deployment and tag conditions of the few rules that
+ * have them. Thread safe.
+ */
+@Component
+@Slf4j
+public class MetricFilter implements PublicMetrics {
+	private static final FilterRule[] NO_RULES = new FilterRule[0];
+
+	/**
+	 * Stop caching decisions beyond this many (origin, name) pairs, which only a broken emitter would produce
+	 */
+	private static final int MAX_CACHED = 100_000;
+
+	private final List<FilterRule> rules = new ArrayList<>();
+	private final boolean includeUnmatched;
+
+	private final PatternTrie names = new PatternTrie();
+	private final PatternTrie origins = new PatternTrie();
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, FilterRule[]>> decisions =
+			new ConcurrentHashMap<>();
+	private final AtomicInteger cached = new AtomicInteger();
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	@Autowired
+	public MetricFilter(NozzleProperties properties) {
+		this.includeUnmatched = properties.isFilterIncludeUnmatched();
+
+		if (properties.getFilters() != null) {
+			for (String text : properties.getFilters()) {
+				FilterRule rule = FilterRule.parse(rules.size(), text);
+				rules.add(rule);
+
+				names.add(rule.getName(), rule.getIndex());
+				origins.add(rule.getOrigin(), rule.getIndex());
+
+				log.info("Filter rule {}: {}", rule.getIndex(), rule);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the envelope should be written
+	 */
+	public boolean accept(Envelope envelope) {
+		if (rules.isEmpty()) {
+			return true;
+		}
+
+		boolean include = includeUnmatched;
+
+		for (FilterRule rule : candidates(nullToEmpty(envelope.getOrigin()), nullToEmpty(nameOf(envelope)))) {
+			if (rule.isNameAndOriginOnly() || rule.matchesRest(envelope)) {
+				rule.hit();
+				include = rule.isInclude();
+				break;
+			}
+		}
+
+		(include ? accepted : rejected).increment();
+		return include;
+	}
+
+	/**
+	 * @return the rules whose name and origin patterns match, in order, up to the first that needs nothing else
+	 */
+	private FilterRule[] candidates(String origin, String name) {
+		ConcurrentHashMap<String, FilterRule[]> byName = decisions.get(origin);
+		FilterRule[] candidates = byName == null ? null : byName.get(name);
+
+		if (candidates == null) {
+			candidates = compile(origin, name);
+
+			if (cached.get() < MAX_CACHED) {
+				if (byName == null) {
+					byName = decisions.computeIfAbsent(origin, o -> new ConcurrentHashMap<>());
+				}
+
+				if (byName.putIfAbsent(name, candidates) == null) {
+					cached.incrementAndGet();
+				}
+			}
+		}
+
+		return candidates;
+	}
+
+	private FilterRule[] compile(String origin, String name) {
+		BitSet matches = names.match(name);
+		matches.and(origins.match(origin));
+
+		List<FilterRule> candidates = new ArrayList<>();
+		for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+			FilterRule rule = rules.get(i);
+			candidates.add(rule);
+
+			if (rule.isNameAndOriginOnly()) {
+				// this one always matches, so nothing after it is ever reached
+				break;
+			}
+		}
+
+		return candidates.isEmpty() ? NO_RULES : candidates.toArray(NO_RULES);
+	}
+
+	private static String nameOf(Envelope envelope) {
+		if (envelope.getValueMetric() != null) {
+			return envelope.getValueMetric().getName();
+		}
+
+		return envelope.getCounterEvent() == null ? null : envelope.getCounterEvent().getName();
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<>("nozzle.filter.accepted", accepted.sum()));
+		metrics.add(new Metric<>("nozzle.filter.rejected", rejected.sum()));
+		metrics.add(new Metric<>("nozzle.filter.cached-decisions", cached.get()));
+
+		for (FilterRule rule : rules) {
+			metrics.add(new Metric<>("nozzle.filter.rules." + rule.getIndex() + ".hits", rule.getHits()));
+		}
+
+		return metrics;
+	}
+}
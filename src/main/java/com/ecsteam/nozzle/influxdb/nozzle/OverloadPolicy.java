@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * What to do with an envelope when the batcher's buffer is full, because InfluxDB is not keeping up
+ */
+public enum OverloadPolicy {
+	/**
+	 * Wait for room, which stops requesting envelopes from the Firehose until batches are acknowledged, for up to
+	 * <tt>overload-block-timeout</tt> before discarding the envelope that does not fit
+	 */
+	block,
+
+	/**
+	 * Make room by discarding the oldest buffered envelope
+	 */
+	drop_oldest,
+
+	/**
+	 * Discard the envelope that does not fit
+	 */
+	drop_newest,
+
+	/**
+	 * Once the buffer is half full, keep only one in every <tt>overload-sample-rate</tt> envelopes
+	 */
+	sample;
+}
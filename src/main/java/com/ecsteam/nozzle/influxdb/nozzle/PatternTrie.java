@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a value against many {@link FieldPattern}s at once. Literal and prefix patterns are stored in a
+ * character trie, so finding all of them that match costs one walk down the trie no matter how many there are;
+ * globs and regular expressions are checked one by one. Each pattern is identified by the index of its rule.
+ */
+public class PatternTrie {
+	private final Node root = new Node();
+	private final List<FieldPattern> patterns = new ArrayList<>();
+	private final List<Integer> patternRules = new ArrayList<>();
+	private final BitSet unconditional = new BitSet();
+
+	/**
+	 * @param pattern the pattern, or null if the rule matches any value
+	 * @param rule    the rule's index
+	 */
+	public void add(FieldPattern pattern, int rule) {
+		if (pattern == null) {
+			unconditional.set(rule);
+			return;
+		}
+
+		switch (pattern.getKind()) {
+			case exact:
+			case prefix:
+				Node node = root;
+				for (int i = 0; i < pattern.getText().length(); ++i) {
+					node = node.children.computeIfAbsent(pattern.getText().charAt(i), c -> new Node());
+				}
+
+				(pattern.getKind() == FieldPattern.Kind.exact ? node.exact : node.prefix).set(rule);
+				break;
+
+			default:
+				patterns.add(pattern);
+				patternRules.add(rule);
+		}
+	}
+
+	/**
+	 * @return the indexes of every rule whose pattern matches the value
+	 */
+	public BitSet match(String value) {
+		if (value == null) {
+			value = "";
+		}
+
+		BitSet matches = (BitSet) unconditional.clone();
+
+		Node node = root;
+		for (int i = 0; node != null; ++i) {
+			matches.or(node.prefix);
+
+			if (i == value.length()) {
+				matches.or(node.exact);
+				break;
+			}
+
+			node = node.children.get(value.charAt(i));
+		}
+
+		for (int i = 0; i < patterns.size(); ++i) {
+			if (patterns.get(i).matches(value)) {
+				matches.set(patternRules.get(i));
+			}
+		}
+
+		return matches;
+	}
+
+	private static class Node {
+		final Map<Character, Node> children = new HashMap<>();
+		final BitSet exact = new BitSet();
+		final BitSet prefix = new BitSet();
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.EventType;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What happens to envelopes on their way through the nozzle, published on the actuator <tt>/metrics</tt>
+ * endpoint as <tt>nozzle.pipeline.*</tt>:
+ *
+ * <ul>
+ * <li><tt>received.*</tt>: envelopes read from the Firehose, per event type</li>
+ * <li><tt>skipped</tt>: envelopes left undecoded by the pre-decode filter, as they would not have been
+ * written</li>
+ * <li><tt>accepted</tt>, <tt>dropped</tt>: envelopes queued for batching, and discarded by the overload
+ * policy</li>
+ * <li><tt>queued</tt>, <tt>in-flight</tt>: envelopes waiting to be batched, and batches being sent</li>
+ * <li><tt>batch-points.*</tt>, <tt>batch-bytes.*</tt>: the size of the batches sent</li>
+ * <li><tt>send-latency.*</tt>: milliseconds from handing a batch to the sender until it is written or given up
+ * on, retries included</li>
+ * <li><tt>lag.*</tt>: milliseconds from the oldest envelope in a batch being emitted until InfluxDB
+ * acknowledged the batch</li>
+ * <li><tt>retries</tt>, <tt>failed-batches</tt>, <tt>lost-points</tt>: extra attempts, batches the sender gave
+ * up on, and the points in them that could not be spooled either</li>
+ * <li><tt>quarantined-points</tt>: points InfluxDB rejected, which were split out of their batch and left
+ * out</li>
+ * <li><tt>late-points</tt>: aggregated ValueMetrics older than a window that was already open or written, which
+ * are left out rather than reopening it</li>
+ * </ul>
+ *
+ * Everything is recorded into striped counters and lock-free histograms. The counters cover the whole lifetime
+ * of the nozzle; the histograms, their <tt>.count</tt> included, only the last one to two minutes, so a build-up
+ * of lag shows in the percentiles straight away.
+ */
+@Component
+public class PipelineMetrics implements PublicMetrics {
+	private final Map<EventType, LongAdder> received = new EnumMap<>(EventType.class);
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder inFlight = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder failedBatches = new LongAdder();
+	private final LongAdder lostPoints = new LongAdder();
+	private final LongAdder quarantinedPoints = new LongAdder();
+	private final LongAdder latePoints = new LongAdder();
+
+	private final ConcurrentHistogram batchPoints = new ConcurrentHistogram();
+	private final ConcurrentHistogram batchBytes = new ConcurrentHistogram();
+	private final ConcurrentHistogram sendLatency = new ConcurrentHistogram();
+	private final ConcurrentHistogram lag = new ConcurrentHistogram();
+
+	private final List<InfluxDBBatcher> batchers = new CopyOnWriteArrayList<>();
+
+	public PipelineMetrics() {
+		for (EventType eventType : EventType.values()) {
+			received.put(eventType, new LongAdder());
+		}
+	}
+
+	public void received(EventType eventType) {
+		if (eventType != null) {
+			received.get(eventType).increment();
+		}
+	}
+
+	void skipped() {
+		skipped.increment();
+	}
+
+	void accepted() {
+		accepted.increment();
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+
+	void late() {
+		latePoints.increment();
+	}
+
+	void register(InfluxDBBatcher batcher) {
+		batchers.add(batcher);
+	}
+
+	void unregister(InfluxDBBatcher batcher) {
+		batchers.remove(batcher);
+	}
+
+	void sending(Batch batch) {
+		inFlight.increment();
+		batchPoints.record(batch.getPoints());
+		batchBytes.record(batch.getBytes());
+	}
+
+	/**
+	 * @param sentNanos the {@link System#nanoTime()} the batch was handed to the sender
+	 * @param delivered whether InfluxDB accepted the batch
+	 */
+	void sent(Batch batch, long sentNanos, boolean delivered) {
+		inFlight.decrement();
+		sendLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos));
+		retries.add(Math.max(0, batch.getAttempts() - 1));
+		quarantinedPoints.add(batch.getQuarantined());
+
+		if (!delivered) {
+			failedBatches.increment();
+		} else if (batch.getOldestTimestamp() != Long.MAX_VALUE) {
+			lag.record(System.currentTimeMillis() * 1000L - batch.getOldestTimestamp() / 1000L);
+		}
+	}
+
+	void lost(Batch batch) {
+		lostPoints.add(batch.getPoints());
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+
+		received.forEach((eventType, count) -> metrics.add(new Metric<>(
+				"nozzle.pipeline.received." + eventType.name().toLowerCase().replace('_', '-'), count.sum())));
+
+		long queued = 0;
+		for (InfluxDBBatcher batcher : batchers) {
+			queued += batcher.getQueued();
+		}
+
+		metrics.add(new Metric<>("nozzle.pipeline.skipped", skipped.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.accepted", accepted.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.dropped", dropped.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.queued", queued));
+		metrics.add(new Metric<>("nozzle.pipeline.in-flight", inFlight.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.retries", retries.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.failed-batches", failedBatches.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.lost-points", lostPoints.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.quarantined-points", quarantinedPoints.sum()));
+		metrics.add(new Metric<>("nozzle.pipeline.late-points", latePoints.sum()));
+
+		addHistogram(metrics, "nozzle.pipeline.batch-points", batchPoints, 1);
+		addHistogram(metrics, "nozzle.pipeline.batch-bytes", batchBytes, 1);
+		addHistogram(metrics, "nozzle.pipeline.send-latency", sendLatency, 1000);
+		addHistogram(metrics, "nozzle.pipeline.lag", lag, 1000);
+
+		return metrics;
+	}
+
+	private static void addHistogram(List<Metric<?>> metrics, String name, ConcurrentHistogram histogram,
+			double divisor) {
+		metrics.add(new Metric<>(name + ".count", histogram.getCount()));
+		metrics.add(new Metric<>(name + ".mean", histogram.getMean() / divisor));
+		metrics.add(new Metric<>(name + ".p50", histogram.valueAtPercentile(50) / divisor));
+		metrics.add(new Metric<>(name + ".p99", histogram.valueAtPercentile(99) / divisor));
+		metrics.add(new Metric<>(name + ".max", histogram.getMax() / divisor));
+	}
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The precision timestamps are written to InfluxDB with. Coarser timestamps take fewer bytes to send and
+ * compress better in InfluxDB's storage, but points of one series that fall in the same tick overwrite each
+ * other.
+ */
+public enum Precision {
+	ns(TimeUnit.NANOSECONDS, null),
+	us(TimeUnit.MICROSECONDS, "u"),
+	ms(TimeUnit.MILLISECONDS, "ms"),
+	s(TimeUnit.SECONDS, "s");
+
+	private final TimeUnit unit;
+
+	/**
+	 * The <tt>precision</tt> of the write endpoint, or null for nanoseconds, InfluxDB's default
+	 */
+	private final String parameter;
+
+	Precision(TimeUnit unit, String parameter) {
+		this.unit = unit;
+		this.parameter = parameter;
+	}
+
+	/**
+	 * @return a timestamp in nanoseconds in this precision, truncated
+	 */
+	public long truncate(long nanos) {
+		return unit.convert(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the query parameter for the write endpoint, with a leading <tt>&amp;</tt>, or an empty string
+	 */
+	public String getQueryParameter() {
+		return parameter == null ? "" : "&precision=" + parameter;
+	}
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A priority class of envelopes, written as
+ *
+ * <tt>name[/share[/lingerMillis[/bufferSize]]]:field=pattern[&amp;field=pattern]*</tt>
+ *
+ * where field is <tt>name</tt> or <tt>origin</tt> and the pattern is a {@link FieldPattern}, e.g.
+ * <tt>critical/50/200:origin=gorouter&amp;name=latency*</tt>. The share is the percentage of
+ * <tt>influxdb.nozzle.max-in-flight</tt> the lane's batches may take, the linger how long its partial batches
+ * wait, and the buffer size how many of its envelopes each shard queues. Left out, they are an equal share of
+ * the lanes, <tt>max-linger</tt> and <tt>buffer-size</tt>.
+ *
+ * The lane called <tt>default</tt> takes every envelope no other lane matches, and may not have conditions. It
+ * is the last lane unless it is listed, in which case it keeps its place in the order.
+ *
+ * Each lane also keeps the metrics published as <tt>nozzle.lanes.&lt;name&gt;.*</tt>.
+ */
+public class PriorityLane {
+	public static final String DEFAULT = "default";
+
+	@Getter
+	private final String name;
+
+	/**
+	 * The percentage of the in-flight budget, an equal share of it unless configured
+	 */
+	@Getter
+	private int share;
+
+	/**
+	 * Whether the lane may wait for room under the <tt>block</tt> overload policy, which only the first may
+	 */
+	@Getter
+	private boolean blocking;
+
+	/**
+	 * How long in ms a partial batch waits, or 0 for <tt>max-linger</tt>
+	 */
+	@Getter
+	private final long lingerMillis;
+
+	/**
+	 * How many envelopes each shard queues, or 0 for <tt>buffer-size</tt>
+	 */
+	@Getter
+	private final int bufferSize;
+
+	private final FieldPattern namePattern;
+	private final FieldPattern originPattern;
+	private final String text;
+
+	private final List<InfluxDBBatcher> batchers = new CopyOnWriteArrayList<>();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+	private final ConcurrentHistogram lag = new ConcurrentHistogram();
+
+	PriorityLane(String name, int share, long lingerMillis, int bufferSize, FieldPattern namePattern,
+			FieldPattern originPattern, String text) {
+		this.name = name;
+		this.share = share;
+		this.lingerMillis = lingerMillis;
+		this.bufferSize = bufferSize;
+		this.namePattern = namePattern;
+		this.originPattern = originPattern;
+		this.text = text;
+	}
+
+	public static PriorityLane parse(String lane) {
+		String text = lane.trim();
+
+		int separator = text.indexOf(':');
+		String[] settings = (separator < 0 ? text : text.substring(0, separator)).split("/");
+		String name = settings[0].trim();
+		if (name.isEmpty() || (separator < 0 && !DEFAULT.equals(name))) {
+			throw new IllegalArgumentException("Lanes look like name[/share[/lingerMillis[/bufferSize]]]:field=pattern,"
+					+ " not " + lane);
+		}
+		if (separator >= 0 && DEFAULT.equals(name)) {
+			throw new IllegalArgumentException("The default lane takes whatever no other lane matches, so it cannot "
+					+ "have conditions: " + lane);
+		}
+
+		FieldPattern namePattern = null;
+		FieldPattern originPattern = null;
+		if (separator >= 0) {
+			for (String condition : text.substring(separator + 1).split("&")) {
+				int equals = condition.indexOf('=');
+				String field = equals <= 0 ? "" : condition.substring(0, equals).trim();
+
+				if ("name".equals(field)) {
+					namePattern = FieldPattern.parse(condition.substring(equals + 1).trim());
+				} else if ("origin".equals(field)) {
+					originPattern = FieldPattern.parse(condition.substring(equals + 1).trim());
+				} else {
+					throw new IllegalArgumentException("Invalid condition " + condition + " in lane " + lane);
+				}
+			}
+		}
+
+		try {
+			return new PriorityLane(name,
+					settings.length > 1 ? Integer.parseInt(settings[1].trim()) : 0,
+					settings.length > 2 ? Long.parseLong(settings[2].trim()) : 0,
+					settings.length > 3 ? Integer.parseInt(settings[3].trim()) : 0,
+					namePattern, originPattern, text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid setting in lane " + lane);
+		}
+	}
+
+	boolean isDefault() {
+		return DEFAULT.equals(name);
+	}
+
+	/**
+	 * @param name the metric name, or "" for envelopes without one
+	 * @return whether the lane's conditions hold; the default lane has none, and is only ever fallen back to
+	 */
+	boolean matches(String origin, String name) {
+		return (namePattern == null || namePattern.matches(name))
+				&& (originPattern == null || originPattern.matches(origin));
+	}
+
+	void resolve(int lanes, boolean first) {
+		if (share <= 0) {
+			share = Math.max(1, 100 / lanes);
+		}
+		blocking = first;
+	}
+
+	void register(InfluxDBBatcher batcher) {
+		batchers.add(batcher);
+	}
+
+	void unregister(InfluxDBBatcher batcher) {
+		batchers.remove(batcher);
+	}
+
+	/**
+	 * @return how many of the lane's envelopes are waiting to be batched
+	 */
+	long getQueued() {
+		long queued = 0;
+		for (InfluxDBBatcher batcher : batchers) {
+			queued += batcher.getQueued();
+		}
+
+		return queued;
+	}
+
+	long getAccepted() {
+		return accepted.sum();
+	}
+
+	long getShed() {
+		return shed.sum();
+	}
+
+	ConcurrentHistogram getLag() {
+		return lag;
+	}
+
+	void accepted() {
+		accepted.increment();
+	}
+
+	void shed() {
+		shed.increment();
+	}
+
+	/**
+	 * Record how far behind the Firehose a batch InfluxDB acknowledged was
+	 */
+	void delivered(Batch batch) {
+		if (batch.getOldestTimestamp() != Long.MAX_VALUE) {
+			lag.record(System.currentTimeMillis() * 1000L - batch.getOldestTimestamp() / 1000L);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
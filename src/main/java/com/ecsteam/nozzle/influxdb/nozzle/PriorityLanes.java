@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The <tt>influxdb.nozzle.lanes</tt> {@link PriorityLane}s, highest priority first. The first lane whose origin
+ * and name patterns match takes an envelope, the default lane the ones none does, and the decision is cached per
+ * (origin, name) pair.
+ *
+ * The {@link InfluxDBWriter} gives every lane batchers of its own, so each has its own queues, flush interval and
+ * share of the in-flight budget. A lane counts as under pressure for a second once one of its queues has been
+ * half full. While any lane is, every lane below it sheds its envelopes, so the capacity left goes to what
+ * matters most. Only the first lane ever waits for room under the <tt>block</tt> overload policy; the others drop
+ * what does not fit, so a full bulk lane never holds back the Firehose reader.
+ *
+ * Without any lanes configured there is a single default lane, and nothing is shed or published.
+ */
+@Component
+@Slf4j
+public class PriorityLanes implements PublicMetrics {
+	private static final int MAX_CACHED = 100_000;
+	private static final long PRESSURE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final List<PriorityLane> lanes = new ArrayList<>();
+	private final boolean configured;
+	private final int defaultLane;
+	private final AtomicLongArray pressuredUntil;
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> decisions = new ConcurrentHashMap<>();
+	private final AtomicInteger cached = new AtomicInteger();
+
+	@Autowired
+	public PriorityLanes(NozzleProperties properties) {
+		for (String text : properties.getLanes()) {
+			PriorityLane lane = PriorityLane.parse(text);
+			lanes.add(lane);
+			log.info("Lane {}: {}", lanes.size() - 1, lane);
+		}
+
+		this.configured = !lanes.isEmpty();
+		if (lanes.stream().noneMatch(lane -> PriorityLane.DEFAULT.equals(lane.getName()))) {
+			lanes.add(new PriorityLane(PriorityLane.DEFAULT, 0, 0, 0, null, null, PriorityLane.DEFAULT));
+		}
+
+		int fallback = -1;
+		for (int i = 0; i < lanes.size(); ++i) {
+			lanes.get(i).resolve(lanes.size(), i == 0);
+			if (lanes.get(i).isDefault()) {
+				if (fallback >= 0) {
+					throw new IllegalArgumentException("The default lane is listed more than once");
+				}
+				fallback = i;
+			}
+		}
+
+		this.defaultLane = fallback;
+		this.pressuredUntil = new AtomicLongArray(lanes.size());
+	}
+
+	/**
+	 * @return whether any lanes are configured at all
+	 */
+	public boolean isConfigured() {
+		return configured;
+	}
+
+	/**
+	 * @return every lane, highest priority first
+	 */
+	public List<PriorityLane> getLanes() {
+		return Collections.unmodifiableList(lanes);
+	}
+
+	/**
+	 * @return the number of the lane the envelope goes to
+	 */
+	public int laneOf(Envelope envelope) {
+		if (!configured) {
+			return 0;
+		}
+
+		String origin = nullToEmpty(envelope.getOrigin());
+		String name = nullToEmpty(envelope.getValueMetric() != null ? envelope.getValueMetric().getName()
+				: envelope.getCounterEvent() == null ? null : envelope.getCounterEvent().getName());
+
+		ConcurrentHashMap<String, Integer> byName = decisions.get(origin);
+		Integer lane = byName == null ? null : byName.get(name);
+
+		if (lane == null) {
+			lane = defaultLane;
+			for (int i = 0; i < lanes.size(); ++i) {
+				if (i != defaultLane && lanes.get(i).matches(origin, name)) {
+					lane = i;
+					break;
+				}
+			}
+
+			if (cached.get() < MAX_CACHED) {
+				if (byName == null) {
+					byName = decisions.computeIfAbsent(origin, o -> new ConcurrentHashMap<>());
+				}
+
+				if (byName.putIfAbsent(name, lane) == null) {
+					cached.incrementAndGet();
+				}
+			}
+		}
+
+		return lane;
+	}
+
+	/**
+	 * @return true if a lane of higher priority is under pressure, so envelopes for this one should be shed
+	 */
+	boolean shouldShed(int lane) {
+		long now = System.nanoTime();
+		for (int i = 0; i < lane; ++i) {
+			if (pressuredUntil.get(i) - now > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Note how full the queue an envelope for the lane was just added to is
+	 */
+	void queued(int lane, InfluxDBBatcher batcher) {
+		if (batcher.isHalfFull()) {
+			pressuredUntil.set(lane, System.nanoTime() + PRESSURE_NANOS);
+		}
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		List<Metric<?>> metrics = new ArrayList<>();
+		if (!configured) {
+			return metrics;
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < lanes.size(); ++i) {
+			PriorityLane lane = lanes.get(i);
+			String prefix = "nozzle.lanes." + lane.getName() + ".";
+
+			metrics.add(new Metric<>(prefix + "queued", lane.getQueued()));
+			metrics.add(new Metric<>(prefix + "accepted", lane.getAccepted()));
+			metrics.add(new Metric<>(prefix + "shed", lane.getShed()));
+			metrics.add(new Metric<>(prefix + "pressured", pressuredUntil.get(i) - now > 0 ? 1 : 0));
+			metrics.add(new Metric<>(prefix + "lag.p50", lane.getLag().valueAtPercentile(50) / 1000.0));
+			metrics.add(new Metric<>(prefix + "lag.p99", lane.getLag().valueAtPercentile(99) / 1000.0));
+			metrics.add(new Metric<>(prefix + "lag.max", lane.getLag().getMax() / 1000.0));
+		}
+
+		return metrics;
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.ipc.netty.http.client.HttpClient;
+import reactor.ipc.netty.http.client.HttpClientResponse;
+import reactor.ipc.netty.resources.PoolResources;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a batch of messages to InfluxDB with retry logic, using the non-blocking reactor-netty HTTP client.
+ *
+ * Requests go over a fixed pool of keep-alive connections and complete on the Netty event loop, so no thread
+ * is tied up while a batch is in flight or waiting to be retried. The {@link FlowController} bounds the number
+ * of batches in flight per InfluxDB node; once a node's limit is reached {@link #sendBatch(Batch)} blocks the
+ * caller until a batch to that node completes, so a slow node does not hold up writes to the others.
+ *
+ * A rejected batch is handed back off the event loop, since the halves it is split into may have to wait for
+ * room in flight.
+ */
+@Slf4j
+public class ReactorInfluxDBSender extends AbstractInfluxDBSender implements DisposableBean {
+	private final PoolResources connections;
+	private final HttpClient httpClient;
+
+	public ReactorInfluxDBSender(NozzleProperties properties, MetricsDestination influxDbDestination,
+			GzipCompressor compressor, FlowController flow) {
+		super(properties, influxDbDestination, compressor, flow);
+
+		log.info("Sending to InfluxDB over up to {} connections with up to {} batches in flight",
+				properties.getMaxConnections(), properties.getMaxInFlight());
+
+		this.connections = PoolResources.fixed("influxdb", properties.getMaxConnections());
+		this.httpClient = HttpClient.create(options -> options.poolResources(connections));
+	}
+
+	@Override
+	protected CompletableFuture<Outcome> write(Batch batch) {
+		log.debug("ENTER sendBatch");
+
+		FlowController.Node node = flow.node(batch.getDestination(), batch.getTarget(), batch.getLane());
+		CompletableFuture<Outcome> result = new CompletableFuture<>();
+
+		try {
+			prepare(batch);
+			node.acquire(batch);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		// what follows the write, such as splitting a rejected batch, only runs once the batch is out of flight
+		CompletableFuture<Outcome> released = result.whenComplete((outcome, error) -> node.release());
+
+		try {
+			attempt(batch, node, 1, result);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+
+		return released;
+	}
+
+	private void attempt(Batch batch, FlowController.Node node, int count, CompletableFuture<Outcome> result) {
+		log.trace("Attempt {} to deliver this batch", count);
+		batch.attempted();
+
+		long started = System.nanoTime();
+		post(batch).subscribe(response -> {
+			int status = response.status().code();
+
+			if (status == HttpResponseStatus.NO_CONTENT.code()) {
+				node.written(System.nanoTime() - started);
+				log.debug("batch sent successfully!");
+				result.complete(Outcome.written);
+			} else if (isRetryable(status)) {
+				if (isOverloaded(status)) {
+					node.overloaded(status,
+							FlowController.retryAfter(response.responseHeaders().get(HttpHeaderNames.RETRY_AFTER)));
+				}
+				retry(batch, node, count, result, "InfluxDB answered " + status);
+			} else if (isRejected(status)) {
+				log.debug("InfluxDB rejected a batch of {} points with {}: {}", batch.getPoints(), status,
+						batch.getError());
+				Schedulers.elastic().schedule(() -> result.complete(Outcome.rejected));
+			} else {
+				log.error("Failed to write logs to InfluxDB! Expected error code 204, got {}: {}", status,
+						batch.getError());
+				result.complete(Outcome.failed);
+			}
+		}, error -> {
+			node.failed();
+			retry(batch, node, count, result, error.getMessage());
+		});
+	}
+
+	/**
+	 * Schedule the next attempt after the backoff delay, or the node's <tt>Retry-After</tt> if that is longer
+	 */
+	private void retry(Batch batch, FlowController.Node node, int count, CompletableFuture<Outcome> result,
+			String reason) {
+		if (count >= properties.getMaxRetries()) {
+			log.trace("Failed after {} attempts!", count);
+			result.complete(Outcome.failed);
+			return;
+		}
+
+		log.debug("Attempt {} failed: {}", count, reason);
+
+		long delay = Math.max(node.remainingPause(), properties.getBackoffPolicy().delay(count,
+				properties.getMinBackoff(), properties.getMaxBackoff()));
+		Mono.delay(Duration.ofMillis(delay)).subscribe(tick -> attempt(batch, node, count + 1, result));
+	}
+
+	/**
+	 * POST the batch body, wrapped rather than copied into a Netty buffer
+	 *
+	 * @return the response, once its body has been read into the batch's error if it is not a 204
+	 */
+	private Mono<HttpClientResponse> post(Batch batch) {
+		LineProtocolBuffer body = batch.getBody();
+
+		return httpClient.post(getUri(batch).toString(), request -> {
+			request.failOnClientError(false)
+					.failOnServerError(false)
+					.header(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN)
+					.header(HttpHeaderNames.CONTENT_LENGTH, Integer.toString(body.length()));
+
+			if (batch.isCompressed()) {
+				request.header(HttpHeaderNames.CONTENT_ENCODING, HttpHeaderValues.GZIP);
+			}
+
+			return request.send(Mono.just(Unpooled.wrappedBuffer(body.array(), 0, body.length())));
+		}).then(response -> response.status().code() == HttpResponseStatus.NO_CONTENT.code()
+				? response.receive().then().then(Mono.just(response))
+				: response.receive().aggregate().asString(StandardCharsets.UTF_8).defaultIfEmpty("")
+						.map(error -> {
+							batch.setError(error);
+							return response;
+						}));
+	}
+
+	@Override
+	public void destroy() {
+		connections.dispose();
+	}
+}
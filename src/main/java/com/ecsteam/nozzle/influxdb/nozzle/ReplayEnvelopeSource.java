@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.HttpStartStop;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back the captures {@link FirehoseCapture} wrote to <tt>influxdb.nozzle.replay-directory</tt> in place of
+ * the live Firehose, so a capacity change can be load tested against a stub InfluxDB without a foundation.
+ * Segments are read through memory-mapped files. They are dealt out whole to the connections of the reader, the
+ * way Doppler spreads a subscription, so no connection reads what another one replays. Each connection merges
+ * its segments back into the order they were received in.
+ *
+ * <tt>influxdb.nozzle.replay-speed</tt> sets the pace: 1 replays in real time, N plays the capture N times
+ * faster, and 0 replays as fast as the nozzle takes envelopes.
+ *
+ * Captured envelopes go through the same {@link EnvelopeFrameFilter} as the live Firehose when
+ * <tt>influxdb.nozzle.pre-decode-filter</tt> is set.
+ */
+@Slf4j
+public class ReplayEnvelopeSource implements EnvelopeSource {
+	private final Path directory;
+	private final double speed;
+	private final ReplayTimestamps timestamps;
+	private final boolean loop;
+	private final EnvelopeFrameFilter frameFilter;
+	private final Scheduler scheduler = Schedulers.newElastic("firehose-replay", 60, true);
+
+	public ReplayEnvelopeSource(NozzleProperties properties, PipelineMetrics pipelineMetrics) {
+		this.directory = Paths.get(properties.getReplayDirectory());
+		this.speed = properties.getReplaySpeed();
+		this.timestamps = properties.getReplayTimestamps();
+		this.loop = properties.isReplayLoop();
+		this.frameFilter = properties.isPreDecodeFilter()
+				? new EnvelopeFrameFilter(properties, pipelineMetrics) : null;
+
+		log.info("Replaying the Firehose captured in {} at {}", directory,
+				speed > 0 ? speed + "x" : "full speed");
+	}
+
+	@Override
+	public Flux<Envelope> envelopes(int connection, int connections) {
+		// pacing sleeps, so every connection replays on a thread of its own
+		return Flux.generate(() -> new Replay(connection, connections), Replay::next, Replay::close)
+				.subscribeOn(scheduler);
+	}
+
+	@Override
+	public boolean isFinite() {
+		return true;
+	}
+
+	/**
+	 * @return the segment files of every captured connection that go to the given connection of the reader, in
+	 * order. Every n-th segment of the capture goes to the same connection.
+	 */
+	private List<List<Path>> findStreams(int connection, int connections) throws IOException {
+		Map<Integer, List<Path>> streams = new TreeMap<>();
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				FirehoseCapture.SEGMENT_PREFIX + "*" + FirehoseCapture.SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				int captured = Integer.parseInt(name.substring(FirehoseCapture.SEGMENT_PREFIX.length(),
+						name.indexOf('-', FirehoseCapture.SEGMENT_PREFIX.length())));
+				streams.computeIfAbsent(captured, c -> new ArrayList<>()).add(file);
+			}
+		}
+
+		List<List<Path>> assigned = new ArrayList<>();
+		int index = 0;
+		for (List<Path> segments : streams.values()) {
+			Collections.sort(segments);
+
+			List<Path> own = new ArrayList<>();
+			for (Path segment : segments) {
+				if (index++ % connections == connection) {
+					own.add(segment);
+				}
+			}
+
+			if (!own.isEmpty()) {
+				assigned.add(own);
+			}
+		}
+
+		return assigned;
+	}
+
+	private Envelope rewrite(Envelope envelope) {
+		long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		Envelope.Builder builder = Envelope.builder().from(envelope).timestamp(now);
+
+		HttpStartStop http = envelope.getHttpStartStop();
+		if (http != null && envelope.getTimestamp() != null
+				&& http.getStartTimestamp() != null && http.getStopTimestamp() != null) {
+			long shift = now - envelope.getTimestamp();
+			builder.httpStartStop(HttpStartStop.builder().from(http)
+					.startTimestamp(http.getStartTimestamp() + shift)
+					.stopTimestamp(http.getStopTimestamp() + shift)
+					.build());
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * One connection's pass, or passes, over the capture
+	 */
+	private class Replay {
+		private final int connection;
+		private final int connections;
+
+		private List<Stream> streams;
+		private long captureStart;
+		private long replayStart;
+
+		Replay(int connection, int connections) {
+			this.connection = connection;
+			this.connections = connections;
+			open();
+		}
+
+		private void open() {
+			try {
+				streams = new ArrayList<>();
+				for (List<Path> segments : findStreams(connection, connections)) {
+					Stream stream = new Stream(segments);
+					if (stream.hasNext()) {
+						streams.add(stream);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			captureStart = Long.MAX_VALUE;
+			for (Stream stream : streams) {
+				captureStart = Math.min(captureStart, stream.time);
+			}
+
+			replayStart = System.nanoTime();
+		}
+
+		Replay next(SynchronousSink<Envelope> sink) {
+			while (true) {
+				Stream earliest = null;
+				for (Stream stream : streams) {
+					if (stream.hasNext() && (earliest == null || stream.time < earliest.time)) {
+						earliest = stream;
+					}
+				}
+
+				if (earliest == null) {
+					if (loop && !streams.isEmpty()) {
+						log.info("Replay of connection {} finished, starting over", connection);
+						open();
+						continue;
+					}
+
+					log.info("Replay of connection {} finished", connection);
+					sink.complete();
+					return this;
+				}
+
+				pace(earliest.time);
+
+				byte[] record = earliest.take();
+				if (frameFilter != null && !frameFilter.accept(record)) {
+					continue;
+				}
+
+				try {
+					Envelope envelope = DropsondeCodec.decode(record);
+					sink.next(timestamps == ReplayTimestamps.rewritten ? rewrite(envelope) : envelope);
+					return this;
+				} catch (IOException | RuntimeException e) {
+					log.warn("Skipping envelope that could not be decoded: {}", e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Wait until the envelope captured at the given time is due
+		 */
+		private void pace(long capturedMicros) {
+			if (speed <= 0) {
+				return;
+			}
+
+			long due = replayStart + (long) (TimeUnit.MICROSECONDS.toNanos(capturedMicros - captureStart) / speed);
+			for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+				LockSupport.parkNanos(wait);
+			}
+		}
+
+		void close() {
+			streams = Collections.emptyList();
+		}
+	}
+
+	/**
+	 * The segments of one captured connection that a connection of the reader replays, read one record ahead
+	 */
+	private static class Stream {
+		private final List<Path> segments;
+		private int segment;
+		private MappedByteBuffer buffer;
+
+		private long time;
+		private int position;
+		private int length = -1;
+
+		Stream(List<Path> segments) throws IOException {
+			this.segments = segments;
+			readRecord();
+		}
+
+		boolean hasNext() {
+			return length >= 0;
+		}
+
+		byte[] take() {
+			byte[] record = new byte[length];
+			buffer.position(position);
+			buffer.get(record);
+			next();
+
+			return record;
+		}
+
+		private void next() {
+			buffer.position(position + length);
+			try {
+				readRecord();
+			} catch (IOException e) {
+				log.warn("Could not read capture segment: {}", e.getMessage());
+				length = -1;
+			}
+		}
+
+		private void readRecord() throws IOException {
+			while (true) {
+				if (buffer != null) {
+					long delta = FirehoseCapture.readVarint(buffer);
+					long size = FirehoseCapture.readVarint(buffer);
+
+					// a capture cut short can end in the middle of a record
+					if (delta >= 0 && size >= 0 && size <= buffer.remaining()) {
+						time += delta;
+						position = buffer.position();
+						length = (int) size;
+						return;
+					}
+				}
+
+				if (segment == segments.size()) {
+					length = -1;
+					return;
+				}
+
+				Path path = segments.get(segment++);
+				try (FileChannel channel = FileChannel.open(path)) {
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				}
+
+				if (buffer.remaining() < FirehoseCapture.SEGMENT_HEADER || buffer.getInt() != FirehoseCapture.MAGIC) {
+					log.warn("Ignoring {}, which is not a Firehose capture", path);
+					buffer = null;
+					continue;
+				}
+
+				time = buffer.getLong();
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * What timestamps replayed envelopes carry
+ */
+public enum ReplayTimestamps {
+	/**
+	 * As captured
+	 */
+	original,
+
+	/**
+	 * The time the envelope is replayed, so the nozzle and InfluxDB see the capture as live traffic. HTTP start
+	 * and stop timestamps are shifted by the same amount.
+	 */
+	rewritten
+}
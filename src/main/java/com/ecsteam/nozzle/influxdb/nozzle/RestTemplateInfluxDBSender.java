@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.destination.MetricsDestination;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.backoff.FixedBackOffPolicy;
+import org.springframework.retry.backoff.UniformRandomBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Sends a batch of messages to InfluxDB with retry logic, using a blocking {@link RestTemplate} on a
+ * <tt>taskExecutor</tt> thread for the whole retry sequence. Connection failures, server errors and overloaded
+ * responses are retried; a <tt>Retry-After</tt> delays the next attempt until it has passed.
+ */
+@Slf4j
+public class RestTemplateInfluxDBSender extends AbstractInfluxDBSender {
+	private final RestTemplate httpClient = new RestTemplate();
+	private BackOffPolicy backOffPolicy;
+
+	public RestTemplateInfluxDBSender(NozzleProperties properties, MetricsDestination influxDbDestination,
+			GzipCompressor compressor, FlowController flow) {
+		super(properties, influxDbDestination, compressor, flow);
+
+		httpClient.setErrorHandler(new ResponseErrorHandler() {
+			@Override
+			public boolean hasError(ClientHttpResponse clientHttpResponse) throws IOException {
+				return clientHttpResponse.getRawStatusCode() > 399;
+			}
+
+			@Override
+			public void handleError(ClientHttpResponse clientHttpResponse) throws IOException {
+
+			}
+		});
+	}
+
+	@Async
+	@Override
+	public CompletableFuture<Boolean> sendBatch(Batch batch) {
+		return super.sendBatch(batch);
+	}
+
+	@Override
+	protected CompletableFuture<Outcome> write(Batch batch) {
+		log.debug("ENTER sendBatch");
+
+		Map<Class<? extends Throwable>, Boolean> retryOn = new HashMap<>();
+		retryOn.put(ResourceAccessException.class, true);
+		retryOn.put(RetryableStatusException.class, true);
+
+		RetryTemplate retryable = new RetryTemplate();
+		retryable.setBackOffPolicy(getBackOffPolicy());
+		retryable.setRetryPolicy(new SimpleRetryPolicy(properties.getMaxRetries(), retryOn));
+
+		prepare(batch);
+
+		FlowController.Node node = flow.node(batch.getDestination(), batch.getTarget(), batch.getLane());
+		node.acquire(batch);
+
+		final AtomicInteger counter = new AtomicInteger(0);
+		try {
+			Outcome outcome = retryable.execute(retryContext -> {
+				int count = counter.incrementAndGet();
+				node.awaitResume();
+				batch.attempted();
+				log.trace("Attempt {} to deliver this batch", count);
+
+				long started = System.nanoTime();
+				int status;
+				try {
+					// the encoded (or compressed) batch buffer is the request body, written without copying
+					status = httpClient.execute(getUri(batch), HttpMethod.POST, request -> {
+						request.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+						request.getHeaders().setContentLength(batch.getBody().length());
+						if (batch.isCompressed()) {
+							request.getHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+						}
+						batch.getBody().writeTo(request.getBody());
+					}, response -> {
+						if (response.getRawStatusCode() != HttpStatus.NO_CONTENT.value()) {
+							batch.setError(StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8));
+
+							if (log.isTraceEnabled()) {
+								log.trace("Request Body: {}", new String(batch.getBuffer().array(), 0,
+										batch.getBytes(), StandardCharsets.UTF_8));
+								log.trace("Response Body: {}", batch.getError());
+							}
+						}
+
+						if (isOverloaded(response.getRawStatusCode())) {
+							node.overloaded(response.getRawStatusCode(),
+									FlowController.retryAfter(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER)));
+						}
+
+						return response.getRawStatusCode();
+					});
+				} catch (ResourceAccessException e) {
+					node.failed();
+					throw e;
+				}
+
+				log.debug("EXIT sendBatch");
+
+				if (status == HttpStatus.NO_CONTENT.value()) {
+					node.written(System.nanoTime() - started);
+					log.debug("batch sent successfully!");
+					return Outcome.written;
+				}
+
+				if (isRetryable(status)) {
+					throw new RetryableStatusException(status);
+				}
+
+				if (isRejected(status)) {
+					log.debug("InfluxDB rejected a batch of {} points with {}: {}", batch.getPoints(), status,
+							batch.getError());
+					return Outcome.rejected;
+				}
+
+				log.error("Failed to write logs to InfluxDB! Expected error code 204, got {}: {}", status,
+						batch.getError());
+				return Outcome.failed;
+			}, recoveryContext -> {
+				log.trace("Failed after {} attempts!", counter.get());
+				return Outcome.failed;
+			});
+
+			return CompletableFuture.completedFuture(outcome);
+		} finally {
+			node.release();
+		}
+	}
+
+	private BackOffPolicy getBackOffPolicy() {
+		if (backOffPolicy == null) {
+			log.info("Using backoff policy {}", properties.getBackoffPolicy().name());
+			switch (properties.getBackoffPolicy()) {
+				case linear:
+					backOffPolicy = new FixedBackOffPolicy();
+					((FixedBackOffPolicy) backOffPolicy).setBackOffPeriod(properties.getMinBackoff());
+					break;
+				case random:
+					backOffPolicy = new UniformRandomBackOffPolicy();
+					((UniformRandomBackOffPolicy) backOffPolicy).setMinBackOffPeriod(properties.getMinBackoff());
+					((UniformRandomBackOffPolicy) backOffPolicy).setMaxBackOffPeriod(properties.getMaxBackoff());
+					break;
+				case exponential:
+				default:
+					backOffPolicy = new ExponentialBackOffPolicy();
+					((ExponentialBackOffPolicy) backOffPolicy).setInitialInterval(properties.getMinBackoff());
+					((ExponentialBackOffPolicy) backOffPolicy).setMaxInterval(properties.getMaxBackoff());
+					break;
+			}
+		}
+
+		return backOffPolicy;
+	}
+
+	/**
+	 * InfluxDB answered with a status worth another attempt
+	 */
+	private static class RetryableStatusException extends RuntimeException {
+		RetryableStatusException(int status) {
+			super("InfluxDB answered " + status);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free ring buffer that many threads can offer to at once.
+ *
+ * Each slot carries a sequence number that tells producers and consumers whether the slot is free or
+ * filled for the current lap (Dmitry Vyukov's bounded queue), so neither side ever takes a monitor.
+ * See http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+ *
+ * @param <E> the element type
+ */
+public class RingBuffer<E> {
+	private final int mask;
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity the minimum number of slots, rounded up to the next power of two
+	 */
+	public RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+		this.mask = size - 1;
+		this.elements = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; ++i) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Add an element if there is room
+	 *
+	 * @param element the element, never null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					elements[index] = element;
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Remove the oldest element
+	 *
+	 * @return the element, or null if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E element = (E) elements[index];
+					elements[index] = null;
+					sequences.lazySet(index, position + mask + 1);
+					return element;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+
+	public int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
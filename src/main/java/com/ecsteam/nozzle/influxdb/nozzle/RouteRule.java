@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+import org.cloudfoundry.doppler.Envelope;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A rule sending envelopes to another database than <tt>influxdb.nozzle.db-name</tt>, written as
+ *
+ * <tt>database[/retentionPolicy]:field=pattern[&amp;field=pattern]*</tt>
+ *
+ * where field is <tt>name</tt>, <tt>origin</tt>, <tt>job</tt>, <tt>deployment</tt> or <tt>tag.key</tt>, and the
+ * pattern is a {@link FieldPattern}. Every condition has to match for the rule to match, so
+ * <tt>apps:tag.organization_name=acme</tt> routes one org's metrics to the <tt>apps</tt> database.
+ */
+public class RouteRule {
+	private static final String TAG_PREFIX = "tag.";
+
+	@Getter
+	private final RouteTarget target;
+
+	private final FieldPattern name;
+	private final FieldPattern origin;
+	private final FieldPattern job;
+	private final FieldPattern deployment;
+	private final Map<String, FieldPattern> tags = new LinkedHashMap<>();
+
+	private final String text;
+
+	private RouteRule(RouteTarget target, Map<String, FieldPattern> conditions, String text) {
+		this.target = target;
+		this.name = conditions.remove("name");
+		this.origin = conditions.remove("origin");
+		this.job = conditions.remove("job");
+		this.deployment = conditions.remove("deployment");
+		this.text = text;
+
+		conditions.forEach((field, pattern) -> {
+			if (!field.startsWith(TAG_PREFIX)) {
+				throw new IllegalArgumentException("Unknown field " + field + " in route " + text);
+			}
+			tags.put(field.substring(TAG_PREFIX.length()), pattern);
+		});
+	}
+
+	public static RouteRule parse(String rule) {
+		String text = rule.trim();
+
+		int separator = text.indexOf(':');
+		if (separator <= 0) {
+			throw new IllegalArgumentException("Routes look like database[/retentionPolicy]:field=pattern, not "
+					+ rule);
+		}
+
+		Map<String, FieldPattern> conditions = new LinkedHashMap<>();
+		for (String condition : text.substring(separator + 1).split("&")) {
+			int equals = condition.indexOf('=');
+			if (equals <= 0) {
+				throw new IllegalArgumentException("Invalid condition " + condition + " in route " + rule);
+			}
+
+			conditions.put(condition.substring(0, equals).trim(), FieldPattern.parse(condition.substring(equals + 1).trim()));
+		}
+
+		return new RouteRule(RouteTarget.parse(text.substring(0, separator)), conditions, text);
+	}
+
+	public boolean matches(Envelope envelope) {
+		if (name != null && !name.matches(nameOf(envelope))) {
+			return false;
+		}
+
+		if (origin != null && !origin.matches(envelope.getOrigin())) {
+			return false;
+		}
+
+		if (job != null && !job.matches(envelope.getJob())) {
+			return false;
+		}
+
+		if (deployment != null && !deployment.matches(envelope.getDeployment())) {
+			return false;
+		}
+
+		for (Map.Entry<String, FieldPattern> tag : tags.entrySet()) {
+			String value = envelope.getTags() == null ? null : envelope.getTags().get(tag.getKey());
+			if (!tag.getValue().matches(value)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static String nameOf(Envelope envelope) {
+		if (envelope.getValueMetric() != null) {
+			return envelope.getValueMetric().getName();
+		}
+
+		return envelope.getCounterEvent() == null ? null : envelope.getCounterEvent().getName();
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
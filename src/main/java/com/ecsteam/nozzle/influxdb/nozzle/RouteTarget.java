@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import lombok.Getter;
+
+import java.util.Objects;
+
+/**
+ * A database, and optionally a retention policy in it, that a {@link RouteRule} sends envelopes to. Written as
+ * <tt>database[/retentionPolicy]</tt>.
+ */
+public final class RouteTarget {
+	@Getter
+	private final String database;
+
+	/**
+	 * The retention policy to write to, or null for the database's default
+	 */
+	@Getter
+	private final String retentionPolicy;
+
+	public RouteTarget(String database, String retentionPolicy) {
+		if (database == null || database.isEmpty()) {
+			throw new IllegalArgumentException("A route target needs a database");
+		}
+
+		this.database = database;
+		this.retentionPolicy = retentionPolicy == null || retentionPolicy.isEmpty() ? null : retentionPolicy;
+	}
+
+	public static RouteTarget parse(String target) {
+		String text = target.trim();
+		int slash = text.indexOf('/');
+
+		return slash < 0 ? new RouteTarget(text, null)
+				: new RouteTarget(text.substring(0, slash).trim(), text.substring(slash + 1).trim());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+
+		if (!(o instanceof RouteTarget)) {
+			return false;
+		}
+
+		RouteTarget other = (RouteTarget) o;
+		return database.equals(other.database) && Objects.equals(retentionPolicy, other.retentionPolicy);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * database.hashCode() + Objects.hashCode(retentionPolicy);
+	}
+
+	@Override
+	public String toString() {
+		return retentionPolicy == null ? database : database + "/" + retentionPolicy;
+	}
+}
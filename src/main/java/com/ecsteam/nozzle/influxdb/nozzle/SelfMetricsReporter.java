@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the nozzle's own <tt>nozzle.*</tt> actuator metrics back into InfluxDB every
+ * <tt>influxdb.nozzle.self-metrics-interval</tt> milliseconds, so the pipeline can be graphed next to the
+ * metrics it delivers. Each group becomes a measurement and each metric a field, e.g.
+ * <tt>nozzle.pipeline.send-latency.p99</tt> is the <tt>send_latency_p99</tt> field of <tt>nozzle_pipeline</tt>,
+ * tagged with the foundation and the nozzle's instance index.
+ *
+ * The points go straight to the sender rather than through the batchers, so they still arrive while the
+ * batchers are backed up.
+ */
+@Component
+@Slf4j
+public class SelfMetricsReporter {
+	private static final String PREFIX = "nozzle.";
+
+	private final NozzleProperties properties;
+	private final InfluxDBSender sender;
+	private final List<PublicMetrics> sources;
+	private final Map<String, String> tags;
+	private final LineProtocolEncoder encoder;
+	private final BufferPool pool = new BufferPool(2, 4096, 64 * 1024);
+
+	private ScheduledExecutorService scheduler;
+
+	@Autowired
+	public SelfMetricsReporter(NozzleProperties properties, InfluxDBSender sender, List<PublicMetrics> sources,
+			@Value("${CF_INSTANCE_INDEX:0}") String instance) {
+		this.properties = properties;
+		this.sender = sender;
+		this.sources = sources;
+		this.tags = Collections.singletonMap("instance", instance);
+		this.encoder = new LineProtocolEncoder(properties.getFoundation(),
+				new SeriesKeyCache(16, new SeriesKeyCacheMetrics()), null, null, properties.getPrecision(),
+				Collections.<String>emptyList());
+	}
+
+	@PostConstruct
+	public void start() {
+		if (properties.getSelfMetricsInterval() <= 0) {
+			return;
+		}
+
+		log.info("Writing nozzle metrics to InfluxDB every {} ms", properties.getSelfMetricsInterval());
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "nozzle-metrics-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::report, properties.getSelfMetricsInterval(),
+				properties.getSelfMetricsInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	void report() {
+		try {
+			Batch batch = new Batch(pool);
+			encode(collect(), System.currentTimeMillis(), batch);
+
+			if (batch.isEmpty()) {
+				batch.release();
+				return;
+			}
+
+			sender.sendBatch(batch).whenComplete((delivered, error) -> {
+				if (!Boolean.TRUE.equals(delivered)) {
+					log.debug("Could not write nozzle metrics to InfluxDB");
+				}
+				batch.release();
+			});
+		} catch (RuntimeException e) {
+			log.error("Could not report nozzle metrics: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the nozzle's metrics by measurement, then by field
+	 */
+	Map<String, Map<String, Number>> collect() {
+		Map<String, Map<String, Number>> measurements = new TreeMap<>();
+
+		for (PublicMetrics source : sources) {
+			for (Metric<?> metric : source.metrics()) {
+				String name = metric.getName();
+				int group = name.indexOf('.', PREFIX.length());
+				if (!name.startsWith(PREFIX) || group < 0) {
+					continue;
+				}
+
+				String measurement = "nozzle_" + name.substring(PREFIX.length(), group).replace('-', '_');
+				String field = name.substring(group + 1).replace('.', '_').replace('-', '_');
+
+				measurements.computeIfAbsent(measurement, m -> new TreeMap<>()).put(field, metric.getValue());
+			}
+		}
+
+		return measurements;
+	}
+
+	void encode(Map<String, Map<String, Number>> measurements, long now, Batch batch) {
+		LineProtocolBuffer out = batch.getBuffer();
+
+		measurements.forEach((measurement, fields) -> {
+			int start = out.length();
+			out.write(encoder.getPrefix(measurement, tags));
+
+			List<String> written = new ArrayList<>();
+			fields.forEach((field, value) -> {
+				boolean integer = value instanceof Long || value instanceof Integer;
+				if (!integer && !Double.isFinite(value.doubleValue())) {
+					return;
+				}
+
+				out.write((byte) (written.isEmpty() ? ' ' : ','));
+				encoder.writeEscaped(field, true, out);
+				out.write((byte) '=');
+
+				if (integer) {
+					encoder.writeLong(value.longValue(), out);
+					out.write((byte) 'i');
+				} else {
+					encoder.writeDouble(value.doubleValue(), out);
+				}
+				written.add(field);
+			});
+
+			if (written.isEmpty()) {
+				out.truncate(start);
+				return;
+			}
+
+			out.write((byte) ' ');
+			encoder.writeTimestamp(TimeUnit.MILLISECONDS.toNanos(now), out);
+			out.write((byte) '\n');
+			batch.pointAdded();
+		});
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The identity of a series: the metric name plus every envelope field that ends up as a tag. A single mutable
+ * instance can be {@link #set(Envelope) reset} for every lookup, and only {@link #copy() copied} when it needs
+ * to be stored, so probing a cache does not allocate.
+ */
+public final class SeriesKey {
+	private String name;
+	private EventType eventType;
+	private String origin;
+	private String deployment;
+	private String job;
+	private String index;
+	private String ip;
+	private String unit;
+	private Map<String, String> tags;
+
+	private int hash;
+
+	/**
+	 * Point this key at a CounterEvent or ValueMetric envelope
+	 *
+	 * @return this key
+	 */
+	public SeriesKey set(Envelope envelope) {
+		setTags(envelope);
+
+		if (envelope.getValueMetric() != null) {
+			this.name = envelope.getValueMetric().getName();
+			this.unit = envelope.getValueMetric().getUnit();
+		} else {
+			this.name = envelope.getCounterEvent() == null ? null : envelope.getCounterEvent().getName();
+			this.unit = null;
+		}
+
+		return rehash();
+	}
+
+	/**
+	 * Point this key at the tag set an envelope shares with the other metrics from the same emitter, leaving
+	 * out the metric name and unit
+	 *
+	 * @return this key
+	 */
+	public SeriesKey setGroup(Envelope envelope) {
+		setTags(envelope);
+		this.name = null;
+		this.unit = null;
+
+		return rehash();
+	}
+
+	private void setTags(Envelope envelope) {
+		this.eventType = envelope.getEventType();
+		this.origin = envelope.getOrigin();
+		this.deployment = envelope.getDeployment();
+		this.job = envelope.getJob();
+		this.index = envelope.getIndex();
+		this.ip = envelope.getIp();
+		this.tags = envelope.getTags();
+	}
+
+	private SeriesKey rehash() {
+		int h = Objects.hashCode(name);
+		h = 31 * h + Objects.hashCode(eventType);
+		h = 31 * h + Objects.hashCode(origin);
+		h = 31 * h + Objects.hashCode(deployment);
+		h = 31 * h + Objects.hashCode(job);
+		h = 31 * h + Objects.hashCode(index);
+		h = 31 * h + Objects.hashCode(ip);
+		h = 31 * h + Objects.hashCode(unit);
+		h = 31 * h + (tags == null || tags.isEmpty() ? 0 : tags.hashCode());
+		this.hash = h;
+
+		return this;
+	}
+
+	/**
+	 * @return an independent copy, safe to keep as a map key
+	 */
+	public SeriesKey copy() {
+		SeriesKey copy = new SeriesKey();
+		copy.name = name;
+		copy.eventType = eventType;
+		copy.origin = origin;
+		copy.deployment = deployment;
+		copy.job = job;
+		copy.index = index;
+		copy.ip = ip;
+		copy.unit = unit;
+		copy.tags = tags;
+		copy.hash = hash;
+
+		return copy;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+
+		if (!(o instanceof SeriesKey)) {
+			return false;
+		}
+
+		SeriesKey other = (SeriesKey) o;
+		return hash == other.hash
+				&& eventType == other.eventType
+				&& Objects.equals(name, other.name)
+				&& Objects.equals(origin, other.origin)
+				&& Objects.equals(deployment, other.deployment)
+				&& Objects.equals(job, other.job)
+				&& Objects.equals(index, other.index)
+				&& Objects.equals(ip, other.ip)
+				&& Objects.equals(unit, other.unit)
+				&& tagsEqual(tags, other.tags);
+	}
+
+	private static boolean tagsEqual(Map<String, String> a, Map<String, String> b) {
+		if (a == null || a.isEmpty()) {
+			return b == null || b.isEmpty();
+		}
+
+		return a.equals(b);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s{origin=%s,job=%s,index=%s}", name, origin, job, index);
+	}
+}
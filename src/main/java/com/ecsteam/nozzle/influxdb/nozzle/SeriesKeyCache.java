@@ -0,0 +1,78 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of encoded series prefixes (<tt>measurement,tag=value,...</tt>), keyed by
+ * {@link SeriesKey}. Like the {@link LineProtocolEncoder} that owns it, it is only used by one thread.
+ */
+public class SeriesKeyCache {
+	private final LinkedHashMap<SeriesKey, byte[]> prefixes;
+	private final SeriesKeyCacheMetrics metrics;
+
+	public SeriesKeyCache(final int maxSize, final SeriesKeyCacheMetrics metrics) {
+		this.metrics = metrics;
+		this.prefixes = new LinkedHashMap<SeriesKey, byte[]>(Math.min(maxSize, 1024), 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SeriesKey, byte[]> eldest) {
+				if (size() > maxSize) {
+					metrics.evicted();
+					return true;
+				}
+
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param key a key, which may be a reused probe
+	 * @return the cached prefix, or null
+	 */
+	public byte[] get(SeriesKey key) {
+		byte[] prefix = prefixes.get(key);
+
+		if (prefix == null) {
+			metrics.missed();
+		} else {
+			metrics.hit();
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * @param key    a key, which is copied before it is stored
+	 * @param prefix the encoded prefix
+	 */
+	public void put(SeriesKey key, byte[] prefix) {
+		if (prefixes.put(key.copy(), prefix) == null) {
+			metrics.added();
+		}
+	}
+
+	public void clear() {
+		metrics.removed(prefixes.size());
+		prefixes.clear();
+	}
+
+	public int size() {
+		return prefixes.size();
+	}
+}
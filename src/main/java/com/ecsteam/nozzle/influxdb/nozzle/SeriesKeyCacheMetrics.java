@@ -0,0 +1,66 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit, miss and eviction counts for every {@link SeriesKeyCache}, published on the actuator
+ * <tt>/metrics</tt> endpoint as <tt>nozzle.series-cache.*</tt>
+ */
+@Component
+public class SeriesKeyCacheMetrics implements PublicMetrics {
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder size = new LongAdder();
+
+	void hit() {
+		hits.increment();
+	}
+
+	void missed() {
+		misses.increment();
+	}
+
+	void added() {
+		size.increment();
+	}
+
+	void evicted() {
+		evictions.increment();
+		size.decrement();
+	}
+
+	void removed(int count) {
+		size.add(-count);
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		return Arrays.asList(
+				new Metric<>("nozzle.series-cache.hits", hits.sum()),
+				new Metric<>("nozzle.series-cache.misses", misses.sum()),
+				new Metric<>("nozzle.series-cache.evictions", evictions.sum()),
+				new Metric<>("nozzle.series-cache.size", size.sum()));
+	}
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import java.math.BigInteger;
+
+/**
+ * Writes a double as the shortest decimal that parses back to the same double, without allocating.
+ *
+ * This is Raffaello Giulietti's Schubfach algorithm, the one {@link Double#toString(double)} uses from Java 19
+ * on: the double is scaled by a 126-bit approximation of a power of ten, so the shortest decimal in its rounding
+ * interval falls out of a few 64-bit multiplications. See "The Schubfach way to render doubles" (Giulietti, 2020).
+ *
+ * The powers of ten are computed once with {@link BigInteger} when the class is loaded.
+ */
+final class ShortestDecimal {
+	private static final int P = 53;
+	private static final int Q_MIN = -1074;
+	private static final long C_MIN = 1L << (P - 1);
+	private static final long C_TINY = 3;
+	private static final int K_MIN = -324;
+	private static final int K_MAX = 292;
+	private static final long MASK_63 = (1L << 63) - 1;
+
+	/**
+	 * Values with this many digits before the decimal point or more, or with more than this many zeros after it,
+	 * are written in scientific notation
+	 */
+	private static final int MAX_PLAIN_DIGITS = 21;
+	private static final int MAX_LEADING_ZEROS = 6;
+
+	/**
+	 * g1 and g0 for each k, such that g1 2^63 + g0 = floor(10^-k 2^-r) + 1 with r chosen to make it 126 bits
+	 */
+	private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+	static {
+		for (int k = K_MIN; k <= K_MAX; ++k) {
+			int r = flog2pow10(-k) - 125;
+			BigInteger numerator = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+			BigInteger denominator = k > 0 ? BigInteger.TEN.pow(k) : BigInteger.ONE;
+			if (r < 0) {
+				numerator = numerator.shiftLeft(-r);
+			} else {
+				denominator = denominator.shiftLeft(r);
+			}
+
+			BigInteger g = numerator.divide(denominator).add(BigInteger.ONE);
+			G[2 * (k - K_MIN)] = g.shiftRight(63).longValueExact();
+			G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+		}
+	}
+
+	private ShortestDecimal() {
+	}
+
+	/**
+	 * @param value   a finite double
+	 * @param digits  scratch space of at least 17 bytes
+	 * @param out     where to write the decimal
+	 */
+	static void write(double value, byte[] digits, LineProtocolBuffer out) {
+		long bits = Double.doubleToRawLongBits(value);
+		long t = bits & (C_MIN - 1);
+		int bq = (int) (bits >>> (P - 1)) & 0x7ff;
+
+		if (bits < 0) {
+			out.write((byte) '-');
+		}
+
+		if (bq != 0) {
+			int mq = -Q_MIN + 1 - bq;
+			long c = C_MIN | t;
+
+			if (0 < mq && mq < P) {
+				long f = c >> mq;
+				if (f << mq == c) {
+					// a whole number that fits in 53 bits
+					write(f, 0, digits, out);
+					return;
+				}
+			}
+
+			toDecimal(-mq, c, 0, digits, out);
+		} else if (t != 0) {
+			// subnormal
+			if (t < C_TINY) {
+				toDecimal(Q_MIN, 10 * t, -1, digits, out);
+			} else {
+				toDecimal(Q_MIN, t, 0, digits, out);
+			}
+		} else {
+			out.write((byte) '0');
+		}
+	}
+
+	/**
+	 * Find the shortest decimal in the rounding interval of c 2^q, or the closest of two if there are two
+	 */
+	private static void toDecimal(int q, long c, int dk, byte[] digits, LineProtocolBuffer out) {
+		int odd = (int) c & 0x1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+
+		// the interval is asymmetric at powers of two
+		if (c != C_MIN || q == Q_MIN) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+
+		int h = q + flog2pow10(-k) + 2;
+		long g1 = G[2 * (k - K_MIN)];
+		long g0 = G[2 * (k - K_MIN) + 1];
+
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+
+		long s = vb >> 2;
+		if (s >= 100) {
+			// try one digit less first
+			long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + odd <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + odd <= vbr;
+			if (upin != wpin) {
+				write(upin ? sp10 : tp10, k, digits, out);
+				return;
+			}
+		}
+
+		long t = s + 1;
+		boolean uin = vbl + odd <= s << 2;
+		boolean win = (t << 2) + odd <= vbr;
+		if (uin != win) {
+			write(uin ? s : t, k + dk, digits, out);
+			return;
+		}
+
+		long cmp = vb - (s + t << 1);
+		write(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk, digits, out);
+	}
+
+	/**
+	 * Write f 10^e, in plain notation unless that would take a lot of zeros
+	 */
+	private static void write(long f, int e, byte[] digits, LineProtocolBuffer out) {
+		while (f >= 10 && f % 10 == 0) {
+			f /= 10;
+			++e;
+		}
+
+		int position = digits.length;
+		do {
+			digits[--position] = (byte) ('0' + f % 10);
+			f /= 10;
+		} while (f != 0);
+
+		int length = digits.length - position;
+		int point = length + e;
+
+		if (point > MAX_PLAIN_DIGITS || point < -MAX_LEADING_ZEROS) {
+			out.write(digits[position]);
+			if (length > 1) {
+				out.write((byte) '.');
+				out.write(digits, position + 1, length - 1);
+			}
+			out.write((byte) 'e');
+			writeExponent(point - 1, out);
+		} else if (point <= 0) {
+			out.write((byte) '0');
+			out.write((byte) '.');
+			for (int i = point; i < 0; ++i) {
+				out.write((byte) '0');
+			}
+			out.write(digits, position, length);
+		} else if (point < length) {
+			out.write(digits, position, point);
+			out.write((byte) '.');
+			out.write(digits, position + point, length - point);
+		} else {
+			out.write(digits, position, length);
+			for (int i = length; i < point; ++i) {
+				out.write((byte) '0');
+			}
+		}
+	}
+
+	private static void writeExponent(int exponent, LineProtocolBuffer out) {
+		if (exponent < 0) {
+			out.write((byte) '-');
+			exponent = -exponent;
+		}
+
+		if (exponent >= 100) {
+			out.write((byte) ('0' + exponent / 100));
+		}
+		if (exponent >= 10) {
+			out.write((byte) ('0' + exponent / 10 % 10));
+		}
+		out.write((byte) ('0' + exponent % 10));
+	}
+
+	/**
+	 * The upper 64 bits of the 190-bit product of g and cp, rounded to odd
+	 */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | (z & MASK_63) + MASK_63 >>> 63;
+	}
+
+	/**
+	 * The upper 64 bits of the 128-bit product, like Java 9's Math.multiplyHigh
+	 */
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32;
+		long x2 = x & 0xffffffffL;
+		long y1 = y >> 32;
+		long y2 = y & 0xffffffffL;
+
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = (t & 0xffffffffL) + x2 * y1;
+		long z0 = t >> 32;
+
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
+	/**
+	 * floor(log10(2^e))
+	 */
+	private static int flog10pow2(int e) {
+		return (int) (e * 661_971_961_083L >> 41);
+	}
+
+	/**
+	 * floor(log10(3/4 2^e))
+	 */
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+	}
+
+	/**
+	 * floor(log2(10^e))
+	 */
+	private static int flog2pow10(int e) {
+		return (int) (e * 913_124_641_741L >> 38);
+	}
+}
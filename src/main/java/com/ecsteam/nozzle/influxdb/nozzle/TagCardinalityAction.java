@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * What to do with a tag once it has had more distinct values than the cardinality limit
+ */
+public enum TagCardinalityAction {
+	/**
+	 * Leave the tag off
+	 */
+	strip,
+
+	/**
+	 * Replace the value with one of a fixed number of buckets chosen by its hash
+	 */
+	bucket;
+}
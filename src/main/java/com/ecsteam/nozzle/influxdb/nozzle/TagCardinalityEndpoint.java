@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the tags the {@link TagCardinalityGuard} is stripping or bucketing, at <tt>/tagcardinality</tt>
+ */
+@Component
+public class TagCardinalityEndpoint extends AbstractEndpoint<List<Map<String, Object>>> {
+	private final TagCardinalityGuard guard;
+
+	@Autowired
+	public TagCardinalityEndpoint(TagCardinalityGuard guard) {
+		super("tagcardinality");
+		this.guard = guard;
+	}
+
+	@Override
+	public List<Map<String, Object>> invoke() {
+		return guard.getOffenders();
+	}
+}
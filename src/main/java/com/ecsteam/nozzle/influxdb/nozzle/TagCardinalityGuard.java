@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protects InfluxDB from tags with unbounded values, like request IDs or container GUIDs. The number of distinct
+ * values of every (measurement, tag key) is estimated with a {@link HyperLogLog} sketch. Once it passes
+ * <tt>influxdb.nozzle.tag-cardinality-limit</tt>, the tag is stripped or replaced with a hash bucket from then
+ * on, depending on <tt>influxdb.nozzle.tag-cardinality-action</tt>.
+ *
+ * Values are only offered when a series prefix is encoded, i.e. on a series cache miss, which is exactly when a
+ * new value shows up. Every time a tag trips the guard the {@link #getGeneration() generation} changes, so
+ * encoders know to drop prefixes they cached with the old values. Thread safe.
+ */
+@Component
+@Slf4j
+public class TagCardinalityGuard {
+	private final int limit;
+	private final TagCardinalityAction action;
+	private final int buckets;
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, TagSketch>> sketches =
+			new ConcurrentHashMap<>();
+
+	@Getter
+	private volatile int generation;
+
+	@Autowired
+	public TagCardinalityGuard(NozzleProperties properties) {
+		this.limit = properties.getTagCardinalityLimit();
+		this.action = properties.getTagCardinalityAction();
+		this.buckets = Math.max(1, properties.getTagCardinalityBuckets());
+	}
+
+	public boolean isEnabled() {
+		return limit > 0;
+	}
+
+	/**
+	 * Count a tag value and decide what to write for it
+	 *
+	 * @return the value, a bucket replacing it, or null if the tag should be left off
+	 */
+	public String guard(String measurement, String key, String value) {
+		if (!isEnabled()) {
+			return value;
+		}
+
+		TagSketch sketch = sketches.computeIfAbsent(measurement, m -> new ConcurrentHashMap<>())
+				.computeIfAbsent(key, k -> new TagSketch());
+
+		long hash = HyperLogLog.hash(value);
+
+		if (!sketch.tripped) {
+			sketch.values.offer(hash);
+
+			if (sketch.values.cardinality() <= limit) {
+				return value;
+			}
+
+			trip(measurement, key, sketch);
+		}
+
+		return action == TagCardinalityAction.strip ? null : "bucket-" + Math.floorMod(hash, buckets);
+	}
+
+	private synchronized void trip(String measurement, String key, TagSketch sketch) {
+		if (sketch.tripped) {
+			return;
+		}
+
+		sketch.tripped = true;
+		sketch.since = new Date();
+		++generation;
+
+		log.warn("Tag {} of {} has more than {} distinct values; it will be {} from now on", key, measurement,
+				limit, action == TagCardinalityAction.strip ? "stripped" : "bucketed");
+	}
+
+	/**
+	 * @return every tag that has tripped the guard, with its estimated number of distinct values
+	 */
+	public List<Map<String, Object>> getOffenders() {
+		List<Map<String, Object>> offenders = new ArrayList<>();
+
+		sketches.forEach((measurement, tags) -> tags.forEach((key, sketch) -> {
+			if (sketch.tripped) {
+				Map<String, Object> offender = new LinkedHashMap<>();
+				offender.put("measurement", measurement);
+				offender.put("tag", key);
+				offender.put("distinctValues", sketch.values.cardinality());
+				offender.put("action", action);
+				offender.put("since", sketch.since);
+				offenders.add(offender);
+			}
+		}));
+
+		return offenders;
+	}
+
+	private static class TagSketch {
+		final HyperLogLog values = new HyperLogLog();
+		volatile boolean tripped;
+		volatile Date since;
+	}
+}
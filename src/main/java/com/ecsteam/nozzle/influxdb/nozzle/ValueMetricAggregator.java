@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.ValueMetric;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds ValueMetrics that match an {@link AggregationRule} into one point per series per window, with
+ * <tt>min</tt>, <tt>max</tt>, <tt>mean</tt>, <tt>last</tt> and <tt>count</tt> fields. Windows are aligned to the
+ * envelope timestamps, and a window is written once a later point for the series arrives or, failing that,
+ * shortly after it has ended by the wall clock. A point older than the open window, or than the last one written,
+ * is counted as late and left out, since writing it would replace a point InfluxDB already has. Which rule, if any, applies to an (origin, name) pair is worked
+ * out once and cached, so metrics no rule matches cost two map lookups however many rules there are. Like the
+ * batcher that owns it, it is only used by one thread.
+ */
+public class ValueMetricAggregator {
+	/**
+	 * How long after its end a window still accepts late points before it is written anyway
+	 */
+	private static final long GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * How many windows a series may go without points before its accumulator is forgotten
+	 */
+	private static final int IDLE_WINDOWS = 10;
+
+	/**
+	 * Stop caching rule decisions beyond this many (origin, name) pairs, which only a broken emitter would produce
+	 */
+	private static final int MAX_CACHED = 100_000;
+
+	private final List<AggregationRule> rules;
+	private final LineProtocolEncoder encoder;
+	private final PipelineMetrics pipelineMetrics;
+
+	private final HashMap<SeriesKey, WindowAccumulator> accumulators = new HashMap<>();
+	private final SeriesKey probe = new SeriesKey();
+
+	/**
+	 * The index of the rule for each origin and name, or -1 for none
+	 */
+	private final HashMap<String, HashMap<String, Integer>> decisions = new HashMap<>();
+	private int cached;
+
+	public ValueMetricAggregator(List<AggregationRule> rules, LineProtocolEncoder encoder,
+			PipelineMetrics pipelineMetrics) {
+		this.rules = rules;
+		this.encoder = encoder;
+		this.pipelineMetrics = pipelineMetrics;
+	}
+
+	/**
+	 * Add an envelope to its series' window, writing the previous window first if this point starts a new one
+	 *
+	 * @return the number of points written, or -1 if the envelope is not aggregated and should be encoded as is
+	 */
+	public int aggregate(Envelope envelope, LineProtocolBuffer out) {
+		ValueMetric vm = envelope.getValueMetric();
+		if (vm == null || vm.value() == null) {
+			return -1;
+		}
+
+		AggregationRule rule = findRule(envelope.getOrigin(), vm.getName());
+		if (rule == null) {
+			return -1;
+		}
+
+		WindowAccumulator accumulator = accumulators.get(probe.set(envelope));
+		if (accumulator == null) {
+			accumulator = new WindowAccumulator(encoder.getPrefix(envelope), rule.getWindowNanos());
+			accumulators.put(probe.copy(), accumulator);
+		}
+
+		double value = vm.value();
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return 0;
+		}
+
+		long timestamp = envelope.getTimestamp();
+		if (accumulator.isLate(timestamp)) {
+			pipelineMetrics.late();
+			return 0;
+		}
+
+		int written = 0;
+
+		if (accumulator.count > 0 && !accumulator.inWindow(timestamp)) {
+			written = write(accumulator, out);
+		}
+
+		accumulator.add(timestamp, value);
+		return written;
+	}
+
+	/**
+	 * Write every window that ended more than the grace period ago, and forget series that have gone quiet
+	 *
+	 * @param now the current time in epoch nanoseconds
+	 * @param all write every open window regardless of its end, e.g. on shutdown
+	 * @return the number of points written
+	 */
+	public int flush(long now, boolean all, LineProtocolBuffer out) {
+		int written = 0;
+
+		for (Iterator<WindowAccumulator> it = accumulators.values().iterator(); it.hasNext(); ) {
+			WindowAccumulator accumulator = it.next();
+
+			if (accumulator.count > 0) {
+				if (all || now - accumulator.windowEnd() >= GRACE_NANOS) {
+					written += write(accumulator, out);
+				}
+			} else if (now - accumulator.lastSeen > IDLE_WINDOWS * accumulator.windowNanos) {
+				it.remove();
+			}
+		}
+
+		return written;
+	}
+
+	private int write(WindowAccumulator accumulator, LineProtocolBuffer out) {
+		int written = encoder.encodeWindow(accumulator, out) ? 1 : 0;
+		accumulator.reset();
+
+		return written;
+	}
+
+	private AggregationRule findRule(String origin, String name) {
+		HashMap<String, Integer> byName = decisions.get(origin);
+		Integer index = byName == null ? null : byName.get(name);
+
+		if (index == null) {
+			index = -1;
+			for (int i = 0; i < rules.size(); ++i) {
+				if (rules.get(i).matches(origin, name)) {
+					index = i;
+					break;
+				}
+			}
+
+			if (cached < MAX_CACHED) {
+				decisions.computeIfAbsent(origin, o -> new HashMap<>()).put(name, index);
+				++cached;
+			}
+		}
+
+		return index < 0 ? null : rules.get(index);
+	}
+
+	public int size() {
+		return accumulators.size();
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+/**
+ * Min, max, mean, last and count of one series' values within the current window, kept in primitives and
+ * reset rather than replaced when the window rolls over
+ */
+class WindowAccumulator {
+	final byte[] prefix;
+	final long windowNanos;
+
+	long windowStart;
+	long lastSeen;
+
+	/**
+	 * The end of the last window written, before which points come too late
+	 */
+	long writtenUntil = Long.MIN_VALUE;
+
+	long count;
+	double min;
+	double max;
+	double sum;
+	double last;
+
+	WindowAccumulator(byte[] prefix, long windowNanos) {
+		this.prefix = prefix;
+		this.windowNanos = windowNanos;
+	}
+
+	/**
+	 * @return true if the timestamp belongs to the window being accumulated
+	 */
+	boolean inWindow(long timestamp) {
+		return count > 0 && timestamp >= windowStart && timestamp - windowStart < windowNanos;
+	}
+
+	/**
+	 * @return true if the timestamp is before the window being accumulated, or within one already written
+	 */
+	boolean isLate(long timestamp) {
+		return timestamp < (count > 0 ? windowStart : writtenUntil);
+	}
+
+	long windowEnd() {
+		return windowStart + windowNanos;
+	}
+
+	void add(long timestamp, double value) {
+		if (count == 0) {
+			windowStart = timestamp - Math.floorMod(timestamp, windowNanos);
+			min = value;
+			max = value;
+			sum = 0;
+		} else {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		sum += value;
+		last = value;
+		lastSeen = timestamp;
+		++count;
+	}
+
+	void reset() {
+		writtenUntil = windowEnd();
+		count = 0;
+	}
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.ecsteam.nozzle.influxdb.nozzle.AbstractInfluxDBSender.Outcome;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AbstractInfluxDBSenderTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final BufferPool pool = new BufferPool(4, 256, 4096);
+	private final AtomicInteger requests = new AtomicInteger();
+
+	@Test
+	public void isolatesOneBadPointInABatch() throws Exception {
+		Batch batch = batch(16, 5);
+
+		assertThat(sender(Outcome.rejected).sendBatch(batch).get()).isTrue();
+
+		// the whole batch, then both halves at each of the four levels down to the bad point
+		assertThat(requests.get()).isEqualTo(1 + 2 * 4);
+		assertThat(batch.getAttempts()).isEqualTo(requests.get());
+		assertThat(batch.getQuarantined()).isEqualTo(1);
+	}
+
+	@Test
+	public void quarantinesEveryBadPoint() throws Exception {
+		Batch batch = batch(8, 0, 7);
+
+		assertThat(sender(Outcome.rejected).sendBatch(batch).get()).isTrue();
+		assertThat(batch.getQuarantined()).isEqualTo(2);
+	}
+
+	@Test
+	public void writesGoodBatchesOnce() throws Exception {
+		Batch batch = batch(8);
+
+		assertThat(sender(Outcome.rejected).sendBatch(batch).get()).isTrue();
+		assertThat(requests.get()).isEqualTo(1);
+		assertThat(batch.getQuarantined()).isZero();
+	}
+
+	@Test
+	public void doesNotSplitBatchesThatFailed() throws Exception {
+		Batch batch = batch(8, 3);
+
+		assertThat(sender(Outcome.failed).sendBatch(batch).get()).isFalse();
+		assertThat(requests.get()).isEqualTo(1);
+		assertThat(batch.getQuarantined()).isZero();
+	}
+
+	@Test
+	public void writesToTheBatchDatabaseInItsPrecision() {
+		AbstractInfluxDBSender sender = sender(Outcome.rejected);
+		Batch batch = batch(1);
+		assertThat(sender.getUri(batch).toString()).isEqualTo("http://influx:8086/write?db=metrics");
+
+		batch.setTarget(RouteTarget.parse("platform/short"));
+		batch.setPrecision(Precision.ms);
+		assertThat(sender.getUri(batch).toString())
+				.isEqualTo("http://influx:8086/write?db=platform&rp=short&precision=ms");
+	}
+
+	/**
+	 * @param bad the lines InfluxDB rejects
+	 */
+	private Batch batch(int points, int... bad) {
+		Batch batch = new Batch(pool);
+		for (int i = 0; i < points; ++i) {
+			boolean rejected = false;
+			for (int b : bad) {
+				rejected |= b == i;
+			}
+
+			batch.getBuffer().write(("cpu value=" + (rejected ? "bad" : String.valueOf(i)) + " " + i + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			batch.pointAdded();
+		}
+
+		return batch;
+	}
+
+	/**
+	 * @param whenBad what InfluxDB makes of a batch holding a bad point
+	 */
+	private AbstractInfluxDBSender sender(Outcome whenBad) {
+		return new AbstractInfluxDBSender(properties, () -> "http://influx:8086", null,
+				new FlowController(properties)) {
+			@Override
+			protected CompletableFuture<Outcome> write(Batch batch) {
+				requests.incrementAndGet();
+				batch.attempted();
+
+				String body = new String(batch.getBuffer().array(), 0, batch.getBytes(), StandardCharsets.UTF_8);
+				return CompletableFuture.completedFuture(body.contains("bad") ? whenBad : Outcome.written);
+			}
+		};
+	}
+}
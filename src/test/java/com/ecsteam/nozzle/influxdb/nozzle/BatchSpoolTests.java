@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchSpoolTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final BufferPool pool = new BufferPool(2, 256, 4096);
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+	private BatchSpool spool;
+
+	@Before
+	public void configure() throws IOException {
+		properties.setSpoolDirectory(folder.newFolder("spool").getPath());
+		properties.setSpoolSegmentBytes(4096);
+		properties.setSpoolReplayRate(1000);
+		properties.setMaxBackoff(10L);
+		properties.setMaxRetries(2);
+	}
+
+	@After
+	public void close() {
+		if (spool != null) {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void replaysWhatWasSpooledBeforeARestart() throws Exception {
+		properties.setPrecision(Precision.ms);
+		BatchSpool down = open(batch -> false);
+		down.append(batch("cpu value=1 1\n", null, null));
+		down.append(batch("cpu value=2 2\n", "http://influx-2:8086", RouteTarget.parse("platform/short")));
+		down.append(batch("cpu value=3 3\n", null, null));
+		down.close();
+
+		// restarted with another precision, which the spooled batches must not be sent with
+		properties.setPrecision(Precision.ns);
+		spool = open(this::record);
+		awaitSent(3);
+
+		assertThat(sent).containsExactly(
+				"null null ms cpu value=1 1\n",
+				"http://influx-2:8086 platform/short ms cpu value=2 2\n",
+				"null null ms cpu value=3 3\n");
+		assertThat(spool.getSpooledBytes()).isZero();
+	}
+
+	@Test
+	public void rollsOverToNewSegmentsAndDeletesDrainedOnes() throws Exception {
+		AtomicInteger accepting = new AtomicInteger();
+		spool = open(batch -> accepting.get() > 0 && record(batch));
+
+		for (int i = 0; i < 40; ++i) {
+			assertThat(spool.append(batch(line(i), null, null))).isTrue();
+		}
+		assertThat(segments().size()).isGreaterThan(2);
+
+		accepting.set(1);
+		awaitSent(40);
+
+		for (int i = 0; i < 40; ++i) {
+			assertThat(sent.get(i)).endsWith(line(i));
+		}
+		assertThat(metric("nozzle.spool.dropped")).isEqualTo(0L);
+		assertThat(segments()).hasSize(1);
+	}
+
+	@Test
+	public void keepsBatchesInfluxDBDoesNotAcceptYet() throws Exception {
+		AtomicInteger failures = new AtomicInteger(10 * properties.getMaxRetries());
+		spool = open(batch -> failures.getAndDecrement() <= 0 && record(batch));
+		spool.append(batch("cpu value=1 1\n", null, null));
+
+		awaitSent(1);
+		assertThat(metric("nozzle.spool.dropped")).isEqualTo(0L);
+		assertThat(metric("nozzle.spool.replayed")).isEqualTo(1L);
+	}
+
+	@Test
+	public void skipsRecordsCorruptedOnDisk() throws Exception {
+		BatchSpool down = open(batch -> false);
+		down.append(batch("cpu value=1 1\n", null, null));
+		down.append(batch("cpu value=2 2\n", null, null));
+		down.append(batch("cpu value=3 3\n", null, null));
+		down.close();
+
+		Path segment = segments().get(0);
+		byte[] bytes = Files.readAllBytes(segment);
+		String text = new String(bytes, StandardCharsets.ISO_8859_1);
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(text.indexOf("value=2"));
+			file.write('X');
+		}
+
+		spool = open(this::record);
+		awaitSent(2);
+
+		assertThat(sent).containsExactly("null null ns cpu value=1 1\n", "null null ns cpu value=3 3\n");
+	}
+
+	@Test
+	public void keepsAppendingPastASegmentItCannotRead() throws Exception {
+		BatchSpool down = open(batch -> false);
+		for (int i = 0; i < 20; ++i) {
+			down.append(batch(line(i), null, null));
+		}
+		down.close();
+
+		// a segment after the last readable one, as an older nozzle or a crash while creating it would leave
+		List<Path> written = segments();
+		Path directory = written.get(0).getParent();
+		Path unreadable = directory.resolve(String.format("spool-%020d.seg", written.size()));
+		Files.write(unreadable, new byte[4096]);
+
+		AtomicInteger accepting = new AtomicInteger();
+		spool = open(batch -> accepting.get() > 0 && record(batch));
+		for (int i = 20; i < 40; ++i) {
+			assertThat(spool.append(batch(line(i), null, null))).isTrue();
+		}
+		assertThat(metric("nozzle.spool.dropped")).isEqualTo(0L);
+		assertThat(segments()).doesNotContain(unreadable)
+				.contains(unreadable.resolveSibling(unreadable.getFileName() + ".rejected"));
+
+		accepting.set(1);
+		awaitSent(40);
+	}
+
+	private BatchSpool open(Receiver receiver) throws IOException {
+		BatchSpool opened = new BatchSpool(properties, batch -> CompletableFuture.completedFuture(receiver.accept(batch)));
+		opened.open();
+		return opened;
+	}
+
+	private boolean record(Batch batch) {
+		byte[] body = new byte[batch.getBuffer().length()];
+		System.arraycopy(batch.getBuffer().array(), 0, body, 0, body.length);
+		sent.add(batch.getDestination() + " " + batch.getTarget() + " " + batch.getPrecision() + " "
+				+ new String(body, StandardCharsets.UTF_8));
+		return true;
+	}
+
+	private Batch batch(String lines, String destination, RouteTarget target) {
+		Batch batch = new Batch(pool);
+		batch.getBuffer().write(lines.getBytes(StandardCharsets.UTF_8));
+		batch.pointsAdded(1);
+		batch.setDestination(destination);
+		batch.setTarget(target);
+		return batch;
+	}
+
+	private static String line(int i) {
+		StringBuilder line = new StringBuilder("cpu,host=cell-").append(i).append(' ');
+		while (line.length() < 300) {
+			line.append("value=").append(i).append(',');
+		}
+		return line.append("last=").append(i).append(' ').append(i).append('\n').toString();
+	}
+
+	private void awaitSent(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && sent.size() < count; ++i) {
+			Thread.sleep(10L);
+		}
+		assertThat(sent).hasSize(count);
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath().resolve("spool"))) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+
+	private long metric(String name) {
+		for (Metric<?> metric : spool.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue().longValue();
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	private interface Receiver {
+		boolean accept(Batch batch);
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentHistogramTests {
+
+	@Test
+	public void reportsPercentilesOfWhatWasRecorded() {
+		ConcurrentHistogram histogram = new ConcurrentHistogram();
+		for (int i = 1; i <= 100; ++i) {
+			histogram.record(i * 1000L);
+		}
+
+		assertThat(histogram.getCount()).isEqualTo(100);
+		assertThat(histogram.getMax()).isEqualTo(100_000L);
+		assertThat(histogram.getMean()).isEqualTo(50_500.0);
+		// buckets are within a few percent of the values in them
+		assertThat(histogram.valueAtPercentile(50)).isBetween(50_000L, 52_000L);
+		assertThat(histogram.valueAtPercentile(99)).isBetween(99_000L, 100_000L);
+	}
+
+	@Test
+	public void forgetsValuesOlderThanTwoWindows() throws InterruptedException {
+		ConcurrentHistogram histogram = new ConcurrentHistogram(TimeUnit.MILLISECONDS.toNanos(100));
+		for (int i = 0; i < 1000; ++i) {
+			histogram.record(1000L);
+		}
+
+		Thread.sleep(120L);
+		histogram.record(1_000_000L);
+
+		// the old values are in the previous interval, the spike in the current one
+		assertThat(histogram.getCount()).isEqualTo(1001);
+		assertThat(histogram.getMax()).isEqualTo(1_000_000L);
+
+		Thread.sleep(250L);
+		assertThat(histogram.getCount()).isZero();
+		assertThat(histogram.valueAtPercentile(99)).isZero();
+
+		histogram.record(5000L);
+		assertThat(histogram.valueAtPercentile(50)).isBetween(5000L, 5200L);
+	}
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTests {
+
+	private static final int SERIES = 100_000;
+
+	@Test
+	public void spreadsSeriesEvenly() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086"));
+
+		int[] owned = new int[3];
+		for (int series = 0; series < SERIES; ++series) {
+			++owned[ring.nodeOf(ConsistentHashRing.mix(series))];
+		}
+
+		for (int count : owned) {
+			assertThat(count).isBetween(SERIES / 4, SERIES * 5 / 12);
+		}
+	}
+
+	@Test
+	public void onlyMovesSeriesToANewNode() {
+		ConsistentHashRing three = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086"));
+		ConsistentHashRing four = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086",
+				"http://c:8086", "http://d:8086"));
+
+		int moved = 0;
+		for (int series = 0; series < SERIES; ++series) {
+			long hash = ConsistentHashRing.mix(series);
+			int before = three.nodeOf(hash);
+			int after = four.nodeOf(hash);
+
+			if (before != after) {
+				assertThat(after).isEqualTo(3);
+				++moved;
+			}
+		}
+
+		// about a quarter, where rehashing modulo the node count would move three quarters
+		assertThat((double) moved / SERIES).isBetween(0.15, 0.35);
+	}
+
+	@Test
+	public void keepsAssignmentsStable() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086"));
+		ConsistentHashRing again = new ConsistentHashRing(Arrays.asList("http://a:8086", "http://b:8086"));
+
+		for (int series = 0; series < 1000; ++series) {
+			long hash = ConsistentHashRing.mix(series);
+			assertThat(again.nodeOf(hash)).isEqualTo(ring.nodeOf(hash));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CounterStateTests {
+
+	private static final long HEARTBEAT = 1000L;
+
+	@Test
+	public void skipsUnchangedTotalsUntilTheHeartbeat() {
+		CounterState state = new CounterState(HEARTBEAT);
+
+		assertThat(state.update(prefix(1), 42L, 0L)).isTrue();
+		assertThat(state.update(prefix(1), 42L, 999L)).isFalse();
+		assertThat(state.update(prefix(1), 43L, 999L)).isTrue();
+		assertThat(state.update(prefix(1), 43L, 2000L)).isTrue();
+	}
+
+	@Test
+	public void evictsSeriesThatStoppedReporting() {
+		CounterState state = new CounterState(HEARTBEAT);
+
+		// a thousand new instances every heartbeat, each reporting for two heartbeats, for a long while
+		for (int round = 0; round < 200; ++round) {
+			long now = round * HEARTBEAT;
+			for (int i = 0; i < 1000; ++i) {
+				state.update(prefix(round * 1000 + i), round, now);
+				if (round > 0) {
+					state.update(prefix((round - 1) * 1000 + i), round, now);
+				}
+			}
+		}
+
+		assertThat(state.size()).isLessThanOrEqualTo(5000);
+		assertThat(state.capacity()).isLessThanOrEqualTo(16384);
+
+		// the ones still reporting are still tracked
+		assertThat(state.update(prefix(199_000), 199L, 199 * HEARTBEAT + 1)).isFalse();
+	}
+
+	private static byte[] prefix(int instance) {
+		return ("requests,eventType=CounterEvent,instance=" + instance).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class DatabaseRouterTests {
+
+	private final DatabaseRouter router = router("platform/short:origin=gorouter",
+			"acme:tag.organization_name=acme", "platform/short:job=router", "metrics:origin=rep");
+
+	@Test
+	public void numbersEachDistinctTarget() {
+		// the default database is target 0, also when a rule names it
+		assertThat(router.getTargets()).containsExactly(null, RouteTarget.parse("platform/short"),
+				RouteTarget.parse("acme"));
+	}
+
+	@Test
+	public void routesToTheFirstMatchingRule() {
+		assertThat(router.route(metric("gorouter", "router", "acme"))).isEqualTo(1);
+		assertThat(router.route(metric("cc", "api", "acme"))).isEqualTo(2);
+		assertThat(router.route(metric("cc", "router", null))).isEqualTo(1);
+		assertThat(router.route(metric("rep", "diego_cell", "acme"))).isEqualTo(2);
+		assertThat(router.route(metric("rep", "diego_cell", null))).isEqualTo(0);
+		assertThat(router.route(metric("bbs", "diego_api", null))).isEqualTo(0);
+	}
+
+	@Test
+	public void cachesDecisionsPerSeries() {
+		for (int i = 0; i < 3; ++i) {
+			assertThat(router.route(metric("gorouter", "router", null))).isEqualTo(1);
+			assertThat(router.route(metric("bbs", "diego_api", null))).isEqualTo(0);
+		}
+
+		assertThat(metric("nozzle.routing.cached-decisions")).isEqualTo(2);
+		assertThat(metric("nozzle.routing.platform-short.envelopes")).isEqualTo(3);
+		assertThat(metric("nozzle.routing.default.envelopes")).isEqualTo(3);
+	}
+
+	@Test
+	public void sendsEverythingToTheDefaultWithoutRoutes() {
+		DatabaseRouter none = router();
+
+		assertThat(none.getTargets()).containsExactly((RouteTarget) null);
+		assertThat(none.route(metric("gorouter", "router", null))).isZero();
+		assertThat(none.metrics()).isEmpty();
+	}
+
+	@Test
+	public void ignoresSpacesAroundConditions() {
+		DatabaseRouter spaced = router("apps : tag.organization_name = acme & name = requests");
+
+		assertThat(spaced.route(metric("cc", "api", "acme"))).isEqualTo(1);
+		assertThat(spaced.route(metric("cc", "api", "other"))).isEqualTo(0);
+	}
+
+	@Test
+	public void rejectsMalformedRoutes() {
+		for (String route : new String[] { "platform", ":origin=gorouter", "platform:colour=red",
+				"platform:origin" }) {
+			assertThatThrownBy(() -> RouteRule.parse(route)).as(route).isInstanceOf(IllegalArgumentException.class);
+		}
+	}
+
+	@Test
+	public void parsesTargets() {
+		RouteTarget target = RouteTarget.parse("platform/short");
+		assertThat(target.getDatabase()).isEqualTo("platform");
+		assertThat(target.getRetentionPolicy()).isEqualTo("short");
+		assertThat(target.toString()).isEqualTo("platform/short");
+		assertThat(RouteTarget.parse("acme").getRetentionPolicy()).isNull();
+	}
+
+	private static DatabaseRouter router(String... routes) {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setRoutes(Arrays.asList(routes));
+		return new DatabaseRouter(properties);
+	}
+
+	private long metric(String name) {
+		for (Metric<?> metric : router.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue().longValue();
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	private static Envelope metric(String origin, String job, String organization) {
+		Map<String, String> tags = organization == null ? Collections.emptyMap()
+				: Collections.singletonMap("organization_name", organization);
+
+		return Envelope.builder()
+				.origin(origin)
+				.job(job)
+				.eventType(EventType.VALUE_METRIC)
+				.timestamp(1490000000000000000L)
+				.tags(new HashMap<>(tags))
+				.valueMetric(ValueMetric.builder().name("requests").value(1.0).unit("count").build())
+				.build();
+	}
+}
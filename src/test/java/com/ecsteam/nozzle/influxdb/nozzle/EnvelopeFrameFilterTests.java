@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EnvelopeFrameFilterTests {
+
+	private final EnvelopeFrameFilter filter = new EnvelopeFrameFilter(new NozzleProperties(), new PipelineMetrics());
+
+	@Test
+	public void keepsMetricsAndSkipsLogs() {
+		assertThat(filter.accept(DropsondeCodec.encode(metric("rep")))).isTrue();
+		assertThat(filter.accept(DropsondeCodec.encode(log()))).isFalse();
+	}
+
+	@Test
+	public void skipsOtherOrigins() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setOrigins(Collections.singletonList("go*"));
+		EnvelopeFrameFilter origins = new EnvelopeFrameFilter(properties, new PipelineMetrics());
+
+		assertThat(origins.accept(DropsondeCodec.encode(metric("gorouter")))).isTrue();
+		assertThat(origins.accept(DropsondeCodec.encode(metric("rep")))).isFalse();
+	}
+
+	@Test(timeout = 1000L)
+	public void keepsFramesWithLengthsPastTheEnd() {
+		// origin with a length of -6, which would point back at the tag
+		assertThat(filter.accept(frame(0x0a, 0xfa, 0xff, 0xff, 0xff, 0x0f))).isTrue();
+		// origin with a length of -16, followed by an eventType
+		assertThat(filter.accept(frame(0x0a, 0xf0, 0xff, 0xff, 0xff, 0x0f, 0x10, 0x05))).isTrue();
+		// the same for a field we do not read
+		assertThat(filter.accept(frame(0x1a, 0xfa, 0xff, 0xff, 0xff, 0x0f))).isTrue();
+		assertThat(filter.accept(frame(0x1a, 0xf0, 0xff, 0xff, 0xff, 0x0f, 0x10, 0x05))).isTrue();
+		// an unknown field of 100 bytes in a 4 byte frame
+		assertThat(filter.accept(frame(0x1a, 0x64, 0x10, 0x05))).isTrue();
+		// fixed64 and fixed32 fields cut short
+		assertThat(filter.accept(frame(0x19, 0x01, 0x02))).isTrue();
+		assertThat(filter.accept(frame(0x1d, 0x01))).isTrue();
+	}
+
+	@Test(timeout = 1000L)
+	public void keepsTruncatedMetricFrames() {
+		byte[] frame = DropsondeCodec.encode(metric("rep"));
+		for (int length = 0; length < frame.length; ++length) {
+			assertThat(filter.accept(Arrays.copyOf(frame, length))).as("first %d bytes", length).isTrue();
+		}
+	}
+
+	private static byte[] frame(int... bytes) {
+		byte[] frame = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; ++i) {
+			frame[i] = (byte) bytes[i];
+		}
+
+		return frame;
+	}
+
+	private static Envelope metric(String origin) {
+		return Envelope.builder()
+				.origin(origin)
+				.eventType(EventType.VALUE_METRIC)
+				.timestamp(1490000000000000000L)
+				.valueMetric(ValueMetric.builder().name("ContainerCount").value(7.0).unit("count").build())
+				.build();
+	}
+
+	private static Envelope log() {
+		return Envelope.builder()
+				.origin("rep")
+				.eventType(EventType.LOG_MESSAGE)
+				.timestamp(1490000000000000000L)
+				.logMessage(LogMessage.builder()
+						.message("hello")
+						.messageType(MessageType.OUT)
+						.timestamp(1490000000000000000L)
+						.build())
+				.build();
+	}
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FirehoseCaptureTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final NozzleProperties properties = new NozzleProperties();
+
+	@Before
+	public void configure() throws IOException {
+		String directory = folder.newFolder("capture").getPath();
+		properties.setCaptureDirectory(directory);
+		properties.setCaptureSegmentBytes(512L);
+		properties.setReplayDirectory(directory);
+		properties.setReplaySpeed(0);
+	}
+
+	@Test
+	public void replaysWhatWasCaptured() throws IOException {
+		capture(20, 10);
+
+		List<String> replayed = replay(0, 1);
+		assertThat(replayed).hasSize(30);
+
+		// each connection's envelopes come back in the order they were captured
+		assertThat(replayed.stream().filter(name -> name.startsWith("a")).collect(Collectors.toList()))
+				.containsExactlyElementsOf(names("a", 20));
+		assertThat(replayed.stream().filter(name -> name.startsWith("b")).collect(Collectors.toList()))
+				.containsExactlyElementsOf(names("b", 10));
+	}
+
+	@Test
+	public void splitsTheReplayBetweenConnections() throws IOException {
+		capture(20, 10);
+
+		List<String> first = replay(0, 2);
+		List<String> second = replay(1, 2);
+
+		assertThat(first).isNotEmpty().doesNotContainAnyElementsOf(second);
+		assertThat(second).isNotEmpty();
+
+		List<String> captured = names("a", 20);
+		captured.addAll(names("b", 10));
+		List<String> all = new ArrayList<>(first);
+		all.addAll(second);
+		assertThat(all).hasSize(30).containsOnlyElementsOf(captured);
+	}
+
+	@Test
+	public void givesEachConnectionWholeSegments() throws IOException {
+		capture(20, 0);
+		int segments = segments().size();
+		assertThat(segments).isGreaterThan(1);
+
+		// every segment holds envelopes captured one after another, so a connection's share comes in runs
+		List<String> first = replay(0, segments);
+		assertThat(first.size()).isGreaterThan(1);
+		int start = names("a", 20).indexOf(first.get(0));
+		assertThat(first).containsExactlyElementsOf(names("a", 20).subList(start, start + first.size()));
+	}
+
+	@Test
+	public void stopsAtARecordCutShort() throws IOException {
+		capture(20, 0);
+
+		List<Path> segments = segments();
+		assertThat(segments.size()).isGreaterThan(1);
+		try (RandomAccessFile last = new RandomAccessFile(segments.get(segments.size() - 1).toFile(), "rw")) {
+			last.setLength(last.length() - 3);
+		}
+
+		assertThat(replay(0, 1)).containsExactlyElementsOf(names("a", 19));
+	}
+
+	private void capture(int first, int second) throws IOException {
+		FirehoseCapture capture = new FirehoseCapture(properties);
+		FirehoseCapture.Writer a = capture.writer(0);
+		FirehoseCapture.Writer b = capture.writer(1);
+
+		for (int i = 0; i < Math.max(first, second); ++i) {
+			if (i < first) {
+				a.write(metric("a" + i));
+			}
+			if (i < second) {
+				b.write(metric("b" + i));
+			}
+		}
+
+		capture.close();
+	}
+
+	private List<String> replay(int connection, int connections) {
+		return new ReplayEnvelopeSource(properties, new PipelineMetrics()).envelopes(connection, connections)
+				.map(envelope -> envelope.getValueMetric().getName())
+				.collectList()
+				.block();
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(folder.getRoot().toPath().resolve("capture"))) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static List<String> names(String prefix, int count) {
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < count; ++i) {
+			names.add(prefix + i);
+		}
+		return names;
+	}
+
+	private static Envelope metric(String name) {
+		return Envelope.builder()
+				.origin("rep")
+				.eventType(EventType.VALUE_METRIC)
+				.timestamp(1490000000000000000L)
+				.valueMetric(ValueMetric.builder().name(name).value(1.0).unit("count").build())
+				.build();
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FirehoseConnectionTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final List<Envelope> received = new CopyOnWriteArrayList<>();
+	private final AtomicInteger subscriptions = new AtomicInteger();
+	private FirehoseConnection connection;
+
+	@Before
+	public void configure() {
+		properties.setMinBackoff(10L);
+		properties.setMaxBackoff(20L);
+	}
+
+	@After
+	public void stop() {
+		if (connection != null) {
+			connection.stop();
+		}
+	}
+
+	@Test
+	public void reconnectsWhenTheFirehoseClosesTheWebsocket() throws Exception {
+		connection = open(source(false));
+
+		await(() -> subscriptions.get() >= 3 && received.size() >= 6);
+		assertThat(received.get(0).getValueMetric().value()).isEqualTo(1.0);
+		assertThat(received.get(2).getValueMetric().value()).isEqualTo(2.0);
+	}
+
+	@Test
+	public void reconnectsAfterAnError() throws Exception {
+		connection = open(new EnvelopeSource() {
+			@Override
+			public Flux<Envelope> envelopes(int id, int connections) {
+				return Flux.defer(() -> {
+					int subscription = subscriptions.incrementAndGet();
+					return Flux.just(metric(subscription)).concatWith(Flux.error(new IllegalStateException("closed")));
+				});
+			}
+		});
+
+		await(() -> subscriptions.get() >= 3);
+		assertThat(connection.getDetails().get("errors")).isNotEqualTo(0L);
+	}
+
+	@Test
+	public void stopsAtTheEndOfAReplay() throws Exception {
+		connection = open(source(true));
+
+		await(() -> connection.getState() == FirehoseConnection.State.stopped);
+		Thread.sleep(100L);
+		assertThat(subscriptions.get()).isEqualTo(1);
+		assertThat(received).hasSize(2);
+	}
+
+	@Test
+	public void doesNotReconnectOnceStopped() throws Exception {
+		connection = open(source(false));
+
+		await(() -> subscriptions.get() >= 1);
+		connection.stop();
+		int stoppedAt = subscriptions.get();
+		Thread.sleep(100L);
+
+		assertThat(subscriptions.get()).isEqualTo(stoppedAt);
+		assertThat(connection.getState()).isEqualTo(FirehoseConnection.State.stopped);
+	}
+
+	private FirehoseConnection open(EnvelopeSource source) {
+		FirehoseConnection opened = new FirehoseConnection(0, 1, source, properties, received::add, null);
+		opened.start();
+		return opened;
+	}
+
+	/**
+	 * Two envelopes for each subscription, then the end of the stream
+	 */
+	private EnvelopeSource source(boolean finite) {
+		return new EnvelopeSource() {
+			@Override
+			public Flux<Envelope> envelopes(int id, int connections) {
+				return Flux.defer(() -> {
+					int subscription = subscriptions.incrementAndGet();
+					return Flux.just(metric(subscription), metric(subscription));
+				});
+			}
+
+			@Override
+			public boolean isFinite() {
+				return finite;
+			}
+		};
+	}
+
+	private static Envelope metric(int value) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.valueMetric(ValueMetric.builder().name("ContainerCount").value((double) value).unit("count").build())
+				.build();
+	}
+
+	private static void await(Condition condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.holds(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertThat(condition.holds()).isTrue();
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+}
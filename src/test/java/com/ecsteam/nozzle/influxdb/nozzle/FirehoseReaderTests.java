@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FirehoseReaderTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final LongAdder points = new LongAdder();
+	private InfluxDBWriter writer;
+	private FirehoseReader reader;
+
+	@After
+	public void stop() {
+		if (reader != null) {
+			reader.stop();
+		}
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	@Test
+	public void subscribesOncePerConnection() throws Exception {
+		properties.setConnections(3);
+
+		// how many connections each subscriber was told there are
+		Map<Integer, Integer> subscribed = new ConcurrentHashMap<>();
+		EnvelopeSource source = (connection, connections) -> {
+			subscribed.put(connection, connections);
+			return Flux.range(0, 100)
+					.map(value -> metric("cell-" + connection, value))
+					.concatWith(Flux.never());
+		};
+
+		reader = new FirehoseReader(source, properties, writer(), new PipelineMetrics());
+		reader.start();
+		await(() -> points.sum() == 300);
+
+		assertThat(subscribed).hasSize(3).containsEntry(0, 3).containsEntry(1, 3).containsEntry(2, 3);
+
+		Health health = reader.health();
+		assertThat(health.getStatus()).isEqualTo(Status.UP);
+		for (int i = 0; i < 3; ++i) {
+			Map<?, ?> details = (Map<?, ?>) health.getDetails().get("connection-" + i);
+			assertThat(details.get("state")).isEqualTo(FirehoseConnection.State.connected);
+			assertThat(details.get("envelopes")).isEqualTo(100L);
+		}
+	}
+
+	@Test
+	public void isDownUntilAConnectionReceivesEnvelopes() throws Exception {
+		properties.setConnections(2);
+		reader = new FirehoseReader((connection, connections) -> Flux.never(), properties, writer(),
+				new PipelineMetrics());
+		reader.start();
+
+		Health health = reader.health();
+		assertThat(health.getStatus()).isEqualTo(Status.DOWN);
+		assertThat(health.getDetails()).containsKeys("connection-0", "connection-1");
+	}
+
+	private InfluxDBWriter writer() {
+		properties.setMaxLinger(10L);
+		InfluxDBSender sender = batch -> {
+			points.add(batch.getPoints());
+			return CompletableFuture.completedFuture(true);
+		};
+
+		writer = new InfluxDBWriter(properties, () -> "http://influx:8086", sender, null,
+				new MetricFilter(properties), new TagCardinalityGuard(properties), new SeriesKeyCacheMetrics(),
+				new PipelineMetrics(), new FlowController(properties), new DatabaseRouter(properties),
+				new PriorityLanes(properties));
+		return writer;
+	}
+
+	private static Envelope metric(String job, int value) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.job(job)
+				.index("0")
+				.timestamp(1490000000000000000L + value)
+				.valueMetric(ValueMetric.builder().name("ContainerCount").value((double) value).unit("count").build())
+				.build();
+	}
+
+	private static void await(Condition condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.holds(); ++i) {
+			Thread.sleep(10L);
+		}
+		assertThat(condition.holds()).isTrue();
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+}
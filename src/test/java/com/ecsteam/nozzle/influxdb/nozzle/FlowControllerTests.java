@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlowControllerTests {
+
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final BufferPool pool = new BufferPool(2, 256, 4096);
+
+	@Test
+	public void growsAdditivelyAndHalvesOnSlowWrites() {
+		properties.setAdaptive(true);
+		properties.setTargetLatency(100L);
+		properties.setBatchSize(100);
+		properties.setMinBatchSize(10);
+		properties.setMaxInFlight(8);
+		FlowController flow = new FlowController(properties);
+		FlowController.Node node = flow.node(null);
+
+		assertThat(node.getBatchSize()).isEqualTo(100);
+		assertThat(metric(flow, "nozzle.flow.default.concurrency")).isEqualTo(1);
+
+		// one more in flight for every round of fast writes at the current concurrency
+		node.written(FAST);
+		assertThat(metric(flow, "nozzle.flow.default.concurrency")).isEqualTo(2);
+		node.written(FAST);
+		node.written(FAST);
+		assertThat(metric(flow, "nozzle.flow.default.concurrency")).isEqualTo(3);
+		assertThat(node.getBatchSize()).isEqualTo(130);
+
+		node.written(SLOW);
+		assertThat(node.getBatchSize()).isEqualTo(65);
+		assertThat(metric(flow, "nozzle.flow.default.concurrency")).isEqualTo(1);
+
+		// the responses to batches already in flight only count once
+		node.overloaded(503, 0L);
+		assertThat(node.getBatchSize()).isEqualTo(65);
+	}
+
+	@Test
+	public void givesLanesTheirShareOfTheInFlightBudget() throws Exception {
+		properties.setMaxInFlight(10);
+		FlowController flow = new FlowController(properties);
+		FlowController.Node node = flow.node(null, null, PriorityLane.parse("critical/30:origin=gorouter"));
+
+		for (int i = 0; i < 3; ++i) {
+			node.acquire(batch(1));
+		}
+
+		CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiting = new Thread(() -> {
+			node.acquire(batch(1));
+			acquired.countDown();
+		});
+		waiting.start();
+
+		assertThat(acquired.await(200L, TimeUnit.MILLISECONDS)).isFalse();
+		node.release();
+		assertThat(acquired.await(1L, TimeUnit.SECONDS)).isTrue();
+		assertThat(metric(flow, "nozzle.flow.default.critical.in-flight")).isEqualTo(3);
+	}
+
+	@Test
+	public void holdsBackWritesUntilRetryAfter() {
+		FlowController flow = new FlowController(properties);
+		FlowController.Node node = flow.node(null);
+
+		node.overloaded(429, 300L);
+		assertThat(node.remainingPause()).isBetween(1L, 300L);
+
+		long start = System.nanoTime();
+		node.acquire(batch(1));
+		assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(250));
+		assertThat(metric(flow, "nozzle.flow.overloads")).isEqualTo(1);
+	}
+
+	@Test
+	public void parsesRetryAfter() {
+		assertThat(FlowController.retryAfter("2")).isEqualTo(2000L);
+		assertThat(FlowController.retryAfter(" ")).isZero();
+		assertThat(FlowController.retryAfter("soon")).isZero();
+		assertThat(FlowController.retryAfter(DateTimeFormatter.RFC_1123_DATE_TIME
+				.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30)))).isBetween(28_000L, 30_000L);
+	}
+
+	@Test
+	public void spacesWritesOutUnderThePointsCap() {
+		properties.setMaxPointsPerSecond(1000L);
+		FlowController flow = new FlowController(properties);
+		FlowController.Node node = flow.node(null);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; ++i) {
+			node.acquire(batch(100));
+			node.release();
+		}
+
+		// the first batch goes straight away, each of the others 100 ms after the one before
+		assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(390));
+		assertThat(metric(flow, "nozzle.flow.throttled-ms")).isGreaterThan(0);
+	}
+
+	private Batch batch(int points) {
+		Batch batch = new Batch(pool);
+		batch.pointsAdded(points);
+		return batch;
+	}
+
+	private static long metric(FlowController flow, String name) {
+		for (Metric<?> metric : flow.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue().longValue();
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+}
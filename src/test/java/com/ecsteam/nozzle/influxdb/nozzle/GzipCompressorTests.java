@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GzipCompressorTests {
+
+	private final GzipCompressor compressor = new GzipCompressor(new NozzleProperties(), new CompressionMetrics());
+
+	@After
+	public void close() {
+		compressor.close();
+	}
+
+	@Test
+	public void roundTripsThroughGzipInputStream() throws IOException {
+		String lines = lines(0, 1000);
+		assertThat(gunzip(compress(lines))).isEqualTo(lines);
+	}
+
+	@Test
+	public void resetsPooledDeflatersBetweenBatches() throws IOException {
+		// the same deflater is used for each, one after the other
+		String large = lines(0, 1000);
+		String small = lines(7, 3);
+
+		assertThat(gunzip(compress(large))).isEqualTo(large);
+		assertThat(gunzip(compress(small))).isEqualTo(small);
+		assertThat(gunzip(compress(""))).isEmpty();
+		assertThat(gunzip(compress(large))).isEqualTo(large);
+	}
+
+	@Test
+	public void compressesFromManyThreads() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < 200; ++i) {
+				String lines = lines(i, 1 + i * 7 % 300);
+				results.add(executor.submit(() -> gunzip(compress(lines)).equals(lines)));
+			}
+
+			for (Future<Boolean> result : results) {
+				assertThat(result.get()).isTrue();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private byte[] compress(String lines) {
+		LineProtocolBuffer in = new LineProtocolBuffer(64);
+		in.write(lines.getBytes(StandardCharsets.UTF_8));
+
+		LineProtocolBuffer out = new LineProtocolBuffer(16);
+		compressor.compress(in, out);
+
+		byte[] gzipped = new byte[out.length()];
+		System.arraycopy(out.array(), 0, gzipped, 0, gzipped.length);
+		return gzipped;
+	}
+
+	private static String gunzip(byte[] gzipped) throws IOException {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+			return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static String lines(int seed, int count) {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < count; ++i) {
+			lines.append("cpu,host=cell-").append((seed + i) % 17).append(" value=").append(seed * 31 + i)
+					.append(' ').append(1490000000000000000L + i).append('\n');
+		}
+		return lines.toString();
+	}
+}
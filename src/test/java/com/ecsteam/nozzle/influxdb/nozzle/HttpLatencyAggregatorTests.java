@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.HttpStartStop;
+import org.cloudfoundry.doppler.Method;
+import org.cloudfoundry.doppler.PeerType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpLatencyAggregatorTests {
+	private static final long START = 1490000000000000000L;
+	private static final long WINDOW = TimeUnit.SECONDS.toNanos(10);
+	private static final UUID APP = new UUID(1L, 2L);
+
+	private final LineProtocolEncoder encoder = new LineProtocolEncoder(null,
+			new SeriesKeyCache(16, new SeriesKeyCacheMetrics()));
+	private final HttpLatencyAggregator aggregator = new HttpLatencyAggregator(encoder, 10_000L);
+	private final LineProtocolBuffer buffer = new LineProtocolBuffer(64);
+
+	@Test
+	public void writesCountMaxAndPercentilesOncePerWindow() {
+		for (int millis = 1; millis <= 100; ++millis) {
+			assertThat(aggregator.aggregate(request(APP, null, START + millis, millis, 200), buffer)).isZero();
+		}
+		assertThat(buffer.length()).isZero();
+
+		// the first request of the next window writes the one before
+		assertThat(aggregator.aggregate(request(APP, null, START + WINDOW, 3, 204), buffer)).isEqualTo(1);
+		assertThat(encoded()).isEqualTo("http_latency,app_id=" + APP + ",method=GET,peerType=CLIENT,status=2xx "
+				+ "count=100i,max=100,p50=50.175,p90=90.111,p99=100 " + START + "\n");
+
+		// the histogram starts over for the new window
+		buffer.reset();
+		assertThat(aggregator.flush(START + WINDOW, true, buffer)).isEqualTo(1);
+		assertThat(encoded()).endsWith(" count=1i,max=3,p50=3,p90=3,p99=3 " + (START + WINDOW) + "\n");
+	}
+
+	@Test
+	public void keepsAHistogramPerStatusClassAndRoute() {
+		aggregator.aggregate(request(APP, null, START, 10, 200), buffer);
+		aggregator.aggregate(request(APP, null, START, 20, 503), buffer);
+		aggregator.aggregate(request(null, "https://orders.example.com:443/orders/7?x=1", START, 30, 200), buffer);
+		aggregator.aggregate(request(null, "orders.example.com/orders/8", START, 40, 200), buffer);
+
+		assertThat(aggregator.size()).isEqualTo(3);
+		assertThat(aggregator.flush(START, true, buffer)).isEqualTo(3);
+		assertThat(encoded()).contains(",status=5xx count=1i,max=20,")
+				.contains("http_latency,method=GET,peerType=CLIENT,route=orders.example.com,status=2xx "
+						+ "count=2i,max=40,");
+	}
+
+	@Test
+	public void writesClosedWindowsAfterTheGracePeriod() {
+		aggregator.aggregate(request(APP, null, START, 10, 200), buffer);
+
+		assertThat(aggregator.flush(START + WINDOW, false, buffer)).isZero();
+		assertThat(aggregator.flush(START + WINDOW + TimeUnit.SECONDS.toNanos(1), false, buffer)).isEqualTo(1);
+		assertThat(aggregator.flush(START + 2 * WINDOW, false, buffer)).isZero();
+
+		// and forgets histograms that went quiet
+		assertThat(aggregator.flush(START + 20 * WINDOW, false, buffer)).isZero();
+		assertThat(aggregator.size()).isZero();
+	}
+
+	@Test
+	public void leavesOtherEnvelopesAlone() {
+		Envelope metric = Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.timestamp(START)
+				.valueMetric(ValueMetric.builder().name("cpu").unit("").value(1.0).build())
+				.build();
+
+		assertThat(aggregator.aggregate(metric, buffer)).isEqualTo(-1);
+		assertThat(aggregator.size()).isZero();
+	}
+
+	@Test
+	public void routesOfUris() {
+		assertThat(HttpLatencyAggregator.routeOf("http://a.example.com/x")).isEqualTo("a.example.com");
+		assertThat(HttpLatencyAggregator.routeOf("a.example.com:8080")).isEqualTo("a.example.com");
+		assertThat(HttpLatencyAggregator.routeOf("/health")).isNull();
+		assertThat(HttpLatencyAggregator.routeOf(null)).isNull();
+	}
+
+	private static Envelope request(UUID application, String uri, long timestamp, long millis, int status) {
+		return Envelope.builder()
+				.eventType(EventType.HTTP_START_STOP)
+				.origin("gorouter")
+				.timestamp(timestamp)
+				.httpStartStop(HttpStartStop.builder()
+						.startTimestamp(timestamp - TimeUnit.MILLISECONDS.toNanos(millis))
+						.stopTimestamp(timestamp)
+						.requestId(new UUID(timestamp, millis))
+						.peerType(PeerType.CLIENT)
+						.method(Method.GET)
+						.uri(uri == null ? "https://orders.example.com/orders" : uri)
+						.remoteAddress("10.1.2.3:54321")
+						.userAgent("curl")
+						.statusCode(status)
+						.contentLength(0L)
+						.applicationId(application)
+						.build())
+				.build();
+	}
+
+	private String encoded() {
+		return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+	}
+}
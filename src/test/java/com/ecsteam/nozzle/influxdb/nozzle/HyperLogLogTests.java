@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class HyperLogLogTests {
+
+	@Test
+	public void countsSmallSetsExactlyEnough() {
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < 100; ++i) {
+			sketch.offer("cell-" + i);
+			sketch.offer("cell-" + i);
+		}
+
+		assertThat(sketch.cardinality()).isCloseTo(100L, within(3L));
+	}
+
+	@Test
+	public void estimatesLargeSetsWithinAFewStandardErrors() {
+		// 1.04 / sqrt(1024) is about 3%
+		for (int distinct : new int[] { 10_000, 1_000_000 }) {
+			HyperLogLog sketch = new HyperLogLog();
+			for (int i = 0; i < distinct; ++i) {
+				sketch.offer(new UUID(i, distinct).toString());
+			}
+
+			assertThat((double) sketch.cardinality()).as("%d distinct values", distinct)
+					.isCloseTo(distinct, within(distinct * 0.1));
+		}
+	}
+
+	@Test
+	public void ignoresRepeatedValues() {
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < 100_000; ++i) {
+			sketch.offer("instance-" + i % 10);
+		}
+
+		assertThat(sketch.cardinality()).isEqualTo(10L);
+	}
+}
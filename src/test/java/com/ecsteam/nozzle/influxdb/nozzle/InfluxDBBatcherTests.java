@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InfluxDBBatcherTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final PipelineMetrics pipelineMetrics = new PipelineMetrics();
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void dropsTheNewestEnvelopesWhenFull() {
+		InfluxDBBatcher batcher = batcher(OverloadPolicy.drop_newest);
+
+		for (int i = 0; i < 6; ++i) {
+			assertThat(batcher.add(metric(i))).isEqualTo(i < 4);
+		}
+
+		assertThat(drain(batcher)).containsExactly(0, 1, 2, 3);
+		assertThat(metric("nozzle.pipeline.dropped")).isEqualTo(2L);
+	}
+
+	@Test
+	public void dropsTheOldestEnvelopesWhenFull() {
+		InfluxDBBatcher batcher = batcher(OverloadPolicy.drop_oldest);
+
+		for (int i = 0; i < 6; ++i) {
+			assertThat(batcher.add(metric(i))).isTrue();
+		}
+
+		assertThat(drain(batcher)).containsExactly(2, 3, 4, 5);
+		assertThat(metric("nozzle.pipeline.dropped")).isEqualTo(2L);
+	}
+
+	@Test
+	public void waitsForRoomWhenFull() throws Exception {
+		InfluxDBBatcher batcher = batcher(OverloadPolicy.block);
+		for (int i = 0; i < 4; ++i) {
+			batcher.add(metric(i));
+		}
+
+		CompletableFuture<Boolean> added = CompletableFuture.supplyAsync(() -> batcher.add(metric(4)));
+		Thread.sleep(100L);
+		assertThat(added.isDone()).isFalse();
+
+		batcher.start("batcher-test");
+		assertThat(added.get(5, TimeUnit.SECONDS)).isTrue();
+		batcher.stop();
+
+		assertThat(values()).containsExactly(0, 1, 2, 3, 4);
+		assertThat(metric("nozzle.pipeline.dropped")).isZero();
+	}
+
+	@Test
+	public void givesUpWaitingAfterTheBlockTimeout() {
+		properties.setOverloadBlockTimeout(50L);
+		InfluxDBBatcher batcher = batcher(OverloadPolicy.block);
+		for (int i = 0; i < 4; ++i) {
+			batcher.add(metric(i));
+		}
+
+		long started = System.nanoTime();
+		assertThat(batcher.add(metric(4))).isFalse();
+		assertThat(System.nanoTime() - started).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+
+		assertThat(drain(batcher)).containsExactly(0, 1, 2, 3);
+		assertThat(metric("nozzle.pipeline.dropped")).isEqualTo(1L);
+	}
+
+	private InfluxDBBatcher batcher(OverloadPolicy policy) {
+		properties.setBufferSize(4);
+		properties.setOverloadPolicy(policy);
+		properties.setMaxLinger(10L);
+
+		InfluxDBSender sender = batch -> {
+			sent.add(new String(batch.getBuffer().array(), 0, batch.getBytes(), StandardCharsets.UTF_8));
+			return CompletableFuture.completedFuture(true);
+		};
+
+		return new InfluxDBBatcher(properties, sender, null, null, new SeriesKeyCacheMetrics(), pipelineMetrics,
+				new FlowController(properties), null, null, null, properties.getSeriesCacheSize());
+	}
+
+	/**
+	 * Batch whatever is buffered and return the values written
+	 */
+	private List<Integer> drain(InfluxDBBatcher batcher) {
+		batcher.start("batcher-test");
+		batcher.stop();
+		return values();
+	}
+
+	private List<Integer> values() {
+		List<Integer> values = new ArrayList<>();
+		for (String body : sent) {
+			for (String line : body.split("\n")) {
+				String value = line.substring(line.indexOf(" value=") + 7, line.lastIndexOf(' '));
+				values.add(Integer.valueOf(value));
+			}
+		}
+		return values;
+	}
+
+	private long metric(String name) {
+		for (Metric<?> metric : pipelineMetrics.metrics()) {
+			if (metric.getName().equals(name)) {
+				return metric.getValue().longValue();
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	private static Envelope metric(int value) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.timestamp(1490000000000000000L + value)
+				.valueMetric(ValueMetric.builder().name("ContainerCount").value((double) value).unit("count").build())
+				.build();
+	}
+}
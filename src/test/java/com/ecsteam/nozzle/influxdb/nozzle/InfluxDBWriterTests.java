@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InfluxDBWriterTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+
+	@Test
+	public void hashesTheSameSeriesTheSame() {
+		assertThat(InfluxDBWriter.seriesHash(metric("rep", "cell-1", "ContainerCount", 1), false))
+				.isEqualTo(InfluxDBWriter.seriesHash(metric("rep", "cell-1", "ContainerCount", 2), false));
+		assertThat(InfluxDBWriter.seriesHash(metric("rep", "cell-1", "ContainerCount", 1), false))
+				.isNotEqualTo(InfluxDBWriter.seriesHash(metric("rep", "cell-2", "ContainerCount", 1), false));
+
+		// without the name, every metric of an emitter hashes the same
+		assertThat(InfluxDBWriter.seriesHash(metric("rep", "cell-1", "ContainerCount", 1), true))
+				.isEqualTo(InfluxDBWriter.seriesHash(metric("rep", "cell-1", "CapacityTotalDisk", 1), true));
+	}
+
+	@Test
+	public void keepsEachSeriesOnOneShardInOrder() {
+		properties.setShards(4);
+		properties.setBatchSize(7);
+		properties.setMaxLinger(10L);
+
+		// the line protocol of every batch, with the name of the batching thread that sent it
+		List<String[]> sent = new CopyOnWriteArrayList<>();
+		InfluxDBSender sender = batch -> {
+			sent.add(new String[] { Thread.currentThread().getName(),
+					new String(batch.getBuffer().array(), 0, batch.getBytes(), StandardCharsets.UTF_8) });
+			return CompletableFuture.completedFuture(true);
+		};
+
+		InfluxDBWriter writer = new InfluxDBWriter(properties, () -> "http://influx:8086", sender, null,
+				new MetricFilter(properties), new TagCardinalityGuard(properties), new SeriesKeyCacheMetrics(),
+				new PipelineMetrics(), new FlowController(properties), new DatabaseRouter(properties),
+				new PriorityLanes(properties));
+
+		for (int value = 0; value < 20; ++value) {
+			for (int cell = 0; cell < 50; ++cell) {
+				assertThat(writer.writeMessage(metric("rep", "cell-" + cell, "ContainerCount", value))).isTrue();
+			}
+		}
+		writer.close();
+
+		Map<String, String> shardOf = new HashMap<>();
+		Map<String, List<Integer>> values = new HashMap<>();
+		for (String[] batch : sent) {
+			for (String line : batch[1].split("\n")) {
+				String series = line.substring(0, line.indexOf(' '));
+				assertThat(shardOf.computeIfAbsent(series, s -> batch[0])).as(series).isEqualTo(batch[0]);
+
+				int value = Integer.parseInt(line.substring(line.indexOf("value=") + 6, line.lastIndexOf(' ')));
+				values.computeIfAbsent(series, s -> new ArrayList<>()).add(value);
+			}
+		}
+
+		assertThat(values).hasSize(50);
+		for (List<Integer> series : values.values()) {
+			assertThat(series).hasSize(20).isSorted();
+		}
+
+		Set<String> shards = new HashSet<>(shardOf.values());
+		assertThat(shards.size()).isGreaterThan(1);
+	}
+
+	private static Envelope metric(String origin, String job, String name, int value) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin(origin)
+				.job(job)
+				.index("0")
+				.timestamp(1490000000000000000L + value)
+				.valueMetric(ValueMetric.builder().name(name).value((double) value).unit("count").build())
+				.build();
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTests {
+
+	@Test
+	public void keepsSmallValuesExactly() {
+		for (long value = 0; value < 64; ++value) {
+			assertThat(LatencyHistogram.indexOf(value)).isEqualTo((int) value);
+			assertThat(LatencyHistogram.highestValueAt((int) value)).isEqualTo(value);
+		}
+	}
+
+	@Test
+	public void reportsEveryValueWithinThreePercent() {
+		int previous = -1;
+		for (long value = 1; value < (1L << 33); value += 1 + value / 37) {
+			int index = LatencyHistogram.indexOf(value);
+			long highest = LatencyHistogram.highestValueAt(index);
+
+			assertThat(index).as("index of %d", value).isGreaterThanOrEqualTo(previous);
+			assertThat(highest).as("bucket of %d", value).isBetween(value, value + value / 32);
+			previous = index;
+		}
+
+		// the first value of each bucket is one past the highest of the bucket before
+		for (int index = 1; index < LatencyHistogram.indexOf(1L << 32); ++index) {
+			assertThat(LatencyHistogram.indexOf(LatencyHistogram.highestValueAt(index - 1) + 1)).isEqualTo(index);
+		}
+	}
+
+	@Test
+	public void putsHugeValuesInTheTopBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(-5L);
+
+		assertThat(LatencyHistogram.indexOf(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.indexOf(1L << 40));
+		assertThat(histogram.getMax()).isEqualTo(Long.MAX_VALUE);
+		assertThat(histogram.valueAtPercentile(50)).isZero();
+		// everything in the top bucket reads as its upper end, 2^33 microseconds
+		assertThat(histogram.valueAtPercentile(100)).isEqualTo((1L << 33) - 1);
+	}
+
+	@Test
+	public void extractsPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long millis = 100; millis >= 1; --millis) {
+			histogram.record(millis * 1000);
+		}
+
+		assertThat(histogram.getCount()).isEqualTo(100L);
+		assertThat(histogram.getMax()).isEqualTo(100_000L);
+		// 50 ms is in the bucket of 49152 to 50175 microseconds
+		assertThat(histogram.valueAtPercentile(50)).isEqualTo(50_175L);
+		assertThat(histogram.valueAtPercentile(90)).isEqualTo(90_111L);
+		// the bucket of 99 ms reaches past the max, which caps it
+		assertThat(histogram.valueAtPercentile(99)).isEqualTo(100_000L);
+		assertThat(histogram.valueAtPercentile(0)).isEqualTo(1_007L);
+	}
+
+	@Test
+	public void startsOverAfterAReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5_000_000L);
+		histogram.reset();
+
+		assertThat(histogram.getCount()).isZero();
+		assertThat(histogram.getMax()).isZero();
+		assertThat(histogram.valueAtPercentile(99)).isZero();
+
+		histogram.record(7L);
+		assertThat(histogram.valueAtPercentile(99)).isEqualTo(7L);
+	}
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineProtocolEncoderTests {
+
+	private final SeriesKeyCache seriesKeys = new SeriesKeyCache(16, new SeriesKeyCacheMetrics());
+	private final LineProtocolEncoder encoder = new LineProtocolEncoder("my foundation", seriesKeys);
+	private final LineProtocolBuffer buffer = new LineProtocolBuffer(64);
+
+	@Test
+	public void escapesMeasurementsAndTags() {
+		Envelope envelope = Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.job("diego cell")
+				.timestamp(1000L)
+				.tags(Collections.singletonMap("a=b", "c,d"))
+				.valueMetric(ValueMetric.builder().name("memory, used").unit("MiB").value(0.25).build())
+				.build();
+
+		assertThat(encoder.encode(envelope, buffer)).isTrue();
+		assertThat(encoded()).isEqualTo("memory\\,\\ used,a\\=b=c\\,d,eventType=ValueMetric,"
+				+ "foundation=my\\ foundation,job=diego\\ cell,origin=rep,unit=MiB value=0.25 1000\n");
+	}
+
+	@Test
+	public void writesCounterTotals() {
+		Envelope envelope = Envelope.builder()
+				.eventType(EventType.COUNTER_EVENT)
+				.origin("gorouter")
+				.timestamp(2000L)
+				.counterEvent(CounterEvent.builder().name("requests").delta(5L).total(42L).build())
+				.build();
+
+		assertThat(encoder.encode(envelope, buffer)).isTrue();
+		assertThat(encoded()).isEqualTo("requests,eventType=CounterEvent,foundation=my\\ foundation,"
+				+ "origin=gorouter delta=5i,total=42i 2000\n");
+	}
+
+	@Test
+	public void skipsUnchangedCountersUntilTheHeartbeat() {
+		LineProtocolEncoder suppressing = new LineProtocolEncoder(null, seriesKeys, new CounterState(100L), null);
+
+		assertThat(suppressing.encode(counter(1000L, 42L), buffer)).isTrue();
+		assertThat(suppressing.encode(counter(1050L, 42L), buffer)).isFalse();
+		assertThat(suppressing.encode(counter(1060L, 43L), buffer)).isTrue();
+		assertThat(suppressing.encode(counter(1160L, 43L), buffer)).isTrue();
+		assertThat(encoded()).isEqualTo("requests,eventType=CounterEvent,origin=gorouter delta=1i,total=42i 1000\n"
+				+ "requests,eventType=CounterEvent,origin=gorouter delta=1i,total=43i 1060\n"
+				+ "requests,eventType=CounterEvent,origin=gorouter delta=1i,total=43i 1160\n");
+	}
+
+	@Test
+	public void reusesCachedSeriesPrefix() {
+		for (long timestamp = 1; timestamp <= 3; ++timestamp) {
+			encoder.encode(Envelope.builder()
+					.eventType(EventType.VALUE_METRIC)
+					.origin("rep")
+					.timestamp(timestamp)
+					.valueMetric(ValueMetric.builder().name("cpu").unit("percent").value((double) timestamp).build())
+					.build(), buffer);
+		}
+
+		assertThat(seriesKeys.size()).isEqualTo(1);
+		String prefix = "cpu,eventType=ValueMetric,foundation=my\\ foundation,origin=rep,unit=percent";
+		assertThat(encoded()).isEqualTo(prefix + " value=1 1\n" + prefix + " value=2 2\n" + prefix + " value=3 3\n");
+	}
+
+	@Test
+	public void skipsValuesLineProtocolCannotRepresent() {
+		Envelope envelope = Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.timestamp(1000L)
+				.valueMetric(ValueMetric.builder().name("ratio").unit("").value(Double.NaN).build())
+				.build();
+
+		assertThat(encoder.encode(envelope, buffer)).isFalse();
+		assertThat(buffer.length()).isZero();
+	}
+
+	@Test
+	public void writesShortestRoundTripDoubles() {
+		for (double value : new double[]{0.1, -2.25, 3.0, 123456.789, 0.30000000000000004, 1e-7, 1e20}) {
+			buffer.reset();
+			encoder.writeDouble(value, buffer);
+			assertThat(Double.parseDouble(encoded())).isEqualTo(value);
+		}
+
+		buffer.reset();
+		encoder.writeDouble(0.1, buffer);
+		assertThat(encoded()).isEqualTo("0.1");
+
+		buffer.reset();
+		encoder.writeDouble(12.345678901234567, buffer);
+		assertThat(encoded()).isEqualTo("12.345678901234567");
+	}
+
+	@Test
+	public void writesIntegerMetricsAndTruncatesTimestamps() {
+		LineProtocolEncoder integers = new LineProtocolEncoder(null, seriesKeys, null, null, Precision.ms,
+				Collections.singletonList("memory*"));
+
+		for (String name : new String[]{"memoryBytes", "cpu"}) {
+			integers.encode(Envelope.builder()
+					.eventType(EventType.VALUE_METRIC)
+					.origin("rep")
+					.timestamp(1234567890L)
+					.valueMetric(ValueMetric.builder().name(name).unit("").value(2.5).build())
+					.build(), buffer);
+		}
+
+		assertThat(encoded()).isEqualTo("memoryBytes,eventType=ValueMetric,origin=rep value=3i 1234\n"
+				+ "cpu,eventType=ValueMetric,origin=rep value=2.5 1234\n");
+	}
+
+	private String encoded() {
+		return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+	}
+
+	private static Envelope counter(long timestamp, long total) {
+		return Envelope.builder()
+				.eventType(EventType.COUNTER_EVENT)
+				.origin("gorouter")
+				.timestamp(timestamp)
+				.counterEvent(CounterEvent.builder().name("requests").delta(1L).total(total).build())
+				.build();
+	}
+}
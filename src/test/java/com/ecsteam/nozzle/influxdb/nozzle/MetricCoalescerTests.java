@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricCoalescerTests {
+	private static final long START = 1490000000000000000L;
+	private static final long BUCKET = 1_000_000_000L;
+
+	private final LineProtocolBuffer buffer = new LineProtocolBuffer(64);
+
+	@Test
+	public void writesMetricsOfOneBucketAsOnePoint() {
+		MetricCoalescer coalescer = coalescer(null);
+
+		assertThat(coalescer.coalesce(metric("rep", "CapacityTotalMemory", START, 1024, null), buffer)).isZero();
+		assertThat(coalescer.coalesce(metric("rep", "CapacityTotalDisk", START + 5, 2048, null), buffer)).isZero();
+		assertThat(coalescer.coalesce(metric("rep", "ContainerCount", START + 10, 7, null), buffer)).isZero();
+		assertThat(buffer.length()).isZero();
+
+		// the next bucket writes the first
+		assertThat(coalescer.coalesce(metric("rep", "ContainerCount", START + BUCKET, 8, null), buffer))
+				.isEqualTo(1);
+		assertThat(encoded()).isEqualTo("rep,eventType=ValueMetric,origin=rep "
+				+ "CapacityTotalMemory=1024,CapacityTotalDisk=2048,ContainerCount=7 " + START + "\n");
+	}
+
+	@Test
+	public void writesEarlyWhenAMetricRepeatsInABucket() {
+		MetricCoalescer coalescer = coalescer(null);
+
+		coalescer.coalesce(metric("rep", "ContainerCount", START, 7, null), buffer);
+		assertThat(coalescer.coalesce(metric("rep", "ContainerCount", START + 1, 8, null), buffer)).isEqualTo(1);
+		assertThat(coalescer.flush(START, true, buffer)).isEqualTo(1);
+
+		assertThat(encoded()).isEqualTo("rep,eventType=ValueMetric,origin=rep ContainerCount=7 " + START + "\n"
+				+ "rep,eventType=ValueMetric,origin=rep ContainerCount=8 " + START + "\n");
+	}
+
+	@Test
+	public void keepsAGroupPerTagSet() {
+		MetricCoalescer coalescer = coalescer(null);
+
+		coalescer.coalesce(metric("rep", "ContainerCount", START, 7, null), buffer);
+		coalescer.coalesce(metric("bbs", "ContainerCount", START, 9, null), buffer);
+		coalescer.coalesce(metric("rep", "ContainerCount", START, 7, "instance-0"), buffer);
+
+		assertThat(coalescer.size()).isEqualTo(3);
+		assertThat(coalescer.flush(START, true, buffer)).isEqualTo(3);
+	}
+
+	@Test
+	public void writesEndedBucketsAndForgetsIdleGroups() {
+		MetricCoalescer coalescer = coalescer(null);
+		coalescer.coalesce(metric("rep", "ContainerCount", START, 7, null), buffer);
+
+		assertThat(coalescer.flush(START + BUCKET, false, buffer)).isZero();
+		assertThat(coalescer.flush(START + 2 * BUCKET, false, buffer)).isEqualTo(1);
+		assertThat(coalescer.size()).isEqualTo(1);
+
+		assertThat(coalescer.flush(START + 20 * BUCKET, false, buffer)).isZero();
+		assertThat(coalescer.size()).isZero();
+	}
+
+	@Test
+	public void leavesOtherEnvelopesAlone() {
+		Envelope counter = Envelope.builder()
+				.eventType(EventType.COUNTER_EVENT)
+				.origin("rep")
+				.timestamp(START)
+				.counterEvent(CounterEvent.builder().name("requests").delta(1L).total(10L).build())
+				.build();
+
+		assertThat(coalescer(null).coalesce(counter, buffer)).isEqualTo(-1);
+	}
+
+	@Test
+	public void rebuildsGroupsOnceATagTripsTheGuard() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setTagCardinalityLimit(100);
+		properties.setTagCardinalityAction(TagCardinalityAction.strip);
+		TagCardinalityGuard guard = new TagCardinalityGuard(properties);
+		MetricCoalescer coalescer = coalescer(guard);
+
+		coalescer.coalesce(metric("rep", "ContainerCount", START, 7, "instance-0"), buffer);
+		for (int i = 1; guard.getGeneration() == 0 && i < 10_000; ++i) {
+			coalescer.coalesce(metric("rep", "ContainerCount", START, 7, "instance-" + i), buffer);
+		}
+		assertThat(guard.getGeneration()).isEqualTo(1);
+
+		// the groups collected under raw values are written out once, then encoded again without the tag
+		assertThat(coalescer.coalesce(metric("rep", "ContainerCount", START + BUCKET, 8, "instance-0"), buffer))
+				.isBetween(90, 110);
+		assertThat(coalescer.size()).isEqualTo(1);
+
+		buffer.reset();
+		coalescer.flush(START + BUCKET, true, buffer);
+		assertThat(encoded()).isEqualTo("rep,eventType=ValueMetric,origin=rep ContainerCount=8 "
+				+ (START + BUCKET) + "\n");
+	}
+
+	private static MetricCoalescer coalescer(TagCardinalityGuard guard) {
+		LineProtocolEncoder encoder = new LineProtocolEncoder(null,
+				new SeriesKeyCache(16, new SeriesKeyCacheMetrics()), null, guard);
+		return new MetricCoalescer(encoder, 1000L, "{origin}");
+	}
+
+	private static Envelope metric(String origin, String name, long timestamp, double value, String instance) {
+		Map<String, String> tags = instance == null ? Collections.emptyMap()
+				: Collections.singletonMap("instance", instance);
+
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin(origin)
+				.timestamp(timestamp)
+				.tags(tags)
+				.valueMetric(ValueMetric.builder().name(name).unit("count").value(value).build())
+				.build();
+	}
+
+	private String encoded() {
+		return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.CounterEvent;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricFilterTests {
+
+	@Test
+	public void matchesExactPrefixGlobAndRegexPatterns() {
+		MetricFilter filter = filter(true,
+				"exclude:name=numCPUS",
+				"exclude:name=memoryStats.*",
+				"exclude:name=*.latency.*",
+				"exclude:name=~requests\\.[0-9]xx");
+
+		assertThat(filter.accept(metric("rep", "numCPUS"))).isFalse();
+		assertThat(filter.accept(metric("rep", "numCPUSx"))).isTrue();
+		assertThat(filter.accept(metric("rep", "memoryStats.numFrees"))).isFalse();
+		assertThat(filter.accept(metric("rep", "memory"))).isTrue();
+		assertThat(filter.accept(metric("gorouter", "route.latency.p99"))).isFalse();
+		assertThat(filter.accept(metric("gorouter", "requests.5xx"))).isFalse();
+		assertThat(filter.accept(metric("gorouter", "requests.5xxx"))).isTrue();
+	}
+
+	@Test
+	public void firstMatchingRuleDecides() {
+		MetricFilter filter = filter(false,
+				"include:origin=gorouter&name=total_requests",
+				"exclude:origin=gorouter",
+				"include:name=*");
+
+		assertThat(filter.accept(metric("gorouter", "total_requests"))).isTrue();
+		assertThat(filter.accept(metric("gorouter", "total_routes"))).isFalse();
+		assertThat(filter.accept(metric("rep", "total_routes"))).isTrue();
+
+		// the same pair again comes from the cached decision
+		assertThat(filter.accept(metric("gorouter", "total_routes"))).isFalse();
+		assertThat(metric(filter, "nozzle.filter.rules.1.hits")).isEqualTo(2L);
+		assertThat(metric(filter, "nozzle.filter.cached-decisions")).isEqualTo(3L);
+	}
+
+	@Test
+	public void checksJobDeploymentAndTagConditions() {
+		MetricFilter filter = filter(true,
+				"exclude:name=cpu&job=diego_cell&tag.zone=z1",
+				"exclude:deployment=cf-*&name=disk");
+
+		assertThat(filter.accept(tagged("cpu", "diego_cell", "cf", "z1"))).isFalse();
+		assertThat(filter.accept(tagged("cpu", "diego_cell", "cf", "z2"))).isTrue();
+		assertThat(filter.accept(tagged("cpu", "router", "cf", "z1"))).isTrue();
+		assertThat(filter.accept(tagged("disk", "router", "cf-abc", "z1"))).isFalse();
+		assertThat(filter.accept(tagged("disk", "router", "concourse", "z1"))).isTrue();
+	}
+
+	@Test
+	public void treatsMissingFieldsAsEmpty() {
+		MetricFilter filter = filter(true,
+				"exclude:tag.zone=",
+				"exclude:job=&deployment=&name=orphan");
+
+		assertThat(filter.accept(metric("rep", "cpu"))).isFalse();
+		assertThat(filter.accept(Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("rep")
+				.tags(Collections.singletonMap("zone", "z1"))
+				.valueMetric(ValueMetric.builder().name("orphan").unit("").value(1.0).build())
+				.build())).isFalse();
+		assertThat(filter.accept(Envelope.builder()
+				.eventType(EventType.COUNTER_EVENT)
+				.origin("rep")
+				.job("diego_cell")
+				.tags(Collections.singletonMap("zone", "z1"))
+				.counterEvent(CounterEvent.builder().name("orphan").delta(1L).total(1L).build())
+				.build())).isTrue();
+	}
+
+	@Test
+	public void usesTheDefaultWhenNoRuleMatches() {
+		assertThat(filter(true, "exclude:origin=rep").accept(metric("gorouter", "cpu"))).isTrue();
+		assertThat(filter(false, "include:origin=rep").accept(metric("gorouter", "cpu"))).isFalse();
+		assertThat(filter(false).accept(metric("gorouter", "cpu"))).isTrue();
+	}
+
+	@Test
+	public void ignoresSpacesAroundConditions() {
+		MetricFilter filter = filter(true, " exclude: name = numCPUS & origin = rep ");
+
+		assertThat(filter.accept(metric("rep", "numCPUS"))).isFalse();
+		assertThat(filter.accept(metric("gorouter", "numCPUS"))).isTrue();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownFields() {
+		filter(true, "exclude:index=0");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownActions() {
+		filter(true, "drop:name=cpu");
+	}
+
+	private static MetricFilter filter(boolean includeUnmatched, String... rules) {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setFilters(Arrays.asList(rules));
+		properties.setFilterIncludeUnmatched(includeUnmatched);
+		return new MetricFilter(properties);
+	}
+
+	private static Envelope metric(String origin, String name) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin(origin)
+				.valueMetric(ValueMetric.builder().name(name).unit("").value(1.0).build())
+				.build();
+	}
+
+	private static Envelope tagged(String name, String job, String deployment, String zone) {
+		Map<String, String> tags = Collections.singletonMap("zone", zone);
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin("bosh-system-metrics-forwarder")
+				.job(job)
+				.deployment(deployment)
+				.tags(tags)
+				.valueMetric(ValueMetric.builder().name(name).unit("").value(1.0).build())
+				.build();
+	}
+
+	private static long metric(MetricFilter filter, String name) {
+		return filter.metrics().stream()
+				.filter(metric -> metric.getName().equals(name))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(name))
+				.getValue()
+				.longValue();
+	}
+}
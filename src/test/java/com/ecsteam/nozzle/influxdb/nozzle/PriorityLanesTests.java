@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PriorityLanesTests {
+
+	@Test
+	public void fallsBackToTheDefaultLaneWhereverItIsListed() {
+		PriorityLanes lanes = lanes("critical:origin=gorouter", "default", "bulk:origin=rep");
+
+		assertThat(lanes.laneOf(metric("gorouter", "latency"))).isEqualTo(0);
+		assertThat(lanes.laneOf(metric("bbs", "latency"))).isEqualTo(1);
+		assertThat(lanes.laneOf(metric("rep", "ContainerCount"))).isEqualTo(2);
+		// and again from the cache
+		assertThat(lanes.laneOf(metric("rep", "ContainerCount"))).isEqualTo(2);
+	}
+
+	@Test
+	public void appendsTheDefaultLane() {
+		PriorityLanes lanes = lanes("critical:origin=gorouter&name=latency*");
+
+		assertThat(lanes.getLanes()).extracting(PriorityLane::getName).containsExactly("critical", "default");
+		assertThat(lanes.getLanes()).extracting(PriorityLane::getShare).containsExactly(50, 50);
+		assertThat(lanes.laneOf(metric("gorouter", "latency.p99"))).isEqualTo(0);
+		assertThat(lanes.laneOf(metric("gorouter", "requests"))).isEqualTo(1);
+	}
+
+	@Test
+	public void ignoresSpacesAroundConditions() {
+		PriorityLanes lanes = lanes("critical : origin = gorouter & name = latency*");
+
+		assertThat(lanes.laneOf(metric("gorouter", "latency.p99"))).isEqualTo(0);
+		assertThat(lanes.laneOf(metric("rep", "latency.p99"))).isEqualTo(1);
+	}
+
+	@Test
+	public void rejectsADefaultLaneWithConditions() {
+		assertThatThrownBy(() -> lanes("critical:origin=gorouter", "default:origin=rep"))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void shedsLanesBelowAPressuredOne() {
+		PriorityLanes lanes = lanes("critical:origin=gorouter", "normal:origin=rep");
+		assertThat(lanes.shouldShed(2)).isFalse();
+
+		NozzleProperties properties = new NozzleProperties();
+		properties.setBufferSize(4);
+		InfluxDBBatcher batcher = new InfluxDBBatcher(properties, null, null, null, new SeriesKeyCacheMetrics(),
+				new PipelineMetrics(), new FlowController(properties), null, null, null,
+				properties.getSeriesCacheSize());
+		for (int i = 0; i < 2; ++i) {
+			batcher.add(metric("rep", "ContainerCount"));
+		}
+		lanes.queued(1, batcher);
+
+		assertThat(lanes.shouldShed(1)).isFalse();
+		assertThat(lanes.shouldShed(2)).isTrue();
+	}
+
+	private static PriorityLanes lanes(String... lanes) {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setLanes(Arrays.asList(lanes));
+		return new PriorityLanes(properties);
+	}
+
+	private static Envelope metric(String origin, String name) {
+		return Envelope.builder()
+				.origin(origin)
+				.eventType(EventType.VALUE_METRIC)
+				.timestamp(1490000000000000000L)
+				.valueMetric(ValueMetric.builder().name(name).value(1.0).unit("count").build())
+				.build();
+	}
+}
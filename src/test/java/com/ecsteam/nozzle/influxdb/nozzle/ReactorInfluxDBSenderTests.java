@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReactorInfluxDBSenderTests {
+
+	private final NozzleProperties properties = new NozzleProperties();
+	private final BufferPool pool = new BufferPool(4, 256, 4096);
+	private final List<String> bodies = new CopyOnWriteArrayList<>();
+	private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+
+	private HttpServer server;
+	private FlowController flow;
+	private ReactorInfluxDBSender sender;
+
+	@Before
+	public void configure() {
+		properties.setMaxRetries(3);
+		properties.setMinBackoff(50L);
+		properties.setMaxBackoff(200L);
+		properties.setMaxInFlight(1);
+	}
+
+	@After
+	public void close() {
+		if (sender != null) {
+			sender.destroy();
+		}
+		if (server != null) {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void writesABatch() throws Exception {
+		start(body -> 204);
+
+		assertThat(send(batch(2)).get(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(bodies).containsExactly("cpu value=0 0\ncpu value=1 1\n");
+		assertThat(inFlight()).isZero();
+	}
+
+	@Test
+	public void retriesServerErrorsAfterABackoff() throws Exception {
+		statuses.add(500);
+		statuses.add(500);
+		start(body -> 204);
+
+		long started = System.nanoTime();
+		CompletableFuture<Boolean> sent = send(batch(1));
+		// the retries are scheduled, not waited for
+		assertThat(sent.isDone()).isFalse();
+
+		assertThat(sent.get(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(bodies).hasSize(3);
+		// 50 ms after the first attempt, 100 ms after the second
+		assertThat(System.nanoTime() - started).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(150));
+	}
+
+	@Test
+	public void givesUpAfterMaxRetries() throws Exception {
+		start(body -> 500);
+
+		assertThat(send(batch(1)).get(5, TimeUnit.SECONDS)).isFalse();
+		assertThat(bodies).hasSize(3);
+		assertThat(inFlight()).isZero();
+	}
+
+	@Test
+	public void releasesTheSlotWhenInfluxDBIsUnreachable() throws Exception {
+		int port;
+		try (ServerSocket unused = new ServerSocket(0)) {
+			port = unused.getLocalPort();
+		}
+		properties.setMinBackoff(1L);
+		flow = new FlowController(properties);
+		sender = new ReactorInfluxDBSender(properties, () -> "http://127.0.0.1:" + port, null, flow);
+
+		// with one batch allowed in flight, the second would never be sent if the first kept its slot
+		assertThat(sender.sendBatch(batch(1)).get(5, TimeUnit.SECONDS)).isFalse();
+		assertThat(sender.sendBatch(batch(1)).get(5, TimeUnit.SECONDS)).isFalse();
+		assertThat(inFlight()).isZero();
+	}
+
+	@Test
+	public void splitsRejectedBatchesWithOneSlotInFlight() throws Exception {
+		start(body -> body.contains("bad") ? 400 : 204);
+		Batch batch = batch(4, 2);
+
+		// the halves wait for the one slot in flight, which would hang the event loop if they were sent from it
+		assertThat(send(batch).get(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(bodies).hasSize(1 + 2 + 2);
+		assertThat(batch.getQuarantined()).isEqualTo(1);
+		assertThat(inFlight()).isZero();
+	}
+
+	@Test
+	public void handsRejectedBatchesOffTheEventLoop() throws Exception {
+		start(body -> 400);
+
+		CompletableFuture<String> thread = sender.write(batch(1))
+				.thenApply(outcome -> outcome + " on " + Thread.currentThread().getName());
+
+		assertThat(thread.get(5, TimeUnit.SECONDS)).startsWith("rejected on elastic-");
+	}
+
+	private void start(Function<String, Integer> status) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/write", exchange -> {
+			String body;
+			try (InputStream in = exchange.getRequestBody()) {
+				body = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+			}
+			bodies.add(body);
+
+			Integer next = statuses.poll();
+			int code = next != null ? next : status.apply(body);
+			byte[] error = code == 204 ? new byte[0] : "{\"error\":\"unable to parse\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(code, code == 204 ? -1 : error.length);
+			exchange.getResponseBody().write(error);
+			exchange.close();
+		});
+		server.start();
+
+		String url = "http://127.0.0.1:" + server.getAddress().getPort();
+		flow = new FlowController(properties);
+		sender = new ReactorInfluxDBSender(properties, () -> url, null, flow);
+	}
+
+	private CompletableFuture<Boolean> send(Batch batch) {
+		return sender.sendBatch(batch);
+	}
+
+	/**
+	 * @param bad the lines InfluxDB rejects
+	 */
+	private Batch batch(int points, int... bad) {
+		Batch batch = new Batch(pool);
+		for (int i = 0; i < points; ++i) {
+			boolean rejected = false;
+			for (int b : bad) {
+				rejected |= b == i;
+			}
+
+			batch.getBuffer().write(("cpu value=" + (rejected ? "bad" : String.valueOf(i)) + " " + i + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			batch.pointAdded();
+		}
+
+		return batch;
+	}
+
+	private long inFlight() {
+		for (Metric<?> metric : flow.metrics()) {
+			if (metric.getName().endsWith(".in-flight")) {
+				return metric.getValue().longValue();
+			}
+		}
+		return 0L;
+	}
+}
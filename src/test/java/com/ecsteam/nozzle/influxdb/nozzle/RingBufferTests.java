@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RingBufferTests {
+
+	@Test
+	public void holdsUpToItsCapacityInOrder() {
+		RingBuffer<Integer> buffer = new RingBuffer<>(3);
+		assertThat(buffer.capacity()).isEqualTo(4);
+		assertThat(buffer.poll()).isNull();
+
+		for (int i = 0; i < 4; ++i) {
+			assertThat(buffer.offer(i)).isTrue();
+		}
+		assertThat(buffer.offer(4)).isFalse();
+		assertThat(buffer.size()).isEqualTo(4);
+
+		// wrap around a few laps
+		for (int i = 0; i < 10; ++i) {
+			assertThat(buffer.poll()).isEqualTo(i);
+			assertThat(buffer.offer(i + 4)).isTrue();
+		}
+		assertThat(buffer.size()).isEqualTo(4);
+	}
+
+	@Test
+	public void deliversEverythingManyProducersOffer() throws InterruptedException {
+		int producers = 4;
+		int perProducer = 100_000;
+		RingBuffer<Long> buffer = new RingBuffer<>(64);
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; ++p) {
+			long producer = p;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				for (long i = 0; i < perProducer; ++i) {
+					while (!buffer.offer(producer << 32 | i)) {
+						Thread.yield();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+
+		// every producer's elements arrive exactly once, in the order it offered them
+		long[] next = new long[producers];
+		for (int received = 0; received < producers * perProducer; ) {
+			Long element = buffer.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+
+			int producer = (int) (element >>> 32);
+			assertThat(element & 0xffffffffL).isEqualTo(next[producer]++);
+			++received;
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(buffer.isEmpty()).isTrue();
+		assertThat(next).containsOnly(perProducer);
+	}
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2017 ECS Team, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import com.ecsteam.nozzle.influxdb.config.NozzleProperties;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TagCardinalityGuardTests {
+
+	@Test
+	public void keepsTagsUnderTheLimit() {
+		TagCardinalityGuard guard = guard(TagCardinalityAction.strip);
+
+		for (int i = 0; i < 50; ++i) {
+			assertThat(guard.guard("requests", "instance", "instance-" + i)).isEqualTo("instance-" + i);
+		}
+		assertThat(guard.getGeneration()).isZero();
+		assertThat(guard.getOffenders()).isEmpty();
+	}
+
+	@Test
+	public void stripsATagOnceItTrips() {
+		TagCardinalityGuard guard = guard(TagCardinalityAction.strip);
+
+		int kept = 0;
+		for (int i = 0; i < 1000; ++i) {
+			kept += guard.guard("requests", "request_id", "request-" + i) == null ? 0 : 1;
+		}
+
+		// roughly the limit make it through before the sketch notices, nothing after
+		assertThat(kept).isBetween(90, 110);
+		assertThat(guard.guard("requests", "request_id", "request-0")).isNull();
+		assertThat(guard.getGeneration()).isEqualTo(1);
+
+		// other tags and measurements are counted on their own
+		assertThat(guard.guard("requests", "instance", "instance-0")).isEqualTo("instance-0");
+		assertThat(guard.guard("latency", "request_id", "request-0")).isEqualTo("request-0");
+
+		Map<String, Object> offender = guard.getOffenders().get(0);
+		assertThat(offender).containsEntry("measurement", "requests").containsEntry("tag", "request_id")
+				.containsEntry("action", TagCardinalityAction.strip);
+		assertThat((Long) offender.get("distinctValues")).isGreaterThan(100L);
+	}
+
+	@Test
+	public void bucketsATagOnceItTrips() {
+		TagCardinalityGuard guard = guard(TagCardinalityAction.bucket);
+		for (int i = 0; i < 1000; ++i) {
+			guard.guard("requests", "request_id", "request-" + i);
+		}
+
+		Set<String> buckets = new HashSet<>();
+		for (int i = 0; i < 1000; ++i) {
+			buckets.add(guard.guard("requests", "request_id", "request-" + i));
+		}
+
+		assertThat(buckets).containsOnly("bucket-0", "bucket-1", "bucket-2", "bucket-3", "bucket-4", "bucket-5",
+				"bucket-6", "bucket-7");
+		assertThat(guard.guard("requests", "request_id", "request-42"))
+				.isEqualTo(guard.guard("requests", "request_id", "request-42"));
+	}
+
+	@Test
+	public void leavesEverythingAloneWithoutALimit() {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setTagCardinalityLimit(0);
+		TagCardinalityGuard guard = new TagCardinalityGuard(properties);
+		assertThat(guard.isEnabled()).isFalse();
+
+		for (int i = 0; i < 1000; ++i) {
+			assertThat(guard.guard("requests", "request_id", "request-" + i)).isEqualTo("request-" + i);
+		}
+	}
+
+	private static TagCardinalityGuard guard(TagCardinalityAction action) {
+		NozzleProperties properties = new NozzleProperties();
+		properties.setTagCardinalityLimit(100);
+		properties.setTagCardinalityAction(action);
+		properties.setTagCardinalityBuckets(8);
+		return new TagCardinalityGuard(properties);
+	}
+}
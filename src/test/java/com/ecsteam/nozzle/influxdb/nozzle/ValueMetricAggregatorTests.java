@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *  Copyright 2017 ECS Team, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ *  this file except in compliance with the License. You may obtain a copy of the
+ *  License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software distributed
+ *  under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ *  CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ *  specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+
+
+package com.ecsteam.nozzle.influxdb.nozzle;
+
+import org.cloudfoundry.doppler.Envelope;
+import org.cloudfoundry.doppler.EventType;
+import org.cloudfoundry.doppler.ValueMetric;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValueMetricAggregatorTests {
+
+	private final LineProtocolEncoder encoder = new LineProtocolEncoder(null,
+			new SeriesKeyCache(16, new SeriesKeyCacheMetrics()));
+	private final PipelineMetrics pipelineMetrics = new PipelineMetrics();
+	private final ValueMetricAggregator aggregator = new ValueMetricAggregator(
+			AggregationRule.parse(Arrays.asList("rep/Capacity*=10")), encoder, pipelineMetrics);
+	private final LineProtocolBuffer buffer = new LineProtocolBuffer(64);
+
+	@Test
+	public void writesOnePointPerWindow() {
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 11_000_000L, 4), buffer)).isEqualTo(0);
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 15_000_000L, 1), buffer)).isEqualTo(0);
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 19_000_000L, 7), buffer)).isEqualTo(0);
+
+		// the next window closes the first one
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 20_000_000L, 2), buffer)).isEqualTo(1);
+		assertThat(encoded()).isEqualTo("CapacityTotalMemory,eventType=ValueMetric,origin=rep,unit=MiB "
+				+ "count=3i,last=7,max=7,mean=4,min=1 10000000\n");
+
+		buffer.reset();
+		assertThat(aggregator.flush(20_000_000L, true, buffer)).isEqualTo(1);
+		assertThat(encoded()).endsWith(" count=1i,last=2,max=2,mean=2,min=2 20000000\n");
+	}
+
+	@Test
+	public void leavesUnmatchedMetricsAlone() {
+		assertThat(aggregator.aggregate(metric("gorouter", "CapacityTotalMemory", 1L, 1), buffer)).isEqualTo(-1);
+		assertThat(aggregator.aggregate(metric("rep", "ContainerCount", 1L, 1), buffer)).isEqualTo(-1);
+		assertThat(buffer.length()).isZero();
+	}
+
+	@Test
+	public void writesClosedWindowsAfterTheGracePeriod() {
+		aggregator.aggregate(metric("rep", "CapacityTotalDisk", 1_000_000L, 3), buffer);
+
+		assertThat(aggregator.flush(500_000_000L, false, buffer)).isEqualTo(0);
+		assertThat(aggregator.flush(2_000_000_000L, false, buffer)).isEqualTo(1);
+		assertThat(aggregator.flush(3_000_000_000L, false, buffer)).isEqualTo(0);
+	}
+
+	@Test
+	public void leavesOutPointsOlderThanTheWindow() {
+		aggregator.aggregate(metric("rep", "CapacityTotalMemory", 21_000_000L, 4), buffer);
+
+		// before the open window, which must not move back to take it
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 12_000_000L, 100), buffer)).isEqualTo(0);
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 25_000_000L, 6), buffer)).isEqualTo(0);
+
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 30_000_000L, 1), buffer)).isEqualTo(1);
+		assertThat(encoded()).endsWith(" count=2i,last=6,max=6,mean=5,min=4 20000000\n");
+
+		// within the window just written, which a second point for the same timestamp would replace
+		buffer.reset();
+		aggregator.flush(30_000_000L, true, buffer);
+		assertThat(aggregator.aggregate(metric("rep", "CapacityTotalMemory", 29_000_000L, 100), buffer)).isEqualTo(0);
+		assertThat(aggregator.flush(40_000_000L, true, buffer)).isEqualTo(0);
+
+		assertThat(late()).isEqualTo(2L);
+	}
+
+	private long late() {
+		return pipelineMetrics.metrics().stream()
+				.filter(metric -> metric.getName().equals("nozzle.pipeline.late-points"))
+				.findFirst()
+				.orElseThrow(() -> new IllegalArgumentException("late-points"))
+				.getValue()
+				.longValue();
+	}
+
+	private static Envelope metric(String origin, String name, long timestamp, double value) {
+		return Envelope.builder()
+				.eventType(EventType.VALUE_METRIC)
+				.origin(origin)
+				.timestamp(timestamp)
+				.valueMetric(ValueMetric.builder().name(name).unit("MiB").value(value).build())
+				.build();
+	}
+
+	private String encoded() {
+		return new String(buffer.array(), 0, buffer.length(), StandardCharsets.UTF_8);
+	}
+}